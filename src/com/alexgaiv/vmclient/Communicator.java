@@ -56,8 +56,14 @@ class Communicator
         messageDispatcher.send(null, onError, "<taskDetails>", taskId);
     }
 
-    void sendTask(String name, String programText, EventCallback onSuccess, EventCallback onFail) {
-        messageDispatcher.send(onSuccess, onFail, "<newTask>", name, programText);
+    void watchTask(int taskNumber) { messageDispatcher.send("<watchTask>", taskNumber); }
+    void unwatchTask(int taskNumber) { messageDispatcher.send("<unwatchTask>", taskNumber); }
+
+    void sendTask(String name, String programText, ExecutionEngine engine, OptimizationLevel optimization,
+                  EventCallback onSuccess, EventCallback onFail)
+    {
+        messageDispatcher.send(onSuccess, onFail, "<newTask>", name, programText,
+                engine.name(), optimization.name());
     }
 
     void sendTaskMessage(int taskId, String username, String messageText,
@@ -102,6 +108,9 @@ class Communicator
                             case "<taskMessages>":
                                 receiveTaskMessages();
                                 break;
+                            case "<taskOutput>":
+                                receiveTaskOutput();
+                                break;
                         }
                     }
                     catch (IOException e) {
@@ -182,6 +191,7 @@ class Communicator
             boolean hasNext = in.readBoolean();
 
             while (hasNext) {
+                int taskNumber = in.readInt();
                 String taskName = in.readUTF();
                 Date creationDate = new Date(in.readLong());
                 int status = in.readInt();
@@ -195,7 +205,7 @@ class Communicator
                 }
 
                 form.taskQueueTableModel.addRow(new Object[] {
-                    taskName, creationDate, taskStatus
+                    taskNumber, taskName, creationDate, taskStatus
                 });
                 hasNext = in.readBoolean();
             }
@@ -216,13 +226,27 @@ class Communicator
 
             synchronized (form.taskDetailsFrames) {
                 for (TaskDetailsFrame frame : form.taskDetailsFrames) {
-                    if (frame.getTaskId() == taskId) {
+                    if (!frame.isLive() && frame.getTaskId() == taskId) {
                         frame.setTaskInfo(t);
                     }
                 }
             }
         }
 
+        private void receiveTaskOutput() throws IOException
+        {
+            int taskNumber = in.readInt();
+            int status = in.readInt();
+            String text = in.readUTF();
+
+            synchronized (form.taskDetailsFrames) {
+                for (TaskDetailsFrame frame : form.taskDetailsFrames) {
+                    if (frame.isLive() && frame.getTaskId() == taskNumber)
+                        frame.appendOutput(status, text);
+                }
+            }
+        }
+
         private void receiveTaskMessages() throws IOException
         {
             int taskId = in.readInt();
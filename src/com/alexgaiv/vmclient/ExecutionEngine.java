@@ -0,0 +1,14 @@
+package com.alexgaiv.vmclient;
+
+enum ExecutionEngine
+{
+    INTERPRETER("Interpreter"),
+    CLOSURE("Closure compiler"),
+    JVM("JVM bytecode"),
+    REGISTER("Register VM");
+
+    ExecutionEngine(String engineString) { this.engineString = engineString; }
+    public String toString() { return engineString; }
+
+    private String engineString;
+}
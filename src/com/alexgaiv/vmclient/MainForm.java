@@ -47,6 +47,8 @@ public class MainForm extends JFrame
     private JTable historyTable;
     private JButton viewTaskDetailsButton;
     private JButton discussTaskButton;
+    private JComboBox<ExecutionEngine> engineComboBox;
+    private JComboBox<OptimizationLevel> optimizationComboBox;
 
     private File programFile = null;
     private boolean programSendSuccess = false;
@@ -135,7 +137,9 @@ public class MainForm extends JFrame
             }
         }
 
-        communicator.sendTask(taskNameField.getText(), programText, e -> {
+        ExecutionEngine engine = (ExecutionEngine) engineComboBox.getSelectedItem();
+        OptimizationLevel optimization = (OptimizationLevel) optimizationComboBox.getSelectedItem();
+        communicator.sendTask(taskNameField.getText(), programText, engine, optimization, e -> {
             showCard(progressBarPanel, "readyCard");
             backButton.setText("New Task");
             programSendSuccess = true;
@@ -148,7 +152,17 @@ public class MainForm extends JFrame
     }
 
     private void openTaskDetailsFrame(int taskId) {
-        TaskDetailsFrame frame = new TaskDetailsFrame(communicator, taskId);
+        showTaskDetailsFrame(new TaskDetailsFrame(communicator, taskId));
+    }
+
+    private void openLiveTaskDetailsFrame(int row) {
+        int taskNumber = (Integer) taskQueueTableModel.getValueAt(row, 0);
+        String taskName = (String) taskQueueTableModel.getValueAt(row, 1);
+        Date creationDate = (Date) taskQueueTableModel.getValueAt(row, 2);
+        showTaskDetailsFrame(new TaskDetailsFrame(communicator, taskNumber, taskName, creationDate));
+    }
+
+    private void showTaskDetailsFrame(TaskDetailsFrame frame) {
         frame.setIconImages(frameIcons);
 
         frame.addWindowListener(new WindowAdapter()
@@ -157,6 +171,8 @@ public class MainForm extends JFrame
                 synchronized (taskDetailsFrames) {
                     taskDetailsFrames.remove(frame);
                 }
+                if (frame.isLive())
+                    communicator.unwatchTask(frame.getTaskId());
             }
         });
 
@@ -230,6 +246,9 @@ public class MainForm extends JFrame
         menuList.setFixedCellWidth(150);
         menuList.setFixedCellHeight(50);
 
+        engineComboBox.setModel(new DefaultComboBoxModel<>(ExecutionEngine.values()));
+        optimizationComboBox.setModel(new DefaultComboBoxModel<>(OptimizationLevel.values()));
+
         DefaultTableCellRenderer dateCellRenderer = new DefaultTableCellRenderer()
         {
             SimpleDateFormat format = new SimpleDateFormat("MMM dd, yyyy, hh:mm:ss a", Locale.US);
@@ -249,9 +268,11 @@ public class MainForm extends JFrame
             @Override
             public Class<?> getColumnClass(int columnIndex) {
                 switch (columnIndex) {
-                    case 1:
-                        return Date.class;
+                    case 0:
+                        return Integer.class;
                     case 2:
+                        return Date.class;
+                    case 3:
                         return TaskStatus.class;
                     default:
                         return String.class;
@@ -264,11 +285,21 @@ public class MainForm extends JFrame
         taskQueueTable.getTableHeader().setReorderingAllowed(false);
         taskQueueTable.setModel(taskQueueTableModel);
         taskQueueTable.setAutoCreateRowSorter(true);
+        taskQueueTableModel.addColumn("number");
         taskQueueTableModel.addColumn("Task Name");
         taskQueueTableModel.addColumn("Creation date");
         taskQueueTableModel.addColumn("Status");
 
-        taskQueueTable.getColumnModel().getColumn(1).setCellRenderer(dateCellRenderer);
+        taskQueueTable.getColumnModel().getColumn(2).setCellRenderer(dateCellRenderer);
+        taskQueueTable.removeColumn(taskQueueTable.getColumnModel().getColumn(0));
+        taskQueueTable.addMouseListener(new MouseAdapter()
+        {
+            public void mouseClicked(MouseEvent e) {
+                int row = taskQueueTable.rowAtPoint(e.getPoint());
+                if (e.getClickCount() == 2 && row != -1)
+                    openLiveTaskDetailsFrame(taskQueueTable.convertRowIndexToModel(row));
+            }
+        });
 
         taskHistoryTableModel = new DefaultTableModel()
         {
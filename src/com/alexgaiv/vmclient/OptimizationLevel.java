@@ -0,0 +1,13 @@
+package com.alexgaiv.vmclient;
+
+enum OptimizationLevel
+{
+    NONE("None"),
+    BASIC("Basic"),
+    FULL("Full");
+
+    OptimizationLevel(String levelString) { this.levelString = levelString; }
+    public String toString() { return levelString; }
+
+    private String levelString;
+}
@@ -4,6 +4,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowEvent;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Locale;
 
 class TaskDetailsFrame extends JFrame
@@ -18,11 +19,16 @@ class TaskDetailsFrame extends JFrame
 
     private int taskId;
     private Communicator comm;
+    private boolean live = false; // a task in the queue, its number instead of an id
 
     int getTaskId() {
         return taskId;
     }
 
+    boolean isLive() {
+        return live;
+    }
+
     TaskDetailsFrame(Communicator comm, int taskId) {
         this.comm = comm;
         this.taskId = taskId;
@@ -32,7 +38,26 @@ class TaskDetailsFrame extends JFrame
         setTitle("Task Details");
     }
 
+    // a task of the queue, whose output is shown as the server sends it
+    TaskDetailsFrame(Communicator comm, int taskNumber, String name, Date creationDate) {
+        this(comm, taskNumber);
+        live = true;
+
+        String dateString = new SimpleDateFormat("MMM dd, yyyy, hh:mm:ss a", Locale.US).format(creationDate);
+        setTitle("Task Details - " + name);
+        taskNameLabel.setText(name);
+        creationDateLabel.setText(dateString);
+        execTimeLabel.setText("");
+        statusLabel.setText("");
+        CardLayout layout = (CardLayout) mainPanel.getLayout();
+        layout.show(mainPanel, "taskDetailsCard");
+    }
+
     void update() {
+        if (live) {
+            comm.watchTask(taskId);
+            return;
+        }
         comm.updateTaskDetails(taskId, e -> {
             JOptionPane.showMessageDialog(mainPanel,
                     "Connection Error", "Error", JOptionPane.ERROR_MESSAGE);
@@ -55,4 +80,12 @@ class TaskDetailsFrame extends JFrame
         layout.show(mainPanel, "taskDetailsCard");
     }
 
+    void appendOutput(int status, String text) {
+        if (status < 0)
+            statusLabel.setText("Finished, see the task history");
+        else if (status < TaskStatus.values().length)
+            statusLabel.setText(TaskStatus.values()[status].toString());
+        programOutputField.append(text);
+    }
+
 }
@@ -0,0 +1,83 @@
+package com.alexgaiv.vmserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.alexgaiv.vmserver.parser.CompiledProgram;
+
+// Compiled programs by the SHA-256 of their text, so that a resubmitted
+// program is not parsed again. Programs that do not parse are kept too,
+// with their error. The least recently used programs are dropped once
+// there are more than maxEntries of them or they take more than maxBytes.
+//
+// A program is parsed outside the lock, so two threads that miss on the
+// same text at once both parse it, and the second one's program is kept.
+class ProgramCache
+{
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, CompiledProgram> programs = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    ProgramCache(int maxEntries, long maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    // key is hash(programText)
+    CompiledProgram get(String key, String programText)
+    {
+        synchronized (this) {
+            CompiledProgram program = programs.get(key);
+            if (program != null) {
+                hits++;
+                return program;
+            }
+            misses++;
+        }
+
+        CompiledProgram program = CompiledProgram.compile(programText);
+        synchronized (this) {
+            CompiledProgram old = programs.put(key, program);
+            if (old != null)
+                bytes -= old.footprint();
+            bytes += program.footprint();
+
+            Iterator<CompiledProgram> eldest = programs.values().iterator();
+            while (programs.size() > 1 && (programs.size() > maxEntries || bytes > maxBytes)) {
+                bytes -= eldest.next().footprint();
+                eldest.remove();
+            }
+        }
+        return program;
+    }
+
+    synchronized long hits() { return hits; }
+    synchronized long misses() { return misses; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("program cache: %d programs, %d KB, %d hits, %d misses",
+            programs.size(), bytes / 1024, hits, misses);
+    }
+
+    static String hash(String programText)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder key = new StringBuilder(64);
+            for (byte b : digest.digest(programText.getBytes(StandardCharsets.UTF_8)))
+                key.append(String.format("%02x", b));
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.alexgaiv.vmserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import com.alexgaiv.vmserver.parser.OptimizationLevel;
+
+// The output of programs that ran successfully, by the hash of their text
+// (see ProgramCache.hash) and the optimization level. A program takes no
+// input, and parfor splits its work the same way every time, so the same
+// text prints the same output at the same level, whatever the engine. The
+// levels are kept apart so that a bug in an optimization shows up the same
+// way every time instead of coming from the cache at another level.
+// Failures are not kept: a task may fail because it was interrupted.
+//
+// The least recently used outputs are dropped once the outputs kept take
+// more than maxBytes.
+class ResultCache
+{
+    private final long maxBytes;
+    private final LinkedHashMap<String, String> outputs = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // the output of the program, null if it has not run yet at this level
+    synchronized String get(String programHash, OptimizationLevel level)
+    {
+        String output = outputs.get(key(programHash, level));
+        if (output != null)
+            hits++;
+        else
+            misses++;
+        return output;
+    }
+
+    synchronized void put(String programHash, OptimizationLevel level, String output)
+    {
+        String old = outputs.put(key(programHash, level), output);
+        if (old != null)
+            bytes -= size(old);
+        bytes += size(output);
+
+        Iterator<String> eldest = outputs.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= size(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    synchronized long hits() { return hits; }
+    synchronized long misses() { return misses; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("result cache: %d outputs, %d KB, %d hits, %d misses",
+            outputs.size(), bytes / 1024, hits, misses);
+    }
+
+    private static String key(String programHash, OptimizationLevel level) {
+        return level.name() + " " + programHash;
+    }
+
+    private static long size(String output) {
+        return 48 + 2L * output.length();
+    }
+}
@@ -0,0 +1,104 @@
+package com.alexgaiv.vmserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import com.alexgaiv.vmserver.parser.CompiledProgram;
+import com.alexgaiv.vmserver.parser.ExecutionEngine;
+import com.alexgaiv.vmserver.parser.ProgramExecuteResult;
+import com.alexgaiv.vmserver.parser.ProgramExecutor;
+
+// Checks that TaskScheduler ends short tasks while long ones that can't
+// pause run: a long task for every core on the JVM engine and a long
+// parfor loop, then short tasks on the interpreter and the JVM engine,
+// which must all end before the first long one.
+//
+//   java com.alexgaiv.vmserver.SchedulerCheck
+public class SchedulerCheck
+{
+    private static final String LONG_PROGRAM =
+        "int i, k; real s; s = 0; " +
+        "for (k = 0; k < 40; k = k + 1) for (i = 0; i < 10000000; i = i + 1) s = s + i * 0.5; println s;";
+    private static final String LONG_PARFOR_PROGRAM =
+        "int k; real s; " +
+        "parfor (k = 0, 4) reduce(s) { int i; for (i = 0; i < 40000000; i = i + 1) s = s + 1; } println s;";
+    private static final String SHORT_PROGRAM =
+        "int i; real s; s = 0; for (i = 0; i < 1000; i = i + 1) s = s + i; println s;";
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int longTasks = Math.max(2, Runtime.getRuntime().availableProcessors()) + 1;
+        int shortTasks = 4;
+        ConcurrentHashMap<Task, Long> endTimes = new ConcurrentHashMap<>();
+        CountDownLatch allEnded = new CountDownLatch(longTasks + shortTasks);
+
+        TaskScheduler scheduler = new TaskScheduler(new TaskScheduler.Listener()
+        {
+            @Override
+            public ProgramExecutor start(Task task)
+            {
+                ProgramExecutor exec = new ProgramExecutor();
+                exec.start(CompiledProgram.compile(task.programText), task.engine, task.optimization);
+                return exec;
+            }
+
+            @Override
+            public void queueChanged() { }
+
+            @Override
+            public void ended(Task task, ProgramExecuteResult result)
+            {
+                endTimes.put(task, System.nanoTime());
+                if (!result.success)
+                    System.out.println(task.name + ": " + result.errorMessage);
+            }
+
+            @Override
+            public void removed(Task task, ProgramExecuteResult result) {
+                allEnded.countDown();
+            }
+        });
+
+        long start = System.nanoTime();
+        Task[] tasks = new Task[longTasks + shortTasks];
+        for (int i = 0; i < tasks.length; i++)
+        {
+            Task task = tasks[i] = new Task();
+            if (i < longTasks - 1) {
+                task.name = "long " + i + " (JVM)";
+                task.programText = LONG_PROGRAM;
+                task.engine = ExecutionEngine.JVM;
+            }
+            else if (i == longTasks - 1) {
+                task.name = "long parfor";
+                task.programText = LONG_PARFOR_PROGRAM;
+            }
+            else {
+                task.name = "short " + (i - longTasks) + (i % 2 == 0 ? " (JVM)" : "");
+                task.programText = SHORT_PROGRAM;
+                task.engine = i % 2 == 0 ? ExecutionEngine.JVM : ExecutionEngine.INTERPRETER;
+            }
+            scheduler.add(task);
+        }
+        allEnded.await();
+        scheduler.shutdown();
+
+        long firstLongEnd = Long.MAX_VALUE;
+        for (int i = 0; i < longTasks; i++)
+            firstLongEnd = Math.min(firstLongEnd, endTimes.get(tasks[i]));
+
+        int failed = 0;
+        for (Task task : tasks)
+        {
+            long end = endTimes.get(task);
+            boolean late = task.programText == SHORT_PROGRAM && end > firstLongEnd;
+            System.out.printf("%-16s ended after %6d ms%s%n", task.name, (end - start) / 1000000,
+                late ? ", after a long task" : "");
+            if (late)
+                failed++;
+        }
+
+        System.out.println(shortTasks + " short tasks, " + failed + " ended after a long one");
+        if (failed > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,149 @@
+package com.alexgaiv.vmserver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import com.alexgaiv.vmserver.parser.ProgramExecuteResult;
+import com.alexgaiv.vmserver.parser.ProgramExecutor;
+
+// Runs tasks a slice of SLICE_BUDGET jumps and calls at a time, taking turns
+// on a thread for every core, so that a long task does not hold a thread
+// and short ones end soon even behind long ones. Only the interpreter stops
+// in the middle of a program (see ProgramExecutor.runsWhole): the others
+// run whole on WHOLE_RUN_THREADS threads of their own, where long ones hold
+// up each other but not the rest.
+class TaskScheduler
+{
+    private final int EXEC_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final int WHOLE_RUN_THREADS = 5;
+    private final int MAX_RUNNING_TASKS = 64;
+    private final long SLICE_BUDGET = 250_000;
+
+    // what the server does with the tasks, on the threads that run them
+    interface Listener
+    {
+        // a ProgramExecutor with the program of the task started on it
+        ProgramExecutor start(Task task);
+
+        // a task was added to taskQueue or moved to runningTasks
+        void queueChanged();
+
+        // the task has ended and is still in runningTasks
+        void ended(Task task, ProgramExecuteResult result);
+
+        // the task has ended and is no longer in runningTasks
+        void removed(Task task, ProgramExecuteResult result);
+    }
+
+    final LinkedBlockingQueue<Task> taskQueue = new LinkedBlockingQueue<>();
+    final LinkedBlockingQueue<Task> runningTasks = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Task> sliceQueue = new LinkedBlockingQueue<>(); // running tasks in turn
+    private final Object lock = new Object();
+    private final Listener listener;
+    private final ExecutorService slicePool = Executors.newFixedThreadPool(EXEC_THREADS);
+    private final ExecutorService wholeRunPool = Executors.newFixedThreadPool(WHOLE_RUN_THREADS);
+
+    TaskScheduler(Listener listener) {
+        this.listener = listener;
+    }
+
+    void add(Task task)
+    {
+        taskQueue.offer(task);
+        listener.queueChanged();
+        execute(slicePool, new Slice());
+    }
+
+    // Lets the slices and whole runs started end, waiting a while for them,
+    // and returns whether every task has ended.
+    boolean shutdown() throws InterruptedException
+    {
+        slicePool.shutdown();
+        boolean terminated = slicePool.awaitTermination(5, TimeUnit.SECONDS);
+        wholeRunPool.shutdown();
+        terminated &= wholeRunPool.awaitTermination(5, TimeUnit.SECONDS);
+        return terminated && sliceQueue.isEmpty();
+    }
+
+    private void execute(ExecutorService pool, Runnable r)
+    {
+        try {
+            pool.execute(r);
+        } catch (RejectedExecutionException e) {
+            // the server is shut down, the task is left unfinished
+        }
+    }
+
+    private void runWhole(Task task)
+    {
+        long dt = System.nanoTime();
+        ProgramExecuteResult result = task.exec.step(Long.MAX_VALUE);
+        task.execTime += System.nanoTime() - dt;
+        end(task, result);
+    }
+
+    private void end(Task task, ProgramExecuteResult result)
+    {
+        listener.ended(task, result);
+        // after a watch can no longer find the task
+        runningTasks.remove(task);
+        listener.removed(task, result);
+        task.exec = null;
+    }
+
+    // the first waiting task while fewer than MAX_RUNNING_TASKS run,
+    // else the running task whose turn it is
+    private Task nextTask()
+    {
+        Task task;
+        synchronized (lock) {
+            task = runningTasks.size() < MAX_RUNNING_TASKS ? taskQueue.poll() : null;
+            if (task == null)
+                task = sliceQueue.poll();
+            if (task == null)
+                task = taskQueue.poll();
+            if (task == null || task.status == TaskStatus.RUNNING)
+                return task;
+            task.status = TaskStatus.RUNNING;
+            runningTasks.offer(task);
+        }
+        listener.queueChanged();
+        return task;
+    }
+
+    // A slice of a task. There is one in slicePool for every task that
+    // waits or runs there: a task that has not ended after its slice goes
+    // to the back of sliceQueue and another one is put in the pool for it.
+    private class Slice implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            Task task = nextTask();
+            if (task == null)
+                return;
+
+            long dt = System.nanoTime();
+            if (task.exec == null) {
+                task.exec = listener.start(task);
+                task.output = task.exec.getOutput();
+                if (task.exec.runsWhole()) {
+                    task.execTime += System.nanoTime() - dt;
+                    execute(wholeRunPool, () -> runWhole(task));
+                    return;
+                }
+            }
+            ProgramExecuteResult result = task.exec.step(SLICE_BUDGET);
+            task.execTime += System.nanoTime() - dt;
+
+            if (result != null)
+                end(task, result);
+            else {
+                sliceQueue.offer(task);
+                execute(slicePool, new Slice());
+            }
+        }
+    }
+}
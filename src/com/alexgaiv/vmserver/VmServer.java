@@ -2,9 +2,14 @@ package com.alexgaiv.vmserver;
 
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import com.alexgaiv.vmserver.parser.*;
 
 enum TaskStatus
@@ -19,10 +24,21 @@ enum TaskStatus
 
 class Task
 {
+    private static final AtomicInteger nextNumber = new AtomicInteger();
+
+    // identifies the task while it is in the queue, it gets an id in
+    // task_history only when it ends
+    final int number = nextNumber.getAndIncrement();
     String name = "";
     long creationDate = 0;
     String programText = "";
+    String programHash = "";
+    ExecutionEngine engine = ExecutionEngine.INTERPRETER;
+    OptimizationLevel optimization = OptimizationLevel.NONE;
     TaskStatus status = TaskStatus.WAITING;
+    volatile ProgramOutput output = null; // once the task runs
+    ProgramExecutor exec = null;          // runs the task a slice at a time
+    long execTime = 0;                    // ns, of all its slices
 
     public Task() { }
 
@@ -34,20 +50,30 @@ class Task
 
 public class VmServer
 {
-    private final int MAX_EXEC_THREAD = 5;
+    private final long STREAM_INTERVAL = 250;
+    private final int MAX_STREAM_CHUNK = 16 * 1024; // bytes, well below the limit of writeUTF
+    private final long MAX_STREAM_BACKLOG = 4 * MAX_STREAM_CHUNK; // chars queued for a client
+    private final int MAX_CACHED_PROGRAMS = 256;
+    private final long MAX_CACHED_BYTES = 64L << 20;
+    private final long MAX_CACHED_OUTPUT_BYTES = 64L << 20;
+    // the output of a task kept in memory, the rest goes to a temporary
+    // file, and the output after which the task is stopped
+    private final int MAX_OUTPUT_MEMORY = 1 << 20;
+    private final long MAX_OUTPUT_BYTES = 256L << 20;
     private ServerThread serverThread;
     private ClientNotifier notifierThread;
-    private ExecutorService executorService;
+    private OutputStreamer streamerThread;
+    private TaskScheduler scheduler;
     private boolean started = false;
 
     private ServerSocket socket;
     private final int PORT = 4000;
     private boolean isServerShutdown = false;
 
-    private LinkedBlockingQueue<Task> taskQueue = new LinkedBlockingQueue<>();
-    private LinkedBlockingQueue<Task> runningTasks = new LinkedBlockingQueue<>();
     private ArrayList<ClientThread> clients = new ArrayList<>();
     private final Object clientsLock = new Object();
+    private final ProgramCache programCache = new ProgramCache(MAX_CACHED_PROGRAMS, MAX_CACHED_BYTES);
+    private final ResultCache resultCache = new ResultCache(MAX_CACHED_OUTPUT_BYTES);
 
     private Connection connection;
 
@@ -73,8 +99,18 @@ public class VmServer
             "INSERT INTO messages (task_id, username, message, date) VALUES (?, ?, ?, ?)";
 
     private static final String newTaskQuery =
-            "INSERT INTO task_history (name, creation_date, program_text, output, status, exec_time) " +
-                    "VALUES (?, ?, ?, ?, ?, ?)";
+            "INSERT INTO task_history (name, creation_date, program_text, output, status, exec_time, " +
+                    "optimization, vm_version) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // columns added to task_history since vm.db was first made, rows saved
+    // before get the defaults
+    private static final String[][] newTaskHistoryColumns = {
+            { "optimization", "TEXT DEFAULT ''" },
+            { "vm_version", "INTEGER DEFAULT 0" } };
+
+    private static final String successfulTasksQuery =
+            "SELECT program_text, optimization, output FROM task_history " +
+                    "WHERE status = 1 AND vm_version = ? ORDER BY id";
 
     public void start() throws IOException, IllegalStateException
     {
@@ -90,6 +126,8 @@ public class VmServer
 
         try {
             connection = DriverManager.getConnection(org.sqlite.JDBC.PREFIX + "vm.db");
+            addTaskHistoryColumns();
+            seedResultCache();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -98,9 +136,11 @@ public class VmServer
 
         serverThread = new ServerThread();
         notifierThread = new ClientNotifier();
-        executorService = Executors.newFixedThreadPool(MAX_EXEC_THREAD);
+        streamerThread = new OutputStreamer();
+        scheduler = new TaskScheduler(new TaskListener());
 
         notifierThread.start();
+        streamerThread.start();
         serverThread.start();
     }
 
@@ -114,6 +154,7 @@ public class VmServer
         isServerShutdown = true;
         serverThread.interrupt();
         notifierThread.interrupt();
+        streamerThread.interrupt();
         try {
             socket.close();
         } catch (IOException e) {
@@ -123,9 +164,8 @@ public class VmServer
         try {
             serverThread.join();
             notifierThread.join();
-            executorService.shutdown();
-            boolean terminated = executorService.awaitTermination(5, TimeUnit.SECONDS);
-            if (!terminated) {
+            streamerThread.join();
+            if (!scheduler.shutdown()) {
                 System.out.println("warning: there are uncompleted tasks");
             }
         } catch (InterruptedException e) {
@@ -145,6 +185,53 @@ public class VmServer
         }
     }
 
+    private void addTaskHistoryColumns() throws SQLException
+    {
+        DatabaseMetaData meta = connection.getMetaData();
+        for (String[] column : newTaskHistoryColumns) {
+            try (ResultSet rs = meta.getColumns(null, null, "task_history", column[0])) {
+                if (rs.next())
+                    continue;
+            }
+            try (Statement st = connection.createStatement()) {
+                st.executeUpdate("ALTER TABLE task_history ADD COLUMN " + column[0] + " " + column[1]);
+            }
+        }
+    }
+
+    // the tasks run before on this version of the VM, oldest first, so that
+    // the newest are kept
+    private void seedResultCache() throws SQLException
+    {
+        try (PreparedStatement st = connection.prepareStatement(successfulTasksQuery)) {
+            st.setInt(1, ProgramExecutor.VERSION);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    resultCache.put(ProgramCache.hash(rs.getString("program_text")),
+                        OptimizationLevel.fromName(rs.getString("optimization")), rs.getString("output"));
+                }
+            }
+        }
+    }
+
+    private void saveTask(Task task, ProgramExecuteResult result, double execTime)
+    {
+        try (PreparedStatement st = connection.prepareStatement(newTaskQuery)) {
+            st.setString(1, task.name);
+            st.setLong(2, task.creationDate);
+            st.setString(3, task.programText);
+            st.setString(4, result.programOutput);
+            st.setInt(5, result.success ? 1 : 0);
+            st.setDouble(6, execTime);
+            st.setString(7, task.optimization.name());
+            st.setInt(8, ProgramExecutor.VERSION);
+
+            st.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     private class ServerThread extends Thread
     {
         ServerThread() { super("ServerThread"); }
@@ -175,13 +262,14 @@ public class VmServer
     {
         private Socket socket;
         private DataInputStream in;
-        private DataOutputStream out;
+        private DataOutputStream out; // a message at a time, under its lock, from several threads
         private Statement taskHistoryStatement;
         private PreparedStatement taskDetailsStatement;
         private PreparedStatement taskMessagesStatement;
         private PreparedStatement pullTaskMessagesStatement;
         private PreparedStatement newTaskMessageStatement;
         private int index = 0;
+        private final TaskOutputSender outputSender = new TaskOutputSender(this);
 
         ClientThread(Socket socket) throws IOException {
             super("ClientThread");
@@ -200,6 +288,7 @@ public class VmServer
                 pullTaskMessagesStatement.close();
                 newTaskMessageStatement.close();
                 socket.close(); // causes thread to interrupt by IOException (if it's not yet happened)
+                outputSender.interrupt();
             } catch (IOException | SQLException e) {
                 e.printStackTrace();
             }
@@ -225,6 +314,7 @@ public class VmServer
         @Override
         public void run()
         {
+            outputSender.start();
             try {
                 taskHistoryStatement = connection.createStatement();
                 taskDetailsStatement = connection.prepareStatement(taskDetailsQuery);
@@ -257,6 +347,12 @@ public class VmServer
                         case "<newTaskMessage>":
                             newTaskMessage(in.readInt(), in.readUTF(), in.readUTF());
                             break;
+                        case "<watchTask>":
+                            streamerThread.watch(in.readInt(), this);
+                            break;
+                        case "<unwatchTask>":
+                            streamerThread.unwatch(in.readInt(), this);
+                            break;
                     }
                 }
             }
@@ -271,11 +367,23 @@ public class VmServer
             Task task = new Task();
             task.name = in.readUTF();
             task.programText = in.readUTF();
+            task.engine = ExecutionEngine.fromName(in.readUTF());
+            task.optimization = OptimizationLevel.fromName(in.readUTF());
             task.creationDate = new java.util.Date().getTime();
+            task.programHash = ProgramCache.hash(task.programText);
+
+            // a program that ran before prints the same again, so it is not run
+            String output = resultCache.get(task.programHash, task.optimization);
+            if (output != null) {
+                ProgramExecuteResult result = new ProgramExecuteResult();
+                result.success = true;
+                result.programOutput = output;
+                saveTask(task, result, 0.0);
+                notifierThread.notifyClients(false, true);
+                return;
+            }
 
-            taskQueue.offer(task);
-            notifierThread.notifyClients(true, false);
-            executorService.execute(new ProgramExecutorThread());
+            scheduler.add(task);
         }
 
         private void newTaskMessage(int taskId, String username, String text) throws IOException
@@ -294,97 +402,120 @@ public class VmServer
 
         void sendTaskHistory() throws IOException
         {
-            try (ResultSet rs = taskHistoryStatement.executeQuery(taskHistoryQuery))
-            {
-                out.writeUTF("<taskHistory>");
-                while (rs.next()) {
-                    out.writeBoolean(true);
-                    out.writeInt(rs.getInt("id"));
-                    out.writeUTF(rs.getString("name"));
-                    out.writeLong(rs.getLong("creation_date"));
-                    out.writeDouble(rs.getDouble("exec_time"));
-                    out.writeInt(rs.getInt("status"));
-                    out.writeInt(rs.getInt("count"));
+            synchronized (out) {
+                try (ResultSet rs = taskHistoryStatement.executeQuery(taskHistoryQuery))
+                {
+                    out.writeUTF("<taskHistory>");
+                    while (rs.next()) {
+                        out.writeBoolean(true);
+                        out.writeInt(rs.getInt("id"));
+                        out.writeUTF(rs.getString("name"));
+                        out.writeLong(rs.getLong("creation_date"));
+                        out.writeDouble(rs.getDouble("exec_time"));
+                        out.writeInt(rs.getInt("status"));
+                        out.writeInt(rs.getInt("count"));
+                    }
+                    out.writeBoolean(false);
                 }
-                out.writeBoolean(false);
-            }
-            catch (SQLException e) {
-                out.writeUTF("<error>");
+                catch (SQLException e) {
+                    out.writeUTF("<error>");
+                }
+                out.flush();
             }
-            out.flush();
         }
 
         void sendTaskQueue() throws IOException
         {
-            out.writeUTF("<taskQueue>");
+            synchronized (out) {
+                out.writeUTF("<taskQueue>");
 
-            for (Task task : taskQueue) {
-                out.writeBoolean(true);
-                out.writeUTF(task.name);
-                out.writeLong(task.creationDate);
-                out.writeInt(task.status.getCode());
-            }
+                for (Task task : scheduler.taskQueue) {
+                    out.writeBoolean(true);
+                    out.writeInt(task.number);
+                    out.writeUTF(task.name);
+                    out.writeLong(task.creationDate);
+                    out.writeInt(task.status.getCode());
+                }
 
-            for (Task task : runningTasks) {
-                out.writeBoolean(true);
-                out.writeUTF(task.name);
-                out.writeLong(task.creationDate);
-                out.writeInt(task.status.getCode());
-            }
+                for (Task task : scheduler.runningTasks) {
+                    out.writeBoolean(true);
+                    out.writeInt(task.number);
+                    out.writeUTF(task.name);
+                    out.writeLong(task.creationDate);
+                    out.writeInt(task.status.getCode());
+                }
 
-            out.writeBoolean(false);
-            out.flush();
+                out.writeBoolean(false);
+                out.flush();
+            }
         }
 
         void sendTaskDetails(int taskId) throws IOException
         {
-            try {
-                taskDetailsStatement.setInt(1, taskId);
-                ResultSet rs = taskDetailsStatement.executeQuery();
-
-                if (!rs.next())
+            synchronized (out) {
+                try {
+                    taskDetailsStatement.setInt(1, taskId);
+                    ResultSet rs = taskDetailsStatement.executeQuery();
+
+                    if (!rs.next())
+                        out.writeUTF("<error>");
+                    else {
+                        out.writeUTF("<taskDetails>");
+                        out.writeInt(taskId);
+                        out.writeUTF(rs.getString("name"));
+                        out.writeLong(rs.getLong("creation_date"));
+                        out.writeUTF(rs.getString("program_text"));
+                        out.writeUTF(rs.getString("output"));
+                        out.writeBoolean(rs.getInt("status") == 1);
+                        out.writeDouble(rs.getDouble("exec_time"));
+                    }
+                    rs.close();
+                }
+                catch (SQLException e) {
                     out.writeUTF("<error>");
-                else {
-                    out.writeUTF("<taskDetails>");
-                    out.writeInt(taskId);
-                    out.writeUTF(rs.getString("name"));
-                    out.writeLong(rs.getLong("creation_date"));
-                    out.writeUTF(rs.getString("program_text"));
-                    out.writeUTF(rs.getString("output"));
-                    out.writeBoolean(rs.getInt("status") == 1);
-                    out.writeDouble(rs.getDouble("exec_time"));
                 }
-                rs.close();
-            }
-            catch (SQLException e) {
-                out.writeUTF("<error>");
+                out.flush();
             }
-            out.flush();
         }
 
         void sendTaskMessages(int taskId, long since) throws IOException
         {
-            try {
-                pullTaskMessagesStatement.setInt(1, taskId);
-                pullTaskMessagesStatement.setLong(2, since);
-                ResultSet rs = pullTaskMessagesStatement.executeQuery();
+            synchronized (out) {
+                try {
+                    pullTaskMessagesStatement.setInt(1, taskId);
+                    pullTaskMessagesStatement.setLong(2, since);
+                    ResultSet rs = pullTaskMessagesStatement.executeQuery();
 
-                out.writeUTF("<taskMessages>");
-                out.writeInt(taskId);
+                    out.writeUTF("<taskMessages>");
+                    out.writeInt(taskId);
 
-                while (rs.next()) {
-                    out.writeBoolean(true);
-                    out.writeInt(rs.getInt("id"));
-                    out.writeUTF(rs.getString("username"));
-                    out.writeUTF(rs.getString("message"));
-                    out.writeLong(rs.getLong("date"));
+                    while (rs.next()) {
+                        out.writeBoolean(true);
+                        out.writeInt(rs.getInt("id"));
+                        out.writeUTF(rs.getString("username"));
+                        out.writeUTF(rs.getString("message"));
+                        out.writeLong(rs.getLong("date"));
+                    }
+                    out.writeBoolean(false);
+                    rs.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
                 }
-                out.writeBoolean(false);
-                rs.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
+                out.flush();
+            }
+        }
+
+        // status is a code of TaskStatus while the task is in the queue, then
+        // 1 or 0 like in task_history, or -1 if the task is not in the queue
+        void sendTaskOutput(int number, int status, String text) throws IOException
+        {
+            synchronized (out) {
+                out.writeUTF("<taskOutput>");
+                out.writeInt(number);
+                out.writeInt(status);
+                out.writeUTF(text);
+                out.flush();
             }
-            out.flush();
         }
     }
 
@@ -444,46 +575,322 @@ public class VmServer
         }
     }
 
-    private class ProgramExecutorThread implements Runnable
+    // Sends the output of tasks to the clients that watch them while they
+    // run, what was added every STREAM_INTERVAL ms and the rest with the
+    // result when the task ends. A client that starts watching late gets
+    // the output from the beginning.
+    //
+    // The output is queued for the TaskOutputSender of each client, no more
+    // than MAX_STREAM_BACKLOG chars ahead of it, and this thread never
+    // writes to a socket, so a client that reads slowly only gets its own
+    // output late. The output of a task is closed here once its watchers
+    // have got all of it.
+    private class OutputStreamer extends Thread
     {
+        // a client watching a task, whether it has been told the status and
+        // the bytes of output queued for it, which only this thread changes
+        private final class Watcher
+        {
+            final ClientThread client;
+            boolean told = false;
+            long sent = 0;
+
+            Watcher(ClientThread client) { this.client = client; }
+        }
+
+        // a task that has ended, its watchers get the rest and the result
+        private final class Ending
+        {
+            final Task task;
+            final ProgramExecuteResult result;
+            final ArrayList<Watcher> watchers;
+
+            Ending(Task task, ProgramExecuteResult result, ArrayList<Watcher> watchers)
+            {
+                this.task = task;
+                this.result = result;
+                this.watchers = watchers;
+            }
+        }
+
+        private final HashMap<Task, ArrayList<Watcher>> watchers = new HashMap<>();
+        private ArrayList<Ending> endings = new ArrayList<>();
+        private final ArrayList<Ending> ending = new ArrayList<>(); // this thread's
+        private boolean woken = false;
+        private boolean stopped = false;
+
+        OutputStreamer() { super("OutputStreamer"); }
+
+        // Watching a task again goes on from where the client is. The status
+        // is sent by this thread so it can't come after the result.
+        void watch(int number, ClientThread client) throws IOException
+        {
+            synchronized (this) {
+                Task task = findTask(number);
+                if (task != null) {
+                    ArrayList<Watcher> list = watchers.computeIfAbsent(task, t -> new ArrayList<>());
+                    if (find(list, client) == null) {
+                        list.add(new Watcher(client));
+                        wakeUp();
+                    }
+                    return;
+                }
+            }
+            client.sendTaskOutput(number, -1, "");
+        }
+
+        synchronized void unwatch(int number, ClientThread client)
+        {
+            for (Map.Entry<Task, ArrayList<Watcher>> e : watchers.entrySet()) {
+                if (e.getKey().number == number)
+                    e.getValue().remove(find(e.getValue(), client));
+            }
+        }
+
+        // The task has ended and is no longer in runningTasks. This thread
+        // sends the rest to its watchers and closes the output, since it may
+        // still be reading it.
+        void finish(Task task, ProgramExecuteResult result)
+        {
+            synchronized (this) {
+                if (!stopped) {
+                    ArrayList<Watcher> list = watchers.remove(task);
+                    endings.add(new Ending(task, result, list != null ? list : new ArrayList<>()));
+                    wakeUp();
+                    return;
+                }
+            }
+            task.output.close();
+        }
+
+        // starts the next round now
+        synchronized void wakeUp()
+        {
+            woken = true;
+            notifyAll();
+        }
+
+        private Watcher find(ArrayList<Watcher> list, ClientThread client)
+        {
+            for (Watcher w : list) {
+                if (w.client == client)
+                    return w;
+            }
+            return null;
+        }
+
+        private Task findTask(int number)
+        {
+            for (Task task : scheduler.runningTasks) {
+                if (task.number == number)
+                    return task;
+            }
+            for (Task task : scheduler.taskQueue) {
+                if (task.number == number)
+                    return task;
+            }
+            return null;
+        }
+
+        // queues what the watcher has not got yet, as much as its client
+        // takes, returns whether it has got all there is
+        private boolean sendOutput(Task task, int status, Watcher w) throws IOException
+        {
+            TaskOutputSender sender = w.client.outputSender;
+            if (!w.told) {
+                sender.send(task.number, status, "");
+                w.told = true;
+            }
+            ProgramOutput output = task.output;
+            if (output == null)
+                return true;
+            while (!sender.isFull()) {
+                byte[] b = output.read(w.sent, MAX_STREAM_CHUNK);
+                if (b.length == 0)
+                    return true;
+                sender.send(task.number, status, new String(b, StandardCharsets.UTF_8));
+                w.sent += b.length;
+            }
+            return false;
+        }
+
+        // returns whether all the watchers have got the result
+        private boolean end(Ending e)
+        {
+            Task task = e.task;
+            for (int i = e.watchers.size() - 1; i >= 0; i--) {
+                Watcher w = e.watchers.get(i);
+                try {
+                    if (w.client.outputSender.isClosed() || !sendOutput(task, task.status.getCode(), w))
+                        continue;
+                } catch (IOException ex) {
+                    // the output can't be read, the client gets the result
+                }
+                // a failed task shows the error after what it printed
+                String text = "";
+                if (!e.result.success)
+                    text = (task.output.available() > 0 ? "\n" : "") + e.result.errorMessage;
+                w.client.outputSender.send(task.number, e.result.success ? 1 : 0, text);
+                e.watchers.remove(i);
+            }
+            e.watchers.removeIf(w -> w.client.outputSender.isClosed());
+            return e.watchers.isEmpty();
+        }
+
         @Override
         public void run()
         {
             try {
-                Task task = taskQueue.take();
-                task.status = TaskStatus.RUNNING;
-                runningTasks.put(task);
+                while (!Thread.currentThread().isInterrupted())
+                {
+                    HashMap<Task, ArrayList<Watcher>> round = new HashMap<>();
+                    synchronized (this) {
+                        if (!woken)
+                            wait(STREAM_INTERVAL);
+                        woken = false;
+                        for (Map.Entry<Task, ArrayList<Watcher>> e : watchers.entrySet())
+                            round.put(e.getKey(), new ArrayList<>(e.getValue()));
+                        ending.addAll(endings);
+                        endings.clear();
+                    }
 
-                notifierThread.notifyClients(true, false);
+                    ArrayList<Watcher> gone = new ArrayList<>();
+                    for (Map.Entry<Task, ArrayList<Watcher>> e : round.entrySet()) {
+                        int status = e.getKey().status.getCode();
+                        for (Watcher w : e.getValue()) {
+                            try {
+                                if (w.client.outputSender.isClosed())
+                                    gone.add(w);
+                                else
+                                    sendOutput(e.getKey(), status, w);
+                            } catch (IOException ex) {
+                                gone.add(w);
+                            }
+                        }
+                    }
+                    if (!gone.isEmpty()) {
+                        synchronized (this) {
+                            for (ArrayList<Watcher> list : watchers.values())
+                                list.removeAll(gone);
+                        }
+                    }
 
-                ProgramExecutor exec = new ProgramExecutor();
+                    for (int i = ending.size() - 1; i >= 0; i--) {
+                        if (end(ending.get(i)))
+                            ending.remove(i).task.output.close();
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                synchronized (this) {
+                    stopped = true;
+                    ending.addAll(endings);
+                    for (Ending e : ending)
+                        e.task.output.close();
+                }
+            }
+        }
+    }
 
-                long dt = new java.util.Date().getTime();
-                ProgramExecuteResult result = exec.execute(task.programText);
-                dt = new java.util.Date().getTime() - dt;
+    // Writes the output of the tasks a client watches to it, from a queue
+    // the OutputStreamer fills, and wakes the OutputStreamer when there is
+    // room in the queue again.
+    private class TaskOutputSender extends Thread
+    {
+        private final class Message
+        {
+            final int number;
+            final int status;
+            final String text;
 
-                if (!result.success)
-                    result.programOutput = result.errorMessage;
+            Message(int number, int status, String text)
+            {
+                this.number = number;
+                this.status = status;
+                this.text = text;
+            }
+        }
 
-                try (PreparedStatement st = connection.prepareStatement(newTaskQuery)) {
-                    st.setString(1, task.name);
-                    st.setLong(2, task.creationDate);
-                    st.setString(3, task.programText);
-                    st.setString(4, result.programOutput);
-                    st.setInt(5, result.success ? 1 : 0);
-                    st.setDouble(6, (double) dt);
+        private final ClientThread client;
+        private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong backlog = new AtomicLong(); // chars queued
+        private volatile boolean closed = false;
 
-                    st.executeUpdate();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+        TaskOutputSender(ClientThread client)
+        {
+            super("TaskOutputSender");
+            this.client = client;
+            setDaemon(true);
+        }
 
-                runningTasks.remove(task);
-                notifierThread.notifyClients(true, true);
+        void send(int number, int status, String text)
+        {
+            backlog.addAndGet(text.length());
+            queue.offer(new Message(number, status, text));
+        }
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        boolean isFull() { return backlog.get() >= MAX_STREAM_BACKLOG; }
+
+        // once the client has gone
+        boolean isClosed() { return closed; }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Message m = queue.take();
+                    client.sendTaskOutput(m.number, m.status, m.text);
+                    long left = backlog.addAndGet(-m.text.length());
+                    if (left < MAX_STREAM_BACKLOG && left + m.text.length() >= MAX_STREAM_BACKLOG)
+                        streamerThread.wakeUp();
+                }
             }
+            catch (IOException | InterruptedException e) {
+                // the client has gone
+            }
+            finally {
+                closed = true;
+                queue.clear();
+            }
+        }
+    }
+
+    private class TaskListener implements TaskScheduler.Listener
+    {
+        @Override
+        public ProgramExecutor start(Task task)
+        {
+            ProgramExecutor exec = new ProgramExecutor(MAX_OUTPUT_MEMORY, MAX_OUTPUT_BYTES);
+            CompiledProgram program = programCache.get(task.programHash, task.programText);
+            exec.start(program, task.engine, task.optimization);
+            return exec;
+        }
+
+        @Override
+        public void queueChanged() {
+            notifierThread.notifyClients(true, false);
+        }
+
+        @Override
+        public void ended(Task task, ProgramExecuteResult result)
+        {
+            if (result.success)
+                resultCache.put(task.programHash, task.optimization, result.programOutput);
+            else
+                result.programOutput = result.errorMessage;
+
+            saveTask(task, result, task.execTime / 1e6);
+        }
+
+        @Override
+        public void removed(Task task, ProgramExecuteResult result)
+        {
+            streamerThread.finish(task, result);
+            notifierThread.notifyClients(true, true);
         }
     }
 
@@ -494,13 +901,17 @@ public class VmServer
 
             System.out.print("starting server...");
             server.start();
-            System.out.println("done\ntype \"stop\" to quit");
+            System.out.println("done\ntype \"stop\" to quit, \"cache\" for program cache statistics");
 
             try {
                 BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
                 String line;
                 do {
                     line = br.readLine().toLowerCase();
+                    if (line.equals("cache")) {
+                        System.out.println(server.programCache);
+                        System.out.println(server.resultCache);
+                    }
                 }
                 while (!line.equals("stop"));
                 server.shutdown();
@@ -0,0 +1,177 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.Arrays;
+
+// Arrays of a running program. Each array is a double[] of its own, and the
+// variable of the array holds its handle, an index into `arrays`. Arrays are
+// allocated by new_arr when their scope is entered and freed by free_arr,
+// with the handle of the first array of the scope, when it is left; since
+// scopes nest, handles are taken and given back like a stack.
+final class ArrayHeap
+{
+    double[][] arrays = new double[16][];
+    int count = 0;
+
+    // a new zero-filled array, returns its handle
+    double allocate(int size) throws ProgramExecuteException
+    {
+        if (count == arrays.length)
+            arrays = Arrays.copyOf(arrays, count * 2);
+        try {
+            arrays[count] = new double[size];
+        }
+        catch (OutOfMemoryError e) {
+            throw new ProgramExecuteException("Not enough memory for an array of " + size + " elements");
+        }
+        return count++;
+    }
+
+    // frees the array with the given handle and all arrays allocated after it
+    void free(double handle)
+    {
+        int first = (int)handle;
+        Arrays.fill(arrays, first, count, null);
+        count = first;
+    }
+
+    double[] get(double handle) { return arrays[(int)handle]; }
+
+    static int checkIndex(double[] array, double index) throws ProgramExecuteException
+    {
+        int i = (int)index;
+        if (i < 0 || i >= array.length)
+            throw new ProgramExecuteException("Array index was out of bounds");
+        return i;
+    }
+
+    static int checkIndex(double[] array, long index) throws ProgramExecuteException
+    {
+        if (index < 0 || index >= array.length)
+            throw new ProgramExecuteException("Array index was out of bounds");
+        return (int)index;
+    }
+
+    static void print(double[] array, ProgramOutput output) throws ProgramExecuteException
+    {
+        output.append("[");
+        output.append(array[0]);
+        for (int i = 1; i < array.length; i++) {
+            output.append(", ");
+            output.append(array[i]);
+        }
+        output.append("]");
+    }
+
+    static void printInt(double[] array, ProgramOutput output) throws ProgramExecuteException
+    {
+        output.append("[");
+        output.append(OpCode.toLong(array[0]));
+        for (int i = 1; i < array.length; i++) {
+            output.append(", ");
+            output.append(OpCode.toLong(array[i]));
+        }
+        output.append("]");
+    }
+
+    // Array functions of the language. Sums and dot products add in four
+    // interleaved partial sums, so that the additions do not wait for each
+    // other and the JIT can keep them in vector lanes; on reals the result
+    // may differ in the last bits from adding the elements in order.
+
+    static double sum(double[] array)
+    {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        for (; i + 3 < array.length; i += 4) {
+            s0 += array[i];
+            s1 += array[i + 1];
+            s2 += array[i + 2];
+            s3 += array[i + 3];
+        }
+        for (; i < array.length; i++)
+            s0 += array[i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static long sumInt(double[] array)
+    {
+        long sum = 0;
+        for (double element : array)
+            sum += OpCode.toLong(element);
+        return sum;
+    }
+
+    // NaN if an element is NaN, like Math.max
+    static double max(double[] array)
+    {
+        double m0 = array[0], m1 = array[0], m2 = array[0], m3 = array[0];
+        int i = 1;
+        for (; i + 3 < array.length; i += 4) {
+            m0 = Math.max(m0, array[i]);
+            m1 = Math.max(m1, array[i + 1]);
+            m2 = Math.max(m2, array[i + 2]);
+            m3 = Math.max(m3, array[i + 3]);
+        }
+        for (; i < array.length; i++)
+            m0 = Math.max(m0, array[i]);
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    static long maxInt(double[] array)
+    {
+        long max = OpCode.toLong(array[0]);
+        for (int i = 1; i < array.length; i++)
+            max = Math.max(max, OpCode.toLong(array[i]));
+        return max;
+    }
+
+    static double dot(double[] a, double[] b) throws ProgramExecuteException
+    {
+        checkSizes(a, b);
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        for (; i + 3 < a.length; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < a.length; i++)
+            s0 += a[i] * b[i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static long dotInt(double[] a, double[] b) throws ProgramExecuteException
+    {
+        checkSizes(a, b);
+        long sum = 0;
+        for (int i = 0; i < a.length; i++)
+            sum += OpCode.toLong(a[i]) * OpCode.toLong(b[i]);
+        return sum;
+    }
+
+    // y = k * x + y
+    static void axpy(double k, double[] x, double[] y) throws ProgramExecuteException
+    {
+        checkSizes(x, y);
+        for (int i = 0; i < x.length; i++)
+            y[i] += k * x[i];
+    }
+
+    static void axpyInt(long k, double[] x, double[] y) throws ProgramExecuteException
+    {
+        checkSizes(x, y);
+        for (int i = 0; i < x.length; i++)
+            y[i] = OpCode.intValue(OpCode.toLong(y[i]) + k * OpCode.toLong(x[i]));
+    }
+
+    static void fill(double[] array, double value) {
+        Arrays.fill(array, value);
+    }
+
+    private static void checkSizes(double[] a, double[] b) throws ProgramExecuteException
+    {
+        if (a.length != b.length)
+            throw new ProgramExecuteException("Array sizes do not match");
+    }
+}
@@ -8,9 +8,34 @@ import java.util.ArrayList;
 class Bytecode
 {
     private ArrayList<Byte> bytecode = new ArrayList<>();
+    private ArrayList<Integer> lines = new ArrayList<>(); // the source line of every byte
+    private int line = 0;
 
     int size() { return bytecode.size(); }
 
+    // the source line of the code put from now on
+    void setLine(int line) { this.line = line; }
+
+    // the source line of every instruction, 0 where it is not known
+    int[] instructionLines()
+    {
+        ArrayList<Integer> result = new ArrayList<>();
+        int i = 0;
+        while (i < bytecode.size()) {
+            result.add(lines.get(i));
+            i += OpCode.fromCode(bytecode.get(i)).size();
+        }
+        int[] array = new int[result.size()];
+        for (int k = 0; k < array.length; k++)
+            array[k] = result.get(k);
+        return array;
+    }
+
+    private void add(byte value) {
+        bytecode.add(value);
+        lines.add(line);
+    }
+
     ByteBuffer toByteBuffer()
     {
         byte[] bytes = new byte[bytecode.size()];
@@ -20,31 +45,46 @@ class Bytecode
     }
 
     void put(OpCode opCode) {
-        bytecode.add(opCode.code);
+        add(opCode.code);
     }
 
     void put(OpCode opCode, int arg) {
-        bytecode.add(opCode.code);
+        add(opCode.code);
         putInt(arg);
     }
 
+    void put(OpCode opCode, int arg1, int arg2) {
+        put(opCode, arg1);
+        putInt(arg2);
+    }
+
     void putValue(double value) {
         put(OpCode.ld_const);
         putDouble(value);
     }
 
+    void putStoreValue(double value, int address) {
+        put(OpCode.st_const);
+        putDouble(value);
+        putInt(address);
+    }
+
+    void putByte(byte value) {
+        add(value);
+    }
+
     void putInt(int value) {
         byte[] bytes = new byte[4];
         ByteBuffer.wrap(bytes).putInt(value);
         for (byte b : bytes)
-            bytecode.add(b);
+            add(b);
     }
 
-    private void putDouble(double value) {
+    void putDouble(double value) {
         byte[] bytes = new byte[8];
         ByteBuffer.wrap(bytes).putDouble(value);
         for (byte b : bytes)
-            bytecode.add(b);
+            add(b);
     }
 
     void putInt(int index, int value) {
@@ -54,16 +94,90 @@ class Bytecode
             bytecode.set(index + i, bytes[i]);
     }
 
+    void putDouble(int index, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        for (int i = 0; i < 8; i++)
+            bytecode.set(index + i, (byte)(bits >>> 56 - 8 * i));
+    }
+
+    OpCode getOpCode(int index) {
+        return OpCode.fromCode(bytecode.get(index));
+    }
+
+    double getDouble(int index) {
+        return Double.longBitsToDouble((long)getInt(index) << 32 | getInt(index + 4) & 0xffffffffL);
+    }
+
     int putLabel() {
         int size = bytecode.size();
         putInt(0);
         return size;
     }
 
+    // drops the code emitted from the given offset on
+    void truncate(int size) {
+        bytecode.subList(size, bytecode.size()).clear();
+        lines.subList(size, lines.size()).clear();
+    }
+
     void markLabel(int label) {
         putInt(label, bytecode.size());
     }
 
+    // removes the code from the given offset on and returns it, to be put
+    // back elsewhere with append(); its jumps may only land inside it
+    Bytecode cut(int start)
+    {
+        Bytecode code = new Bytecode();
+        code.bytecode.addAll(bytecode.subList(start, bytecode.size()));
+        code.lines.addAll(lines.subList(start, lines.size()));
+        truncate(start);
+        code.moveJumps(0, -start);
+        return code;
+    }
+
+    void append(Bytecode code)
+    {
+        int start = bytecode.size();
+        bytecode.addAll(code.bytecode);
+        lines.addAll(code.lines);
+        moveJumps(start, start);
+    }
+
+    // a copy with delta added to the addresses of its variables, to put the
+    // code of a function in place of a call with append()
+    Bytecode relocate(int delta)
+    {
+        Bytecode code = new Bytecode();
+        code.bytecode.addAll(bytecode);
+        code.lines.addAll(lines);
+        int i = 0;
+        while (i < bytecode.size()) {
+            OpCode opCode = OpCode.fromCode(bytecode.get(i));
+            if (opCode.hasAddress())
+                code.putInt(i + 1, getInt(i + 1) + delta);
+            i += opCode.size();
+        }
+        return code;
+    }
+
+    // adds delta to the targets of the jumps from the given offset on
+    private void moveJumps(int from, int delta)
+    {
+        int i = from;
+        while (i < bytecode.size()) {
+            OpCode opCode = OpCode.fromCode(bytecode.get(i));
+            if (opCode.isJump())
+                putInt(i + 1, getInt(i + 1) + delta);
+            i += opCode.size();
+        }
+    }
+
+    int getInt(int index) {
+        return (bytecode.get(index) & 0xff) << 24 | (bytecode.get(index + 1) & 0xff) << 16 |
+            (bytecode.get(index + 2) & 0xff) << 8 | bytecode.get(index + 3) & 0xff;
+    }
+
     void writeToTextFile(String filename)
     {
         try (PrintWriter file = new PrintWriter(filename))
@@ -73,24 +187,30 @@ class Bytecode
             int i = 0;
             while (i < bytecode.size())
             {
-                byte op = buffer.get(i);
-                OpCode opCode = OpCode.values()[op - 1];
+                OpCode opCode = OpCode.fromCode(buffer.get(i));
 
-                if (op >= OpCode.load.code && op <= OpCode.jmpz.code) {
+                if (opCode == OpCode.add_ll) {
+                    file.println(opCode.toString() + " " + buffer.getInt(i + 1) + " " + buffer.getInt(i + 5));
+                }
+                else if (opCode.isLoop()) {
+                    String limit = opCode.size() == 17 ? "" + buffer.getDouble(i + 9) : "" + buffer.getInt(i + 9);
+                    file.println(opCode.toString() + " " + buffer.getInt(i + 1) + " " + buffer.getInt(i + 5) + " " + limit);
+                }
+                else if (opCode == OpCode.st_const) {
+                    file.println(opCode.toString() + " " + buffer.getDouble(i + 1) + " " + buffer.getInt(i + 9));
+                }
+                else if (opCode.size() == 5) {
                     int arg = buffer.getInt(i + 1);
-
                     file.println(opCode.toString() + " " + arg);
-                    i += 5;
                 }
-                else if (op == OpCode.ld_const.code) {
+                else if (opCode == OpCode.ld_const) {
                     double value = buffer.getDouble(i + 1);
                     file.println(opCode.toString() + " " + value);
-                    i += 9;
                 }
                 else {
                     file.println(opCode.toString());
-                    i++;
                 }
+                i += opCode.size();
             }
         }
         catch (IOException e) {
@@ -0,0 +1,235 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Checks decoded bytecode before it runs, by data flow over every reachable
+// instruction, like StackAnalysis but for all of the code the interpreter
+// takes, superinstructions, parfor and calls included. The operand stack
+// depth and the size of the variables area must agree wherever paths meet,
+// no instruction may pop more than the operand stack holds, and variables
+// are only addressed inside the area reserved for them. Decoding already
+// made sure that jumps land on instructions.
+//
+// The main code and every function are checked on their own, a function
+// from its enter with the arguments as its variables; a call is checked
+// against the enter it goes to. What is left for the interpreter to check
+// at run time is only the stack a call needs, since calls may recurse.
+//
+// A program is checked as parsed, so that an error names the same
+// instruction, and its source line, whatever engine and level run it; the
+// optimized code is checked again for the sizes of its stack and frames.
+class BytecodeVerifier
+{
+    final int stackSize;        // slots the main code needs, variables and operands
+    private final int[] growth; // for an enter, the slots a call needs above its arguments
+
+    private BytecodeVerifier(int stackSize, int[] growth)
+    {
+        this.stackSize = stackSize;
+        this.growth = growth;
+    }
+
+    // the slots a call of the function whose enter is at pc needs above the
+    // arguments pushed for it
+    int callGrowth(int pc) { return growth[pc]; }
+
+    static void verify(CompiledProgram program) throws ProgramExecuteException {
+        verify(DecodedProgram.decode(program.bytecode), program);
+    }
+
+    static BytecodeVerifier verify(DecodedProgram code) throws ProgramExecuteException {
+        return verify(code, null);
+    }
+
+    private static BytecodeVerifier verify(DecodedProgram code, CompiledProgram program)
+            throws ProgramExecuteException
+    {
+        int count = code.size();
+        int[] growth = new int[count];
+        int stackSize = new Unit(code, program, -1).verify();
+        for (int pc = 0; pc < count; pc++) {
+            if (code.ops[pc] == Op.ENTER)
+                growth[pc] = new Unit(code, program, pc).verify() - code.args[pc];
+        }
+        return new BytecodeVerifier(stackSize, growth);
+    }
+
+    // The main code or a function, with addresses relative to the same frame
+    // pointer. Returns the size of the frame: the largest variables area
+    // plus operand stack on any path.
+    private static final class Unit
+    {
+        private final DecodedProgram code;
+        private final CompiledProgram program; // null if the code is not as parsed
+        private final int enter;        // -1 for the main code
+        private final int[] depth;      // -1 for instructions not reached yet
+        private final int[] stackPointer;
+        private final ArrayDeque<Integer> work = new ArrayDeque<>();
+        private int frameSize;
+        private int maxStackPointer;
+        private int maxLoad = -1;       // the largest address loaded from
+
+        Unit(DecodedProgram code, CompiledProgram program, int enter)
+        {
+            this.code = code;
+            this.program = program;
+            this.enter = enter;
+            depth = new int[code.size() + 1];
+            stackPointer = new int[code.size() + 1];
+            Arrays.fill(depth, -1);
+        }
+
+        int verify() throws ProgramExecuteException
+        {
+            if (enter == -1) {
+                flowTo(0, 0, 0);
+            }
+            else {
+                // the arguments and the return value are the first variables
+                int parameters = code.args[enter];
+                if (parameters < 0)
+                    throw error("Invalid function", enter);
+                frameSize = maxStackPointer = parameters + 1;
+                flowTo(enter + 1, 0, parameters + 1);
+            }
+
+            while (!work.isEmpty())
+                step(work.pop());
+
+            // an inlined call loads its value from the frame it has just freed
+            if (maxLoad >= maxStackPointer)
+                throw new ProgramExecuteException("Invalid variable address");
+            return frameSize;
+        }
+
+        private void step(int pc) throws ProgramExecuteException
+        {
+            int count = code.size();
+            if (pc == count) {
+                if (enter != -1)
+                    throw error("Function does not return", enter);
+                return;
+            }
+
+            int op = code.ops[pc];
+            int arg = code.args[pc];
+            int d = depth[pc];
+            int sp = stackPointer[pc];
+            int pops, pushes;
+
+            switch (op)
+            {
+                case Op.SUBSP:
+                case Op.ADDSP:
+                    if (d != 0 || arg < 0)
+                        throw error("Invalid variables area", pc);
+                    sp += op == Op.SUBSP ? arg : -arg;
+                    if (sp < 0)
+                        throw error("Invalid variables area", pc);
+                    maxStackPointer = Math.max(maxStackPointer, sp);
+                    pops = pushes = 0;
+                    break;
+                case Op.ADD_LL:
+                    load(arg, pc);
+                    load(code.args2[pc], pc);
+                    pops = 0;
+                    pushes = 1;
+                    break;
+                case Op.ST_CONST:
+                    checkAddress(code.args2[pc], sp, pc);
+                    pops = pushes = 0;
+                    break;
+                case Op.INC:
+                case Op.REDUCE:
+                case Op.REDUCE_I:
+                case Op.PAREND:
+                    if (op != Op.PAREND)
+                        checkAddress(arg, sp, pc);
+                    pops = pushes = 0;
+                    break;
+                case Op.JEQ: case Op.JNE: case Op.JLT: case Op.JGT: case Op.JLE: case Op.JGE:
+                    pops = 2;
+                    pushes = 0;
+                    break;
+                case Op.PARFOR:
+                    // the body starts with the index on the operand stack,
+                    // the loop as a whole pops lo and hi
+                    if (d < 2)
+                        throw error("Operand stack underflow", pc);
+                    flowTo(arg, d - 2, sp);
+                    pops = 2;
+                    pushes = 1;
+                    break;
+                case Op.CALL:
+                    pops = code.args[arg];
+                    pushes = 1;
+                    break;
+                case Op.ENTER:
+                    throw error("Invalid function", pc);
+                case Op.RET:
+                    if (enter == -1 || d != 0 || sp != code.args[enter] + 1)
+                        throw error("Invalid return", pc);
+                    return;
+                default:
+                    if (op >= Op.FOR_LT && op <= Op.FOR_GE_CONST ||
+                            op >= Op.FOR_LT_I && op <= Op.FOR_GE_CONST_I) {
+                        checkAddress(code.args2[pc], sp, pc);
+                        if (op < Op.FOR_LT_CONST || op > Op.FOR_GE_CONST && op < Op.FOR_LT_CONST_I)
+                            load(code.args3[pc], pc);
+                        pops = pushes = 0;
+                        break;
+                    }
+                    if (op == Op.LOAD)
+                        load(arg, pc);
+                    else if (OpCode.fromCode(op).hasAddress())
+                        checkAddress(arg, sp, pc);
+                    pops = StackAnalysis.operandCount(op);
+                    pushes = pops + StackAnalysis.stackEffect(op);
+            }
+
+            if (d < pops)
+                throw error("Operand stack underflow", pc);
+            int next = d - pops + pushes;
+            frameSize = Math.max(frameSize, sp + Math.max(d, next));
+
+            if (OpCode.fromCode(op).isJump() && op != Op.PARFOR)
+                flowTo(arg, next, sp);
+            if (op != Op.JMP)
+                flowTo(pc + 1, next, sp);
+        }
+
+        // store, array and loop instructions work on live variables only
+        private void checkAddress(int address, int sp, int pc) throws ProgramExecuteException
+        {
+            if (address < 0 || address >= sp)
+                throw error("Invalid variable address", pc);
+        }
+
+        private void load(int address, int pc) throws ProgramExecuteException
+        {
+            if (address < 0)
+                throw error("Invalid variable address", pc);
+            maxLoad = Math.max(maxLoad, address);
+        }
+
+        private void flowTo(int pc, int d, int sp) throws ProgramExecuteException
+        {
+            if (depth[pc] == -1) {
+                depth[pc] = d;
+                stackPointer[pc] = sp;
+                work.push(pc);
+            }
+            else if (depth[pc] != d || stackPointer[pc] != sp) {
+                throw error("Inconsistent stack at a jump target", pc);
+            }
+        }
+
+        private ProgramExecuteException error(String message, int pc)
+        {
+            int line = program != null ? program.lineOf(pc) : 0;
+            return new ProgramExecuteException(message + " at instruction " + pc +
+                (line > 0 ? " on line " + line : ""));
+        }
+    }
+}
@@ -0,0 +1,1119 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Runtime state of a closure-compiled program. Variables live at the same
+// absolute slots as in the interpreter's stack, so both engines agree on layout.
+class ClosureFrame
+{
+    private static final int INITIAL_STACK_SIZE = 256;
+
+    double[] stack = new double[INITIAL_STACK_SIZE];
+    int sp = 0;
+    final double[] temps;
+    final ArrayHeap heap = new ArrayHeap();
+    final ProgramOutput output;
+    final StringHeap strings;
+
+    ClosureFrame(int tempCount, ProgramOutput output, StringHeap strings)
+    {
+        this.temps = new double[tempCount];
+        this.output = output;
+        this.strings = strings;
+    }
+
+    void ensureCapacity(int size) {
+        if (size > stack.length)
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    }
+
+    void push(double value) {
+        if (sp == stack.length)
+            ensureCapacity(sp + 1);
+        stack[sp++] = value;
+    }
+
+    double pop() {
+        return stack[--sp];
+    }
+}
+
+class ClosureProgram
+{
+    private final ClosureCompiler.Block entry;
+    private final int tempCount;
+
+    ClosureProgram(ClosureCompiler.Block entry, int tempCount)
+    {
+        this.entry = entry;
+        this.tempCount = tempCount;
+    }
+
+    void run(ProgramOutput output, StringHeap strings)
+            throws ProgramExecuteException
+    {
+        ClosureFrame frame = new ClosureFrame(tempCount, output, strings);
+        ClosureCompiler.Block block = entry;
+        while (block != null)
+            block = block.run(frame);
+    }
+}
+
+// Compiles decoded bytecode into basic blocks of pre-linked statement and
+// expression nodes. Stack operations inside a block are resolved at compile
+// time into expression trees; only values that cross a statement or block
+// boundary are materialized on the frame's stack. compile() returns null for
+// programs with a parfor loop or a call, which only the interpreter runs.
+class ClosureCompiler
+{
+    private DecodedProgram code;
+    private ArrayList<Expr> valueStack;
+    private ArrayList<Stmt> statements;
+    private int tempCount;
+
+    ClosureProgram compile(DecodedProgram code) throws ProgramExecuteException
+    {
+        this.code = code;
+        valueStack = new ArrayList<>();
+        tempCount = 0;
+
+        int count = code.size();
+        boolean[] leader = new boolean[count + 1];
+        leader[0] = true;
+        for (int pc = 0; pc < count; pc++) {
+            if (code.ops[pc] == Op.PARFOR || code.ops[pc] == Op.CALL)
+                return null;
+            if (code.ops[pc] == Op.JMP || code.ops[pc] == Op.JMPZ) {
+                leader[code.args[pc]] = true;
+                leader[pc + 1] = true;
+            }
+        }
+
+        // block index of every leader, so jumps can be linked before blocks are filled
+        int[] blockOf = new int[count + 1];
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (int pc = 0; pc < count; pc++) {
+            if (leader[pc]) {
+                blockOf[pc] = blocks.size();
+                blocks.add(new Block(blocks.size()));
+            }
+        }
+
+        int pc = 0;
+        while (pc < count)
+        {
+            Block block = blocks.get(blockOf[pc]);
+            statements = new ArrayList<>();
+
+            int end = pc + 1;
+            while (end < count && !leader[end])
+                end++;
+
+            for (; pc < end; pc++) {
+                int op = code.ops[pc];
+                int arg = code.args[pc];
+
+                if (op == Op.JMP) {
+                    flush();
+                    block.next = arg < count ? blocks.get(blockOf[arg]) : null;
+                }
+                else if (op == Op.JMPZ) {
+                    block.condition = pop();
+                    flush();
+                    block.target = arg < count ? blocks.get(blockOf[arg]) : null;
+                    block.next = pc + 1 < count ? blocks.get(blockOf[pc + 1]) : null;
+                }
+                else {
+                    compileInstruction(op, arg);
+                    if (pc + 1 == end) {
+                        flush();
+                        block.next = end < count ? blocks.get(blockOf[end]) : null;
+                    }
+                }
+            }
+
+            block.statements = statements.toArray(new Stmt[0]);
+        }
+
+        joinConditions(blocks);
+        return new ClosureProgram(blocks.isEmpty() ? null : blocks.get(0), tempCount);
+    }
+
+    // && and || compile to chains of blocks that only test a condition. The
+    // block that starts a chain takes over the tests of the blocks after it
+    // as a single short-circuit condition, so the chain costs no more block
+    // transitions than one test.
+    private static void joinConditions(ArrayList<Block> blocks)
+    {
+        for (int i = blocks.size() - 1; i >= 0; i--)
+        {
+            Block block = blocks.get(i);
+            if (block.condition == null)
+                continue;
+            while (true) {
+                block.next = skipEmpty(block.next);
+                block.target = skipEmpty(block.target);
+                Block next = block.next, target = block.target;
+                if (isTest(next, block) && skipEmpty(next.target) == target) {
+                    block.condition = new CondAnd(block.condition, next.condition);
+                    block.next = next.next;
+                }
+                else if (isTest(target, block) && skipEmpty(target.next) == next && target.target != target) {
+                    block.condition = new CondOr(block.condition, target.condition);
+                    block.target = target.target;
+                }
+                else break;
+            }
+        }
+    }
+
+    // a block after the given one that only tests a condition
+    private static boolean isTest(Block b, Block after) {
+        return b != null && b.index > after.index && b.statements.length == 0 && b.condition != null;
+    }
+
+    private static Block skipEmpty(Block b)
+    {
+        while (b != null && b.statements.length == 0 && b.condition == null && b.next != null && b.next.index > b.index)
+            b = b.next;
+        return b;
+    }
+
+    private void compileInstruction(int op, int arg) throws ProgramExecuteException
+    {
+        switch (op)
+        {
+            case Op.LOAD:
+                valueStack.add(new Load(arg));
+                break;
+            case Op.LD_CONST:
+                valueStack.add(new Const(code.constants[arg]));
+                break;
+            case Op.LD_ARR:
+                valueStack.add(new LoadArr(arg, pop()));
+                break;
+            case Op.STORE: {
+                Expr value = pop();
+                flush();
+                statements.add(new Store(arg, value));
+                break;
+            }
+            case Op.ST_ARR: {
+                Expr value = pop();
+                Expr index = pop();
+                flush();
+                statements.add(new StoreArr(arg, index, value));
+                break;
+            }
+            case Op.SUBSP:
+                flush();
+                statements.add(new SubSp(arg));
+                break;
+            case Op.ADDSP:
+                flush();
+                statements.add(new AddSp(arg));
+                break;
+            case Op.NEW_ARR:
+                valueStack.add(new NewArr(arg));
+                break;
+            case Op.FREE_ARR:
+                flush();
+                statements.add(new FreeArr(arg));
+                break;
+            case Op.PRINT_REAL: {
+                Expr value = pop();
+                flush();
+                statements.add(new PrintReal(value));
+                break;
+            }
+            case Op.POP: {
+                Expr value = pop();
+                flush();
+                statements.add(new Eval(value));
+                break;
+            }
+            case Op.PRINT_STR: {
+                Expr value = pop();
+                flush();
+                statements.add(new PrintStr(value));
+                break;
+            }
+            case Op.PRINT_ARR: {
+                Expr value = pop();
+                flush();
+                statements.add(new PrintArr(value));
+                break;
+            }
+            case Op.NOT:
+                valueStack.add(new Not(pop()));
+                break;
+            case Op.NEG:
+                valueStack.add(new Neg(pop()));
+                break;
+            case Op.SQRT:
+                valueStack.add(new Sqrt(pop()));
+                break;
+            case Op.NEG_I:
+                valueStack.add(new NegI(pop()));
+                break;
+            case Op.I2R:
+                valueStack.add(new IntToReal(pop()));
+                break;
+            case Op.LD_ARR_I:
+                valueStack.add(new LoadArrI(arg, pop()));
+                break;
+            case Op.ST_ARR_I: {
+                Expr value = pop();
+                Expr index = pop();
+                flush();
+                statements.add(new StoreArrI(arg, index, value));
+                break;
+            }
+            case Op.PRINT_INT: {
+                Expr value = pop();
+                flush();
+                statements.add(new PrintInt(value));
+                break;
+            }
+            case Op.PRINT_ARR_I: {
+                Expr value = pop();
+                flush();
+                statements.add(new PrintArrI(value));
+                break;
+            }
+            case Op.R2S:
+                valueStack.add(new RealToString(pop()));
+                break;
+            case Op.I2S:
+                valueStack.add(new IntToString(pop()));
+                break;
+            case Op.LEN:
+                valueStack.add(new Len(pop()));
+                break;
+            case Op.INTERN:
+                valueStack.add(new Intern(pop()));
+                break;
+            case Op.SUM:
+                valueStack.add(new Sum(pop()));
+                break;
+            case Op.SUM_I:
+                valueStack.add(new SumI(pop()));
+                break;
+            case Op.MAX:
+                valueStack.add(new Max(pop()));
+                break;
+            case Op.MAX_I:
+                valueStack.add(new MaxI(pop()));
+                break;
+            case Op.AXPY:
+            case Op.AXPY_I: {
+                Expr y = pop();
+                Expr x = pop();
+                Expr k = pop();
+                flush();
+                statements.add(new Axpy(op == Op.AXPY_I, k, x, y));
+                break;
+            }
+            case Op.FILL: {
+                Expr value = pop();
+                Expr array = pop();
+                flush();
+                statements.add(new Fill(array, value));
+                break;
+            }
+            default: {
+                Expr right = pop();
+                Expr left = pop();
+                valueStack.add(binary(op, left, right));
+            }
+        }
+    }
+
+    private static Expr binary(int op, Expr left, Expr right) throws ProgramExecuteException
+    {
+        switch (op)
+        {
+            case Op.ADD: return new Add(left, right);
+            case Op.SUB: return new Sub(left, right);
+            case Op.MUL: return new Mul(left, right);
+            case Op.DIV: return new Div(left, right);
+            case Op.EQ: return new Eq(left, right);
+            case Op.NOTEQ: return new NotEq(left, right);
+            case Op.LSS: return new Lss(left, right);
+            case Op.GRT: return new Grt(left, right);
+            case Op.LSSEQ: return new LssEq(left, right);
+            case Op.GRTEQ: return new GrtEq(left, right);
+            case Op.OR: return new Or(left, right);
+            case Op.AND: return new And(left, right);
+            case Op.ADD_I: return new AddI(left, right);
+            case Op.SUB_I: return new SubI(left, right);
+            case Op.MUL_I: return new MulI(left, right);
+            case Op.EQ_I: return new EqI(left, right);
+            case Op.NOTEQ_I: return new NotEqI(left, right);
+            case Op.LSS_I: return new LssI(left, right);
+            case Op.GRT_I: return new GrtI(left, right);
+            case Op.LSSEQ_I: return new LssEqI(left, right);
+            case Op.GRTEQ_I: return new GrtEqI(left, right);
+            case Op.CONCAT: return new Concat(left, right);
+            case Op.DOT: return new Dot(left, right);
+            case Op.DOT_I: return new DotI(left, right);
+            default:
+                throw new ProgramExecuteException("Unknown instruction");
+        }
+    }
+
+    // A value that was pushed before the current block (or before a flush) is
+    // popped from the frame's stack by a statement at this point, so the
+    // order of stack operations is the same as in the interpreter.
+    private Expr pop()
+    {
+        int n = valueStack.size();
+        if (n > 0)
+            return valueStack.remove(n - 1);
+
+        int temp = tempCount++;
+        statements.add(new PopTemp(temp));
+        return new Temp(temp);
+    }
+
+    private void flush()
+    {
+        for (Expr value : valueStack)
+            statements.add(new Push(value));
+        valueStack.clear();
+    }
+
+    static final class Block
+    {
+        final int index;
+        Stmt[] statements;
+        Expr condition; // null for an unconditional transfer to next
+        Block next;     // fall through, or the branch taken when condition is true
+        Block target;   // branch taken when condition is false
+
+        Block(int index) { this.index = index; }
+
+        Block run(ClosureFrame f) throws ProgramExecuteException
+        {
+            for (Stmt s : statements)
+                s.exec(f);
+            if (condition == null)
+                return next;
+            return condition.test(f) ? next : target;
+        }
+    }
+
+    abstract static class Stmt
+    {
+        abstract void exec(ClosureFrame f) throws ProgramExecuteException;
+    }
+
+    abstract static class Expr
+    {
+        abstract double eval(ClosureFrame f) throws ProgramExecuteException;
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return eval(f) != 0.0;
+        }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException {
+            return OpCode.toLong(eval(f));
+        }
+    }
+
+    // an expression of type int, computed without going through a double
+    abstract static class IntExpr extends Expr
+    {
+        @Override
+        final double eval(ClosureFrame f) throws ProgramExecuteException {
+            return OpCode.intValue(evalInt(f));
+        }
+
+        @Override
+        abstract long evalInt(ClosureFrame f) throws ProgramExecuteException;
+    }
+
+    abstract static class Condition extends Expr
+    {
+        @Override
+        final double eval(ClosureFrame f) throws ProgramExecuteException {
+            return test(f) ? 1.0 : 0.0;
+        }
+    }
+
+    // statements
+
+    private static final class Store extends Stmt
+    {
+        private final int address;
+        private final Expr value;
+
+        Store(int address, Expr value) { this.address = address; this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            f.stack[address] = value.eval(f);
+        }
+    }
+
+    private static final class StoreArr extends Stmt
+    {
+        private final int address;
+        private final Expr index, value;
+
+        StoreArr(int address, Expr index, Expr value) {
+            this.address = address;
+            this.index = index;
+            this.value = value;
+        }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            double i = index.eval(f);
+            double v = value.eval(f);
+            double[] array = f.heap.get(f.stack[address]);
+            array[ArrayHeap.checkIndex(array, i)] = v;
+        }
+    }
+
+    private static final class StoreArrI extends Stmt
+    {
+        private final int address;
+        private final Expr index, value;
+
+        StoreArrI(int address, Expr index, Expr value) {
+            this.address = address;
+            this.index = index;
+            this.value = value;
+        }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            long i = index.evalInt(f);
+            double v = value.eval(f);
+            double[] array = f.heap.get(f.stack[address]);
+            array[ArrayHeap.checkIndex(array, i)] = v;
+        }
+    }
+
+    private static final class SubSp extends Stmt
+    {
+        private final int amount;
+
+        SubSp(int amount) { this.amount = amount; }
+
+        void exec(ClosureFrame f) {
+            f.ensureCapacity(f.sp + amount);
+            Arrays.fill(f.stack, f.sp, f.sp + amount, 0.0);
+            f.sp += amount;
+        }
+    }
+
+    private static final class AddSp extends Stmt
+    {
+        private final int amount;
+
+        AddSp(int amount) { this.amount = amount; }
+
+        void exec(ClosureFrame f) { f.sp -= amount; }
+    }
+
+    private static final class FreeArr extends Stmt
+    {
+        private final int address;
+
+        FreeArr(int address) { this.address = address; }
+
+        void exec(ClosureFrame f) { f.heap.free(f.stack[address]); }
+    }
+
+    private static final class Push extends Stmt
+    {
+        private final Expr value;
+
+        Push(Expr value) { this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException { f.push(value.eval(f)); }
+    }
+
+    private static final class PopTemp extends Stmt
+    {
+        private final int temp;
+
+        PopTemp(int temp) { this.temp = temp; }
+
+        void exec(ClosureFrame f) { f.temps[temp] = f.pop(); }
+    }
+
+    // evaluates a value that is not used, for the errors it may raise
+    private static final class Eval extends Stmt
+    {
+        private final Expr value;
+
+        Eval(Expr value) { this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException { value.eval(f); }
+    }
+
+    private static final class PrintReal extends Stmt
+    {
+        private final Expr value;
+
+        PrintReal(Expr value) { this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            f.output.append(value.eval(f));
+        }
+    }
+
+    private static final class PrintStr extends Stmt
+    {
+        private final Expr value;
+
+        PrintStr(Expr value) { this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            f.output.append(f.strings.get(value.eval(f)));
+        }
+    }
+
+    private static final class PrintArr extends Stmt
+    {
+        private final Expr value;
+
+        PrintArr(Expr value) { this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            ArrayHeap.print(f.heap.get(value.eval(f)), f.output);
+        }
+    }
+
+    private static final class PrintInt extends Stmt
+    {
+        private final Expr value;
+
+        PrintInt(Expr value) { this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            f.output.append(value.evalInt(f));
+        }
+    }
+
+    private static final class PrintArrI extends Stmt
+    {
+        private final Expr value;
+
+        PrintArrI(Expr value) { this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            ArrayHeap.printInt(f.heap.get(value.eval(f)), f.output);
+        }
+    }
+
+    private static final class Axpy extends Stmt
+    {
+        private final boolean isInt;
+        private final Expr k, x, y;
+
+        Axpy(boolean isInt, Expr k, Expr x, Expr y) { this.isInt = isInt; this.k = k; this.x = x; this.y = y; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            if (isInt) {
+                long k = this.k.evalInt(f);
+                ArrayHeap.axpyInt(k, f.heap.get(x.eval(f)), f.heap.get(y.eval(f)));
+            }
+            else {
+                double k = this.k.eval(f);
+                ArrayHeap.axpy(k, f.heap.get(x.eval(f)), f.heap.get(y.eval(f)));
+            }
+        }
+    }
+
+    private static final class Fill extends Stmt
+    {
+        private final Expr array, value;
+
+        Fill(Expr array, Expr value) { this.array = array; this.value = value; }
+
+        void exec(ClosureFrame f) throws ProgramExecuteException {
+            double[] a = f.heap.get(array.eval(f));
+            ArrayHeap.fill(a, value.eval(f));
+        }
+    }
+
+    // expressions
+
+    private static final class Const extends Expr
+    {
+        private final double value;
+
+        Const(double value) { this.value = value; }
+
+        double eval(ClosureFrame f) { return value; }
+    }
+
+    private static final class Load extends Expr
+    {
+        private final int address;
+
+        Load(int address) { this.address = address; }
+
+        double eval(ClosureFrame f) { return f.stack[address]; }
+    }
+
+    private static final class Temp extends Expr
+    {
+        private final int temp;
+
+        Temp(int temp) { this.temp = temp; }
+
+        double eval(ClosureFrame f) { return f.temps[temp]; }
+    }
+
+    private static final class LoadArr extends Expr
+    {
+        private final int address;
+        private final Expr index;
+
+        LoadArr(int address, Expr index) { this.address = address; this.index = index; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            double[] array = f.heap.get(f.stack[address]);
+            return array[ArrayHeap.checkIndex(array, index.eval(f))];
+        }
+    }
+
+    private static final class NewArr extends Expr
+    {
+        private final int size;
+
+        NewArr(int size) { this.size = size; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return f.heap.allocate(size); }
+    }
+
+    private static final class LoadArrI extends Expr
+    {
+        private final int address;
+        private final Expr index;
+
+        LoadArrI(int address, Expr index) { this.address = address; this.index = index; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            double[] array = f.heap.get(f.stack[address]);
+            return array[ArrayHeap.checkIndex(array, index.evalInt(f))];
+        }
+    }
+
+    private static final class Add extends Expr
+    {
+        private final Expr left, right;
+
+        Add(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) + right.eval(f);
+        }
+    }
+
+    private static final class Sub extends Expr
+    {
+        private final Expr left, right;
+
+        Sub(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) - right.eval(f);
+        }
+    }
+
+    private static final class Mul extends Expr
+    {
+        private final Expr left, right;
+
+        Mul(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) * right.eval(f);
+        }
+    }
+
+    private static final class Div extends Expr
+    {
+        private final Expr left, right;
+
+        Div(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) / right.eval(f);
+        }
+    }
+
+    private static final class Eq extends Condition
+    {
+        private final Expr left, right;
+
+        Eq(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) == right.eval(f);
+        }
+    }
+
+    private static final class NotEq extends Condition
+    {
+        private final Expr left, right;
+
+        NotEq(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) != right.eval(f);
+        }
+    }
+
+    private static final class Lss extends Condition
+    {
+        private final Expr left, right;
+
+        Lss(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) < right.eval(f);
+        }
+    }
+
+    private static final class Grt extends Condition
+    {
+        private final Expr left, right;
+
+        Grt(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) > right.eval(f);
+        }
+    }
+
+    private static final class LssEq extends Condition
+    {
+        private final Expr left, right;
+
+        LssEq(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) <= right.eval(f);
+        }
+    }
+
+    private static final class GrtEq extends Condition
+    {
+        private final Expr left, right;
+
+        GrtEq(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.eval(f) >= right.eval(f);
+        }
+    }
+
+    // both operands are evaluated, as in the interpreter, so that an
+    // out-of-bounds access on either side is still reported
+    private static final class Or extends Condition
+    {
+        private final Expr left, right;
+
+        Or(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            boolean l = left.test(f);
+            boolean r = right.test(f);
+            return l || r;
+        }
+    }
+
+    private static final class And extends Condition
+    {
+        private final Expr left, right;
+
+        And(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            boolean l = left.test(f);
+            boolean r = right.test(f);
+            return l && r;
+        }
+    }
+
+    // && and || that skip the right operand, joined from blocks by joinConditions()
+    private static final class CondAnd extends Condition
+    {
+        private final Expr left, right;
+
+        CondAnd(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.test(f) && right.test(f);
+        }
+    }
+
+    private static final class CondOr extends Condition
+    {
+        private final Expr left, right;
+
+        CondOr(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.test(f) || right.test(f);
+        }
+    }
+
+    private static final class Not extends Condition
+    {
+        private final Expr value;
+
+        Not(Expr value) { this.value = value; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return !value.test(f);
+        }
+    }
+
+    private static final class Neg extends Expr
+    {
+        private final Expr value;
+
+        Neg(Expr value) { this.value = value; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return -value.eval(f); }
+    }
+
+    private static final class Sqrt extends Expr
+    {
+        private final Expr value;
+
+        Sqrt(Expr value) { this.value = value; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return Math.sqrt(value.eval(f)); }
+    }
+
+    private static final class AddI extends IntExpr
+    {
+        private final Expr left, right;
+
+        AddI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) + right.evalInt(f);
+        }
+    }
+
+    private static final class SubI extends IntExpr
+    {
+        private final Expr left, right;
+
+        SubI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) - right.evalInt(f);
+        }
+    }
+
+    private static final class MulI extends IntExpr
+    {
+        private final Expr left, right;
+
+        MulI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) * right.evalInt(f);
+        }
+    }
+
+    private static final class NegI extends IntExpr
+    {
+        private final Expr value;
+
+        NegI(Expr value) { this.value = value; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException { return -value.evalInt(f); }
+    }
+
+    private static final class IntToReal extends Expr
+    {
+        private final Expr value;
+
+        IntToReal(Expr value) { this.value = value; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return (double)value.evalInt(f); }
+    }
+
+    private static final class EqI extends Condition
+    {
+        private final Expr left, right;
+
+        EqI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) == right.evalInt(f);
+        }
+    }
+
+    private static final class NotEqI extends Condition
+    {
+        private final Expr left, right;
+
+        NotEqI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) != right.evalInt(f);
+        }
+    }
+
+    private static final class LssI extends Condition
+    {
+        private final Expr left, right;
+
+        LssI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) < right.evalInt(f);
+        }
+    }
+
+    private static final class GrtI extends Condition
+    {
+        private final Expr left, right;
+
+        GrtI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) > right.evalInt(f);
+        }
+    }
+
+    private static final class LssEqI extends Condition
+    {
+        private final Expr left, right;
+
+        LssEqI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) <= right.evalInt(f);
+        }
+    }
+
+    private static final class GrtEqI extends Condition
+    {
+        private final Expr left, right;
+
+        GrtEqI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        boolean test(ClosureFrame f) throws ProgramExecuteException {
+            return left.evalInt(f) >= right.evalInt(f);
+        }
+    }
+
+    private static final class Concat extends Expr
+    {
+        private final Expr left, right;
+
+        Concat(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            return f.strings.concat(left.eval(f), right.eval(f));
+        }
+    }
+
+    private static final class RealToString extends Expr
+    {
+        private final Expr value;
+
+        RealToString(Expr value) { this.value = value; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return f.strings.fromReal(value.eval(f)); }
+    }
+
+    private static final class IntToString extends Expr
+    {
+        private final Expr value;
+
+        IntToString(Expr value) { this.value = value; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return f.strings.fromInt(value.evalInt(f)); }
+    }
+
+    private static final class Len extends IntExpr
+    {
+        private final Expr value;
+
+        Len(Expr value) { this.value = value; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException { return f.strings.length(value.eval(f)); }
+    }
+
+    private static final class Intern extends Expr
+    {
+        private final Expr value;
+
+        Intern(Expr value) { this.value = value; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return f.strings.intern(value.eval(f)); }
+    }
+
+    private static final class Sum extends Expr
+    {
+        private final Expr array;
+
+        Sum(Expr array) { this.array = array; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return ArrayHeap.sum(f.heap.get(array.eval(f))); }
+    }
+
+    private static final class SumI extends IntExpr
+    {
+        private final Expr array;
+
+        SumI(Expr array) { this.array = array; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException { return ArrayHeap.sumInt(f.heap.get(array.eval(f))); }
+    }
+
+    private static final class Max extends Expr
+    {
+        private final Expr array;
+
+        Max(Expr array) { this.array = array; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException { return ArrayHeap.max(f.heap.get(array.eval(f))); }
+    }
+
+    private static final class MaxI extends IntExpr
+    {
+        private final Expr array;
+
+        MaxI(Expr array) { this.array = array; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException { return ArrayHeap.maxInt(f.heap.get(array.eval(f))); }
+    }
+
+    private static final class Dot extends Expr
+    {
+        private final Expr left, right;
+
+        Dot(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        double eval(ClosureFrame f) throws ProgramExecuteException {
+            double[] a = f.heap.get(left.eval(f));
+            return ArrayHeap.dot(a, f.heap.get(right.eval(f)));
+        }
+    }
+
+    private static final class DotI extends IntExpr
+    {
+        private final Expr left, right;
+
+        DotI(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        long evalInt(ClosureFrame f) throws ProgramExecuteException {
+            double[] a = f.heap.get(left.eval(f));
+            return ArrayHeap.dotInt(a, f.heap.get(right.eval(f)));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// A compact encoding of Bytecode, for programs that are kept in memory or
+// written out rather than run right away. It is decoded back to the exact
+// Bytecode it was made from, so the optimizers and engines never see it.
+//
+//   constant count, constants   varint, then 8 bytes each
+//   instructions                opcode byte and its operands
+//
+// Operands are unsigned varints of 7 bits a byte, so variable addresses
+// and sizes below 128 take one byte. Jump targets are signed varints
+// relative to the instruction, counted in instructions, which keeps the
+// jumps of loops and ifs to one byte. Doubles are varint indices into the
+// constant pool instead of 8 bytes inline.
+final class CompactBytecode
+{
+    private CompactBytecode() { }
+
+    static byte[] encode(Bytecode bytecode) throws ProgramExecuteException
+    {
+        ByteBuffer in = bytecode.toByteBuffer();
+        int codeSize = bytecode.size();
+
+        // byte offset -> instruction index, -1 inside an instruction
+        int[] indexOf = new int[codeSize + 1];
+        Arrays.fill(indexOf, -1);
+        int count = 0;
+        for (int ip = 0; ip < codeSize; ) {
+            OpCode opCode = OpCode.fromCode(in.get(ip));
+            if (opCode == null || ip + opCode.size() > codeSize)
+                throw new ProgramExecuteException("Unknown instruction");
+            indexOf[ip] = count++;
+            ip += opCode.size();
+        }
+        indexOf[codeSize] = count;
+
+        Output code = new Output();
+        Output pool = new Output();
+        HashMap<Long, Integer> constants = new HashMap<>();
+
+        int index = 0;
+        for (int ip = 0; ip < codeSize; index++)
+        {
+            OpCode opCode = OpCode.fromCode(in.get(ip));
+            code.put(opCode.code);
+
+            if (opCode == OpCode.ld_const) {
+                code.putVarint(constant(in.getDouble(ip + 1), constants, pool));
+            }
+            else if (opCode == OpCode.st_const) {
+                code.putVarint(constant(in.getDouble(ip + 1), constants, pool));
+                code.putVarint(in.getInt(ip + 9));
+            }
+            else if (opCode == OpCode.add_ll) {
+                code.putVarint(in.getInt(ip + 1));
+                code.putVarint(in.getInt(ip + 5));
+            }
+            else if (opCode.isJump()) {
+                int target = in.getInt(ip + 1);
+                if (target < 0 || target > codeSize || indexOf[target] == -1)
+                    throw new ProgramExecuteException("Invalid jump target");
+                code.putSignedVarint(indexOf[target] - index);
+                if (opCode.isLoop()) {
+                    code.putVarint(in.getInt(ip + 5));
+                    if (opCode.size() == 17)
+                        code.putVarint(constant(in.getDouble(ip + 9), constants, pool));
+                    else
+                        code.putVarint(in.getInt(ip + 9));
+                }
+            }
+            else if (opCode.size() == 5) {
+                code.putVarint(in.getInt(ip + 1));
+            }
+            ip += opCode.size();
+        }
+
+        Output out = new Output();
+        out.putVarint(constants.size());
+        out.put(pool);
+        out.put(code);
+        return out.toByteArray();
+    }
+
+    // decodes the buffer from its position to its limit
+    static Bytecode decode(ByteBuffer in) throws ProgramExecuteException
+    {
+        try {
+            return decodeInstructions(in);
+        }
+        catch (BufferUnderflowException e) {
+            throw new ProgramExecuteException("Unknown instruction");
+        }
+    }
+
+    private static Bytecode decodeInstructions(ByteBuffer in) throws ProgramExecuteException
+    {
+        int constantCount = getVarint(in);
+        if (constantCount < 0 || constantCount > in.remaining() / 8)
+            throw new ProgramExecuteException("Invalid constant pool");
+        double[] constants = new double[constantCount];
+        for (int i = 0; i < constantCount; i++)
+            constants[i] = in.getDouble();
+
+        // instructions with their operands, jump targets as instruction indices
+        int count = 0;
+        OpCode[] opCodes = new OpCode[16];
+        int[] operands = new int[3 * 16];
+        while (in.hasRemaining())
+        {
+            OpCode opCode = OpCode.fromCode(in.get());
+            if (opCode == null)
+                throw new ProgramExecuteException("Unknown instruction");
+            if (count == opCodes.length) {
+                opCodes = Arrays.copyOf(opCodes, count * 2);
+                operands = Arrays.copyOf(operands, 3 * count * 2);
+            }
+            opCodes[count] = opCode;
+
+            int operandCount = 0;
+            if (opCode == OpCode.ld_const)
+                operandCount = 1;
+            else if (opCode == OpCode.st_const || opCode == OpCode.add_ll)
+                operandCount = 2;
+            else if (opCode.isLoop())
+                operandCount = 3;
+            else if (opCode.size() == 5)
+                operandCount = 1;
+
+            for (int i = 0; i < operandCount; i++) {
+                boolean jump = i == 0 && opCode.isJump();
+                operands[3 * count + i] = jump ? count + getSignedVarint(in) : getVarint(in);
+            }
+            count++;
+        }
+
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < count; i++)
+            offsets[i + 1] = offsets[i] + opCodes[i].size();
+
+        Bytecode bytecode = new Bytecode();
+        for (int i = 0; i < count; i++)
+        {
+            OpCode opCode = opCodes[i];
+            int a = operands[3 * i], b = operands[3 * i + 1], c = operands[3 * i + 2];
+            bytecode.put(opCode);
+
+            if (opCode == OpCode.ld_const) {
+                bytecode.putDouble(constant(constants, a));
+            }
+            else if (opCode == OpCode.st_const) {
+                bytecode.putDouble(constant(constants, a));
+                bytecode.putInt(b);
+            }
+            else if (opCode == OpCode.add_ll) {
+                bytecode.putInt(a);
+                bytecode.putInt(b);
+            }
+            else if (opCode.isJump()) {
+                if (a < 0 || a > count)
+                    throw new ProgramExecuteException("Invalid jump target");
+                bytecode.putInt(offsets[a]);
+                if (opCode.isLoop()) {
+                    bytecode.putInt(b);
+                    if (opCode.size() == 17)
+                        bytecode.putDouble(constant(constants, c));
+                    else
+                        bytecode.putInt(c);
+                }
+            }
+            else if (opCode.size() == 5) {
+                bytecode.putInt(a);
+            }
+        }
+        return bytecode;
+    }
+
+    private static int constant(double value, HashMap<Long, Integer> constants, Output pool)
+    {
+        // by raw bits, like the pool of DecodedProgram
+        long bits = Double.doubleToRawLongBits(value);
+        Integer index = constants.get(bits);
+        if (index == null) {
+            index = constants.size();
+            constants.put(bits, index);
+            for (int i = 0; i < 8; i++)
+                pool.put((byte)(bits >>> 56 - 8 * i));
+        }
+        return index;
+    }
+
+    private static double constant(double[] constants, int index) throws ProgramExecuteException
+    {
+        if (index < 0 || index >= constants.length)
+            throw new ProgramExecuteException("Invalid constant");
+        return constants[index];
+    }
+
+    static int getVarint(ByteBuffer in) throws ProgramExecuteException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new ProgramExecuteException("Invalid operand");
+    }
+
+    private static int getSignedVarint(ByteBuffer in) throws ProgramExecuteException
+    {
+        int value = getVarint(in);
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    // a growing byte array, also for the sections of CompiledProgram
+    static final class Output
+    {
+        private byte[] bytes = new byte[64];
+        private int size = 0;
+
+        void put(byte value)
+        {
+            if (size == bytes.length)
+                bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = value;
+        }
+
+        void put(Output other) {
+            for (int i = 0; i < other.size; i++)
+                put(other.bytes[i]);
+        }
+
+        void put(byte[] values) {
+            for (byte b : values)
+                put(b);
+        }
+
+        int size() { return size; }
+
+        // an int as unsigned, at most 5 bytes
+        void putVarint(int value)
+        {
+            while ((value & ~0x7f) != 0) {
+                put((byte)(value & 0x7f | 0x80));
+                value >>>= 7;
+            }
+            put((byte)value);
+        }
+
+        // zigzag, so that small negative values are short too
+        void putSignedVarint(int value) {
+            putVarint(value << 1 ^ value >> 31);
+        }
+
+        byte[] toByteArray() { return Arrays.copyOf(bytes, size); }
+    }
+}
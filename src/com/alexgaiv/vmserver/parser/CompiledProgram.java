@@ -0,0 +1,248 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// A parsed program, which any engine can run at any optimization level,
+// and its file format, so that a program is parsed once and then started
+// right away, here or on another server. Numbers are big-endian:
+//
+//   magic      4 bytes   "VMCP"
+//   version    2 bytes   FORMAT_VERSION, files of other versions are refused
+//   reserved   2 bytes   0
+//   lengths    4 bytes each, of the code, strings and lines sections
+//   checksum   4 bytes   CRC32 of the sections
+//   code       the bytecode as parsed, in the encoding of CompactBytecode,
+//              which includes the constant pool
+//   strings    count, then id, length in bytes and UTF-8 bytes of every
+//              literal in the string table, all varints but the bytes
+//   lines      count of runs, then instruction count and source line of
+//              every run of instructions from the same line, varints
+//
+// The bytecode is kept as parsed, before any optimization, because the
+// engine and the level are only chosen when the program runs. A program
+// that does not parse is kept with its error, which running it reports.
+public final class CompiledProgram
+{
+    static final int FORMAT_VERSION = 2;
+    private static final int MAGIC = 0x564d4350;
+    private static final int HEADER_SIZE = 24;
+
+    final Bytecode bytecode;
+    final HashMap<Integer, String> stringTable;
+    private final int[] lines; // the source line of every instruction, 0 if not known
+    final String error;        // the parse error, null if the program parsed
+
+    private CompiledProgram(Bytecode bytecode, HashMap<Integer, String> stringTable, int[] lines, String error)
+    {
+        this.bytecode = bytecode;
+        this.stringTable = stringTable;
+        this.lines = lines;
+        this.error = error;
+    }
+
+    public static CompiledProgram compile(String program)
+    {
+        ProgramParser parser = new ProgramParser();
+        try {
+            parser.parse(program);
+        }
+        catch (ProgramParseException e) {
+            return new CompiledProgram(null, null, null, e.getMessage());
+        }
+        Bytecode bytecode = parser.getBytecode();
+        return new CompiledProgram(bytecode, parser.getStringTable(), bytecode.instructionLines(), null);
+    }
+
+    int lineOf(int instruction) { return lines[instruction]; }
+
+    // roughly the bytes of memory the program takes, to weigh it in caches
+    public long footprint()
+    {
+        if (error != null)
+            return 64 + 2 * error.length();
+        long size = 64 + 8L * bytecode.size() + 4L * lines.length;
+        for (String s : stringTable.values())
+            size += 48 + 2 * s.length();
+        return size;
+    }
+
+    public void write(Path file) throws IOException
+    {
+        if (error != null)
+            throw new IllegalStateException("the program did not parse");
+        Files.write(file, toBytes());
+    }
+
+    byte[] toBytes()
+    {
+        byte[] code;
+        try {
+            code = CompactBytecode.encode(bytecode);
+        }
+        catch (ProgramExecuteException e) {
+            throw new IllegalStateException("the parser produced malformed bytecode", e);
+        }
+
+        CompactBytecode.Output strings = new CompactBytecode.Output();
+        strings.putVarint(stringTable.size());
+        for (Map.Entry<Integer, String> e : stringTable.entrySet()) {
+            byte[] bytes = e.getValue().getBytes(StandardCharsets.UTF_8);
+            strings.putVarint(e.getKey());
+            strings.putVarint(bytes.length);
+            strings.put(bytes);
+        }
+
+        CompactBytecode.Output runs = new CompactBytecode.Output();
+        int runCount = 0;
+        for (int i = 0; i < lines.length; i++) {
+            if (i == 0 || lines[i] != lines[i - 1])
+                runCount++;
+        }
+        runs.putVarint(runCount);
+        for (int i = 0; i < lines.length; ) {
+            int start = i;
+            while (i < lines.length && lines[i] == lines[start])
+                i++;
+            runs.putVarint(i - start);
+            runs.putVarint(lines[start]);
+        }
+
+        byte[] stringBytes = strings.toByteArray();
+        byte[] lineBytes = runs.toByteArray();
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + code.length + stringBytes.length + lineBytes.length);
+        out.putInt(MAGIC);
+        out.putShort((short)FORMAT_VERSION);
+        out.putShort((short)0);
+        out.putInt(code.length);
+        out.putInt(stringBytes.length);
+        out.putInt(lineBytes.length);
+        out.putInt(0); // checksum, once the sections are in place
+        out.put(code);
+        out.put(stringBytes);
+        out.put(lineBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), HEADER_SIZE, out.capacity() - HEADER_SIZE);
+        out.putInt(HEADER_SIZE - 4, (int)crc.getValue());
+        return out.array();
+    }
+
+    // Maps the file and decodes the program straight from the mapping,
+    // without reading the file into memory first.
+    public static CompiledProgram load(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Not a compiled program: " + file);
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    static CompiledProgram read(ByteBuffer in) throws IOException
+    {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IOException("Not a compiled program");
+        int version = in.getShort() & 0xffff;
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported compiled program version " + version);
+        in.getShort();
+        int codeLength = in.getInt();
+        int stringsLength = in.getInt();
+        int linesLength = in.getInt();
+        int checksum = in.getInt();
+        if (codeLength < 0 || stringsLength < 0 || linesLength < 0 ||
+                (long)codeLength + stringsLength + linesLength != in.remaining())
+            throw new IOException("Truncated compiled program");
+
+        CRC32 crc = new CRC32();
+        crc.update(in.duplicate());
+        if ((int)crc.getValue() != checksum)
+            throw new IOException("Compiled program checksum mismatch");
+
+        try {
+            Bytecode bytecode = CompactBytecode.decode(section(in, codeLength));
+            HashMap<Integer, String> stringTable = readStrings(section(in, stringsLength));
+            int[] lines = readLines(section(in, linesLength), bytecode.instructionLines().length);
+            return new CompiledProgram(bytecode, stringTable, lines, null);
+        }
+        catch (ProgramExecuteException | BufferUnderflowException e) {
+            throw new IOException("Invalid compiled program", e);
+        }
+    }
+
+    // the next length bytes of in, which is moved past them
+    private static ByteBuffer section(ByteBuffer in, int length)
+    {
+        ByteBuffer section = in.slice();
+        section.limit(length);
+        in.position(in.position() + length);
+        return section;
+    }
+
+    private static HashMap<Integer, String> readStrings(ByteBuffer in)
+            throws IOException, ProgramExecuteException
+    {
+        int count = CompactBytecode.getVarint(in);
+        HashMap<Integer, String> strings = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int id = CompactBytecode.getVarint(in);
+            int length = CompactBytecode.getVarint(in);
+            if (id < 0 || length < 0 || length > in.remaining())
+                throw new IOException("Invalid string table");
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            strings.put(id, new String(bytes, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    private static int[] readLines(ByteBuffer in, int count) throws IOException, ProgramExecuteException
+    {
+        int[] lines = new int[count];
+        int runs = CompactBytecode.getVarint(in);
+        int i = 0;
+        for (int r = 0; r < runs; r++) {
+            int length = CompactBytecode.getVarint(in);
+            int line = CompactBytecode.getVarint(in);
+            if (length < 0 || length > count - i)
+                throw new IOException("Invalid line table");
+            for (int end = i + length; i < end; i++)
+                lines[i] = line;
+        }
+        if (i != count)
+            throw new IOException("Invalid line table");
+        return lines;
+    }
+
+    // Compiles programs into files to load later, FILE.vmc for every FILE:
+    //
+    //   java com.alexgaiv.vmserver.parser.CompiledProgram file...
+    public static void main(String[] args) throws IOException
+    {
+        for (String name : args)
+        {
+            String programText = new String(Files.readAllBytes(Paths.get(name)), Charset.defaultCharset());
+            CompiledProgram program = compile(programText);
+            if (program.error != null) {
+                System.out.println(name + ": " + program.error);
+                continue;
+            }
+            program.write(Paths.get(name + ".vmc"));
+            System.out.println(name + ".vmc");
+        }
+    }
+}
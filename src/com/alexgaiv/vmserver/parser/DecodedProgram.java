@@ -0,0 +1,158 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Bytecode decoded once into parallel arrays, one entry per instruction:
+// ops[i] is the opcode, args[i] its operand. Jump operands are resolved to
+// instruction indices and ld_const operands are indices into the constant pool.
+// A call operand, the index of the function, is resolved to the index of the
+// enter instruction of that function; functions are laid out in order.
+// Superinstructions keep their second operand in args2: the y address of
+// add_ll and the target address of st_const, whose args entry is the constant.
+// The for_* loop instructions have their jump target in args, x in args2 and
+// y in args3, a constant pool index for the _const forms.
+class DecodedProgram
+{
+    final int[] ops;
+    final int[] args;
+    final int[] args2;
+    final int[] args3;
+    final double[] constants;
+
+    private DecodedProgram(int[] ops, int[] args, int[] args2, int[] args3, double[] constants)
+    {
+        this.ops = ops;
+        this.args = args;
+        this.args2 = args2;
+        this.args3 = args3;
+        this.constants = constants;
+    }
+
+    int size() { return ops.length; }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof DecodedProgram))
+            return false;
+        DecodedProgram p = (DecodedProgram) o;
+        return Arrays.equals(ops, p.ops) && Arrays.equals(args, p.args) &&
+            Arrays.equals(args2, p.args2) && Arrays.equals(args3, p.args3) &&
+            Arrays.equals(constantBits(), p.constantBits());
+    }
+
+    // Arrays.equals on doubles takes all NaNs as equal, ints must differ by bits
+    private long[] constantBits()
+    {
+        long[] bits = new long[constants.length];
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = Double.doubleToRawLongBits(constants[i]);
+        return bits;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 31 * Arrays.hashCode(ops) + Arrays.hashCode(args);
+        hash = 31 * (31 * hash + Arrays.hashCode(args2)) + Arrays.hashCode(args3);
+        return 31 * hash + Arrays.hashCode(constantBits());
+    }
+
+    static DecodedProgram decode(Bytecode bytecode) throws ProgramExecuteException
+    {
+        ByteBuffer buffer = bytecode.toByteBuffer();
+        int codeSize = bytecode.size();
+
+        // byte offset -> instruction index, -1 for offsets inside an instruction
+        int[] indexOf = new int[codeSize + 1];
+        Arrays.fill(indexOf, -1);
+
+        int count = 0;
+        int ip = 0;
+        ArrayList<Integer> functions = new ArrayList<>();
+        while (ip < codeSize) {
+            OpCode opCode = OpCode.fromCode(buffer.get(ip));
+            if (opCode == null || ip + opCode.size() > codeSize)
+                throw new ProgramExecuteException("Unknown instruction");
+            if (opCode == OpCode.enter)
+                functions.add(count);
+            indexOf[ip] = count++;
+            ip += opCode.size();
+        }
+        indexOf[codeSize] = count;
+
+        int[] ops = new int[count];
+        int[] args = new int[count];
+        int[] args2 = new int[count];
+        int[] args3 = new int[count];
+        ConstantPool pool = new ConstantPool();
+
+        ip = 0;
+        for (int i = 0; i < count; i++)
+        {
+            OpCode opCode = OpCode.fromCode(buffer.get(ip));
+            ops[i] = opCode.code;
+
+            if (opCode == OpCode.ld_const) {
+                args[i] = pool.indexOf(buffer.getDouble(ip + 1));
+            }
+            else if (opCode == OpCode.st_const) {
+                args[i] = pool.indexOf(buffer.getDouble(ip + 1));
+                args2[i] = buffer.getInt(ip + 9);
+            }
+            else if (opCode == OpCode.add_ll) {
+                args[i] = buffer.getInt(ip + 1);
+                args2[i] = buffer.getInt(ip + 5);
+            }
+            else if (opCode.isJump()) {
+                int target = buffer.getInt(ip + 1);
+                if (target < 0 || target > codeSize || indexOf[target] == -1)
+                    throw new ProgramExecuteException("Invalid jump target");
+                args[i] = indexOf[target];
+                if (opCode.isLoop()) {
+                    args2[i] = buffer.getInt(ip + 5);
+                    args3[i] = opCode.size() == 17 ? pool.indexOf(buffer.getDouble(ip + 9)) : buffer.getInt(ip + 9);
+                }
+            }
+            else if (opCode == OpCode.call) {
+                int function = buffer.getInt(ip + 1);
+                if (function < 0 || function >= functions.size())
+                    throw new ProgramExecuteException("Invalid function");
+                args[i] = functions.get(function);
+            }
+            else if (opCode.size() == 5) {
+                args[i] = buffer.getInt(ip + 1);
+            }
+
+            ip += opCode.size();
+        }
+
+        return new DecodedProgram(ops, args, args2, args3, pool.toArray());
+    }
+
+    private static class ConstantPool
+    {
+        private double[] constants = new double[8];
+        private int count = 0;
+        // by raw bits: ints whose bits are NaNs must not share a slot
+        private final HashMap<Long, Integer> index = new HashMap<>();
+
+        int indexOf(double value)
+        {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer i = index.get(bits);
+            if (i == null) {
+                if (count == constants.length)
+                    constants = Arrays.copyOf(constants, count * 2);
+                constants[count] = value;
+                i = count++;
+                index.put(bits, i);
+            }
+            return i;
+        }
+
+        double[] toArray() { return Arrays.copyOf(constants, count); }
+    }
+}
@@ -0,0 +1,232 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.math.BigInteger;
+
+// Writes a double as ASCII straight into a byte array, in the format of
+// Double.toString and with its digits: the shortest decimal that reads back
+// as the same double, the closest one to it if there are several. This is
+// the Schubfach algorithm (R. Giulietti, "The Schubfach way to render
+// doubles"), which gets the digits with a few multiplications by a 126-bit
+// approximation of a power of ten, without big numbers or strings.
+//
+// Double.toString itself only gives the shortest digits since Java 19.
+// Older versions print more digits than needed for some doubles of 2^53
+// and more, so ProgramOutput only formats here the doubles for which the
+// two agree everywhere.
+final class DoubleFormat
+{
+    // the most bytes write may take, "-1.2345678901234567E-308"
+    static final int MAX_LENGTH = 24;
+
+    private static final int P = 53;           // bits of precision
+    private static final int Q_MIN = -1074;    // the exponent of the smallest subnormal
+    private static final long C_MIN = 1L << P - 1;
+    private static final int C_TINY = 3;       // subnormals below it need one more digit
+    private static final int K_MIN = -324, K_MAX = 292;
+    private static final int H = 17;           // the most significant digits a double needs
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    private static final long[] POW10 = new long[H + 1];
+    // for every k, 10^-k as g * 2^r with 2^125 <= g < 2^126, g rounded up,
+    // in two parts of 63 bits
+    private static final long[] G1 = new long[K_MAX - K_MIN + 1];
+    private static final long[] G0 = new long[K_MAX - K_MIN + 1];
+
+    static
+    {
+        POW10[0] = 1;
+        for (int i = 1; i <= H; i++)
+            POW10[i] = 10 * POW10[i - 1];
+
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int shift = 125 - flog2pow10(-k);
+            BigInteger g = k <= 0 ?
+                shiftLeft(BigInteger.TEN.pow(-k), shift) :
+                BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(k));
+            g = g.add(BigInteger.ONE);
+            G1[k - K_MIN] = g.shiftRight(63).longValueExact();
+            G0[k - K_MIN] = g.longValue() & MASK_63;
+        }
+    }
+
+    private DoubleFormat() { }
+
+    // writes a finite value at pos, returns the position after it
+    static int write(double value, byte[] out, int pos)
+    {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & C_MIN - 1;
+        int bq = (int)(bits >>> P - 1) & 0x7ff;
+        if (bq == 0x7ff)
+            throw new IllegalArgumentException("not a finite value: " + value);
+
+        if (bits < 0)
+            out[pos++] = '-';
+        if (bq != 0) {
+            int mq = 1 - Q_MIN - bq; // minus the binary exponent of the last bit
+            long c = C_MIN | t;
+
+            // integral values below 2^53 have their digits already
+            if (mq > 0 && mq < P) {
+                long f = c >> mq;
+                if (f << mq == c)
+                    return writeDigits(f, 0, out, pos);
+            }
+            return shortest(-mq, c, 0, out, pos);
+        }
+        if (t != 0)
+            return t < C_TINY ? shortest(Q_MIN, 10 * t, -1, out, pos) : shortest(Q_MIN, t, 0, out, pos);
+
+        out[pos++] = '0';
+        out[pos++] = '.';
+        out[pos++] = '0';
+        return pos;
+    }
+
+    // the digits of c * 2^q, where the decimals of dk digits more are
+    // looked at if c was scaled by 10^-dk
+    private static int shortest(int q, long c, int dk, byte[] out, int pos)
+    {
+        int odd = (int)c & 1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        // the interval of the decimals that read back as the value is
+        // narrower below a power of two
+        if (c != C_MIN | q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        }
+        else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G1[k - K_MIN];
+        long g0 = G0[k - K_MIN];
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        // a digit less, if one of the two neighbours is inside the interval
+        long s = vb >> 2;
+        if (s >= 100) {
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + odd <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + odd <= vbr;
+            if (upin != wpin)
+                return writeDigits(upin ? sp10 : tp10, k, out, pos);
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + odd <= s << 2;
+        boolean win = (t << 2) + odd <= vbr;
+        if (uin != win)
+            return writeDigits(uin ? s : t, k + dk, out, pos);
+        long cmp = vb - (s + t << 1);
+        return writeDigits(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk, out, pos);
+    }
+
+    // g * cp / 2^127 for g = g1 * 2^63 + g0, rounded to odd
+    private static long roundToOdd(long g1, long g0, long cp)
+    {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    // f * 10^e as Double.toString writes it: plain from 10^-3 up to 10^7,
+    // in scientific notation otherwise, always with a digit after the point
+    private static int writeDigits(long f, int e, byte[] out, int pos)
+    {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int len = 1;
+        while (len < H && f >= POW10[len])
+            len++;
+        int point = len + e; // the value is 0.f * 10^point
+
+        if (point > 0 && point <= 7) {
+            if (len <= point) {
+                putDigits(f, len, out, pos);
+                pos += len;
+                for (int i = len; i < point; i++)
+                    out[pos++] = '0';
+                out[pos++] = '.';
+                out[pos++] = '0';
+                return pos;
+            }
+            putDigits(f / POW10[len - point], point, out, pos);
+            pos += point;
+            out[pos++] = '.';
+            putDigits(f % POW10[len - point], len - point, out, pos);
+            return pos + len - point;
+        }
+        if (point > -3 && point <= 0) {
+            out[pos++] = '0';
+            out[pos++] = '.';
+            for (int i = point; i < 0; i++)
+                out[pos++] = '0';
+            putDigits(f, len, out, pos);
+            return pos + len;
+        }
+
+        putDigits(f / POW10[len - 1], 1, out, pos++);
+        out[pos++] = '.';
+        if (len > 1) {
+            putDigits(f % POW10[len - 1], len - 1, out, pos);
+            pos += len - 1;
+        }
+        else {
+            out[pos++] = '0';
+        }
+        out[pos++] = 'E';
+        int exponent = point - 1;
+        if (exponent < 0) {
+            out[pos++] = '-';
+            exponent = -exponent;
+        }
+        if (exponent >= 100)
+            out[pos++] = (byte)('0' + exponent / 100);
+        if (exponent >= 10)
+            out[pos++] = (byte)('0' + exponent / 10 % 10);
+        out[pos++] = (byte)('0' + exponent % 10);
+        return pos;
+    }
+
+    // the last len digits of f, with leading zeros
+    private static void putDigits(long f, int len, byte[] out, int pos)
+    {
+        for (int i = pos + len - 1; i >= pos; i--) {
+            out[i] = (byte)('0' + f % 10);
+            f /= 10;
+        }
+    }
+
+    private static BigInteger shiftLeft(BigInteger value, int shift) {
+        return shift >= 0 ? value.shiftLeft(shift) : value.shiftRight(-shift);
+    }
+
+    // floor(q * log10(2))
+    private static int flog10pow2(int q) {
+        return (int)(q * 661_971_961_083L >> 41);
+    }
+
+    // floor(log10(3/4 * 2^q))
+    private static int flog10threeQuartersPow2(int q) {
+        return (int)(q * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    // floor(e * log2(10))
+    private static int flog2pow10(int e) {
+        return (int)(e * 913_124_641_741L >> 38);
+    }
+}
@@ -0,0 +1,18 @@
+package com.alexgaiv.vmserver.parser;
+
+public enum ExecutionEngine
+{
+    INTERPRETER,
+    CLOSURE,
+    JVM,
+    REGISTER;
+
+    public static ExecutionEngine fromName(String name) {
+        try {
+            return valueOf(name);
+        }
+        catch (IllegalArgumentException | NullPointerException e) {
+            return INTERPRETER;
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+interface JvmProgram
+{
+    void run(JvmRuntime runtime) throws ProgramExecuteException;
+}
+
+// Called from generated code. Static helpers take the runtime last, so the
+// generated code can push it on top of the operands it already has.
+class JvmRuntime
+{
+    private final ProgramOutput output;
+    private final StringHeap strings;
+    private final ArrayHeap heap = new ArrayHeap();
+
+    JvmRuntime(ProgramOutput output, StringHeap strings)
+    {
+        this.output = output;
+        this.strings = strings;
+    }
+
+    static double eq(double left, double right) { return left == right ? 1.0 : 0.0; }
+    static double noteq(double left, double right) { return left != right ? 1.0 : 0.0; }
+    static double lss(double left, double right) { return left < right ? 1.0 : 0.0; }
+    static double grt(double left, double right) { return left > right ? 1.0 : 0.0; }
+    static double lsseq(double left, double right) { return left <= right ? 1.0 : 0.0; }
+    static double grteq(double left, double right) { return left >= right ? 1.0 : 0.0; }
+    static double or(double left, double right) { return left != 0.0 || right != 0.0 ? 1.0 : 0.0; }
+    static double and(double left, double right) { return left != 0.0 && right != 0.0 ? 1.0 : 0.0; }
+    static double not(double value) { return value != 0.0 ? 0.0 : 1.0; }
+
+    // ints are passed around as doubles holding the bits of the long, see Op
+    static double addInt(double left, double right) { return OpCode.intValue(OpCode.toLong(left) + OpCode.toLong(right)); }
+    static double subInt(double left, double right) { return OpCode.intValue(OpCode.toLong(left) - OpCode.toLong(right)); }
+    static double mulInt(double left, double right) { return OpCode.intValue(OpCode.toLong(left) * OpCode.toLong(right)); }
+    static double negInt(double value) { return OpCode.intValue(-OpCode.toLong(value)); }
+    static double eqInt(double left, double right) { return OpCode.toLong(left) == OpCode.toLong(right) ? 1.0 : 0.0; }
+    static double noteqInt(double left, double right) { return OpCode.toLong(left) != OpCode.toLong(right) ? 1.0 : 0.0; }
+    static double lssInt(double left, double right) { return OpCode.toLong(left) < OpCode.toLong(right) ? 1.0 : 0.0; }
+    static double grtInt(double left, double right) { return OpCode.toLong(left) > OpCode.toLong(right) ? 1.0 : 0.0; }
+    static double lsseqInt(double left, double right) { return OpCode.toLong(left) <= OpCode.toLong(right) ? 1.0 : 0.0; }
+    static double grteqInt(double left, double right) { return OpCode.toLong(left) >= OpCode.toLong(right) ? 1.0 : 0.0; }
+    static double toReal(double value) { return (double)OpCode.toLong(value); }
+
+    static double loadElement(double index, double handle, JvmRuntime runtime) throws ProgramExecuteException
+    {
+        double[] array = runtime.heap.get(handle);
+        return array[ArrayHeap.checkIndex(array, index)];
+    }
+
+    static double loadElementInt(double index, double handle, JvmRuntime runtime) throws ProgramExecuteException
+    {
+        double[] array = runtime.heap.get(handle);
+        return array[ArrayHeap.checkIndex(array, OpCode.toLong(index))];
+    }
+
+    static void storeElement(double index, double value, double handle, JvmRuntime runtime)
+            throws ProgramExecuteException
+    {
+        double[] array = runtime.heap.get(handle);
+        array[ArrayHeap.checkIndex(array, index)] = value;
+    }
+
+    static void storeElementInt(double index, double value, double handle, JvmRuntime runtime)
+            throws ProgramExecuteException
+    {
+        double[] array = runtime.heap.get(handle);
+        array[ArrayHeap.checkIndex(array, OpCode.toLong(index))] = value;
+    }
+
+    static double newArray(int size, JvmRuntime runtime) throws ProgramExecuteException {
+        return runtime.heap.allocate(size);
+    }
+
+    static void freeArrays(double handle, JvmRuntime runtime) {
+        runtime.heap.free(handle);
+    }
+
+    static double concat(double left, double right, JvmRuntime runtime) throws ProgramExecuteException {
+        return runtime.strings.concat(left, right);
+    }
+
+    static double realToString(double value, JvmRuntime runtime) throws ProgramExecuteException {
+        return runtime.strings.fromReal(value);
+    }
+
+    static double intToString(double value, JvmRuntime runtime) throws ProgramExecuteException {
+        return runtime.strings.fromInt(OpCode.toLong(value));
+    }
+
+    static double length(double handle, JvmRuntime runtime) throws ProgramExecuteException {
+        return OpCode.intValue(runtime.strings.length(handle));
+    }
+
+    static double intern(double handle, JvmRuntime runtime) throws ProgramExecuteException {
+        return runtime.strings.intern(handle);
+    }
+
+    static double sum(double handle, JvmRuntime runtime) {
+        return ArrayHeap.sum(runtime.heap.get(handle));
+    }
+
+    static double sumInt(double handle, JvmRuntime runtime) {
+        return OpCode.intValue(ArrayHeap.sumInt(runtime.heap.get(handle)));
+    }
+
+    static double max(double handle, JvmRuntime runtime) {
+        return ArrayHeap.max(runtime.heap.get(handle));
+    }
+
+    static double maxInt(double handle, JvmRuntime runtime) {
+        return OpCode.intValue(ArrayHeap.maxInt(runtime.heap.get(handle)));
+    }
+
+    static double dot(double a, double b, JvmRuntime runtime) throws ProgramExecuteException {
+        return ArrayHeap.dot(runtime.heap.get(a), runtime.heap.get(b));
+    }
+
+    static double dotInt(double a, double b, JvmRuntime runtime) throws ProgramExecuteException {
+        return OpCode.intValue(ArrayHeap.dotInt(runtime.heap.get(a), runtime.heap.get(b)));
+    }
+
+    static void axpy(double k, double x, double y, JvmRuntime runtime) throws ProgramExecuteException {
+        ArrayHeap.axpy(k, runtime.heap.get(x), runtime.heap.get(y));
+    }
+
+    static void axpyInt(double k, double x, double y, JvmRuntime runtime) throws ProgramExecuteException {
+        ArrayHeap.axpyInt(OpCode.toLong(k), runtime.heap.get(x), runtime.heap.get(y));
+    }
+
+    static void fill(double handle, double value, JvmRuntime runtime) {
+        ArrayHeap.fill(runtime.heap.get(handle), value);
+    }
+
+    static void printReal(double value, JvmRuntime runtime) throws ProgramExecuteException {
+        runtime.output.append(value);
+    }
+
+    static void printString(double handle, JvmRuntime runtime) throws ProgramExecuteException {
+        runtime.output.append(runtime.strings.get(handle));
+    }
+
+    static void printArray(double handle, JvmRuntime runtime) throws ProgramExecuteException {
+        ArrayHeap.print(runtime.heap.get(handle), runtime.output);
+    }
+
+    static void printInt(double value, JvmRuntime runtime) throws ProgramExecuteException {
+        runtime.output.append(OpCode.toLong(value));
+    }
+
+    static void printIntArray(double handle, JvmRuntime runtime) throws ProgramExecuteException {
+        ArrayHeap.printInt(runtime.heap.get(handle), runtime.output);
+    }
+}
+
+// Translates decoded bytecode into a JVM class and loads it as a hidden class.
+// Variables become double locals of the generated method; the ones of arrays
+// hold a handle into the ArrayHeap of the runtime. Programs whose operand stack depth differs
+// between paths or is not zero at scope boundaries (only possible with
+// malformed bytecode), or that exceed JVM method limits, are not compiled:
+// compile() returns null and the caller falls back to the interpreter.
+class JvmCompiler
+{
+    private static final int MAX_CACHED_PROGRAMS = 64;
+
+    private static final String PACKAGE = "com/alexgaiv/vmserver/parser/";
+    private static final String RUNTIME = PACKAGE + "JvmRuntime";
+    private static final String RUNTIME_DESC = "L" + RUNTIME + ";";
+
+    // generated method locals: 0 - this, 1 - runtime, then two for every variable
+    private static final int RUNTIME_LOCAL = 1;
+    private static final int FIRST_VARIABLE_LOCAL = 2;
+
+    private static final Map<DecodedProgram, JvmProgram> cache =
+        new LinkedHashMap<DecodedProgram, JvmProgram>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DecodedProgram, JvmProgram> eldest) {
+                return size() > MAX_CACHED_PROGRAMS;
+            }
+        };
+
+    private DecodedProgram code;
+    private StackAnalysis stack;
+    private int localCount;
+
+    static JvmProgram compile(DecodedProgram code)
+    {
+        synchronized (cache) {
+            JvmProgram program = cache.get(code);
+            if (program != null)
+                return program;
+        }
+
+        JvmProgram program = new JvmCompiler().generate(code);
+        if (program != null) {
+            synchronized (cache) {
+                cache.put(code, program);
+            }
+        }
+        return program;
+    }
+
+    private JvmProgram generate(DecodedProgram code)
+    {
+        this.code = code;
+        stack = StackAnalysis.analyze(code);
+        if (stack == null)
+            return null;
+        localCount = FIRST_VARIABLE_LOCAL + 2 * stack.maxStackPointer;
+        if (localCount > 0xFFFF)
+            return null;
+
+        byte[] classFile = writeClass();
+        if (classFile == null)
+            return null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (JvmProgram) lookup.findConstructor(lookup.lookupClass(),
+                MethodType.methodType(void.class)).invoke();
+        }
+        catch (Throwable e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static int local(int address) { return FIRST_VARIABLE_LOCAL + 2 * address; }
+
+    private byte[] writeClass()
+    {
+        ClassFile cf = new ClassFile();
+        CodeBuffer c = new CodeBuffer();
+        int count = code.size();
+        int[] position = new int[count + 1];
+
+        // all variables start as zero
+        for (int address = 0; address < stack.maxStackPointer; address++) {
+            c.u1(0x0e); // dconst_0
+            c.storeDouble(local(address));
+        }
+
+        for (int pc = 0; pc < count; pc++)
+        {
+            position[pc] = c.size();
+            if (!stack.isReachable(pc))
+                continue;
+
+            int op = code.ops[pc];
+            int arg = code.args[pc];
+
+            switch (op)
+            {
+                case Op.LOAD:
+                    c.loadDouble(local(arg));
+                    break;
+                case Op.STORE:
+                    c.storeDouble(local(arg));
+                    break;
+                case Op.LD_ARR:
+                case Op.LD_ARR_I:
+                    c.loadDouble(local(arg));
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, op == Op.LD_ARR ? "loadElement" : "loadElementInt",
+                        "(DD" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.ST_ARR:
+                case Op.ST_ARR_I:
+                    c.loadDouble(local(arg));
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, op == Op.ST_ARR ? "storeElement" : "storeElementInt",
+                        "(DDD" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.NEW_ARR:
+                    c.pushInt(cf, arg);
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "newArray", "(I" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.FREE_ARR:
+                    c.loadDouble(local(arg));
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "freeArrays", "(D" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.SUBSP: {
+                    int from = stack.stackPointer[pc];
+                    for (int address = from; address < from + arg; address++) {
+                        c.u1(0x0e); // dconst_0
+                        c.storeDouble(local(address));
+                    }
+                    break;
+                }
+                case Op.ADDSP:
+                    break;
+                case Op.JMP:
+                    c.branch(0xa7, arg); // goto
+                    break;
+                case Op.JMPZ:
+                    c.u1(0x0e); // dconst_0
+                    c.u1(0x97); // dcmpl
+                    c.branch(0x99, arg); // ifeq
+                    break;
+                case Op.LD_CONST: {
+                    double value = code.constants[arg];
+                    if (Double.doubleToRawLongBits(value) == 0L)
+                        c.u1(0x0e); // dconst_0
+                    else if (value == 1.0)
+                        c.u1(0x0f); // dconst_1
+                    else {
+                        c.u1(0x14); // ldc2_w
+                        c.u2(cf.doubleConstant(value));
+                    }
+                    break;
+                }
+                case Op.ADD: c.u1(0x63); break; // dadd
+                case Op.SUB: c.u1(0x67); break; // dsub
+                case Op.MUL: c.u1(0x6b); break; // dmul
+                case Op.DIV: c.u1(0x6f); break; // ddiv
+                case Op.NEG: c.u1(0x77); break; // dneg
+                case Op.POP: c.u1(0x58); break; // pop2
+                case Op.EQ: c.invokeStatic(cf, RUNTIME, "eq", "(DD)D"); break;
+                case Op.NOTEQ: c.invokeStatic(cf, RUNTIME, "noteq", "(DD)D"); break;
+                case Op.LSS: c.invokeStatic(cf, RUNTIME, "lss", "(DD)D"); break;
+                case Op.GRT: c.invokeStatic(cf, RUNTIME, "grt", "(DD)D"); break;
+                case Op.LSSEQ: c.invokeStatic(cf, RUNTIME, "lsseq", "(DD)D"); break;
+                case Op.GRTEQ: c.invokeStatic(cf, RUNTIME, "grteq", "(DD)D"); break;
+                case Op.OR: c.invokeStatic(cf, RUNTIME, "or", "(DD)D"); break;
+                case Op.AND: c.invokeStatic(cf, RUNTIME, "and", "(DD)D"); break;
+                case Op.NOT: c.invokeStatic(cf, RUNTIME, "not", "(D)D"); break;
+                case Op.SQRT: c.invokeStatic(cf, "java/lang/Math", "sqrt", "(D)D"); break;
+                case Op.ADD_I: c.invokeStatic(cf, RUNTIME, "addInt", "(DD)D"); break;
+                case Op.SUB_I: c.invokeStatic(cf, RUNTIME, "subInt", "(DD)D"); break;
+                case Op.MUL_I: c.invokeStatic(cf, RUNTIME, "mulInt", "(DD)D"); break;
+                case Op.NEG_I: c.invokeStatic(cf, RUNTIME, "negInt", "(D)D"); break;
+                case Op.EQ_I: c.invokeStatic(cf, RUNTIME, "eqInt", "(DD)D"); break;
+                case Op.NOTEQ_I: c.invokeStatic(cf, RUNTIME, "noteqInt", "(DD)D"); break;
+                case Op.LSS_I: c.invokeStatic(cf, RUNTIME, "lssInt", "(DD)D"); break;
+                case Op.GRT_I: c.invokeStatic(cf, RUNTIME, "grtInt", "(DD)D"); break;
+                case Op.LSSEQ_I: c.invokeStatic(cf, RUNTIME, "lsseqInt", "(DD)D"); break;
+                case Op.GRTEQ_I: c.invokeStatic(cf, RUNTIME, "grteqInt", "(DD)D"); break;
+                case Op.I2R: c.invokeStatic(cf, RUNTIME, "toReal", "(D)D"); break;
+                case Op.CONCAT:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "concat", "(DD" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.R2S:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "realToString", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.I2S:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "intToString", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.LEN:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "length", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.INTERN:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "intern", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.SUM:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "sum", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.SUM_I:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "sumInt", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.MAX:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "max", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.MAX_I:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "maxInt", "(D" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.DOT:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "dot", "(DD" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.DOT_I:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "dotInt", "(DD" + RUNTIME_DESC + ")D");
+                    break;
+                case Op.AXPY:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "axpy", "(DDD" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.AXPY_I:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "axpyInt", "(DDD" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.FILL:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "fill", "(DD" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.PRINT_REAL:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "printReal", "(D" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.PRINT_STR:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "printString", "(D" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.PRINT_ARR:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "printArray", "(D" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.PRINT_INT:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "printInt", "(D" + RUNTIME_DESC + ")V");
+                    break;
+                case Op.PRINT_ARR_I:
+                    c.loadRef(RUNTIME_LOCAL);
+                    c.invokeStatic(cf, RUNTIME, "printIntArray", "(D" + RUNTIME_DESC + ")V");
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        position[count] = c.size();
+        c.u1(0xb1); // return
+
+        if (!c.patchBranches(position) || c.size() > 0xFFFF)
+            return null;
+
+        return cf.write(c, 2 * stack.maxDepth + 8, localCount);
+    }
+
+    private static class ByteVector
+    {
+        byte[] bytes = new byte[256];
+        int size = 0;
+
+        int size() { return size; }
+
+        byte[] toByteArray() { return Arrays.copyOf(bytes, size); }
+
+        void u1(int value)
+        {
+            if (size == bytes.length)
+                bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte)value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void u8(long value) {
+            u4((int)(value >> 32));
+            u4((int)value);
+        }
+
+        void put(byte[] values) {
+            for (byte b : values)
+                u1(b);
+        }
+
+        void put(ByteVector vector) {
+            for (int i = 0; i < vector.size; i++)
+                u1(vector.bytes[i]);
+        }
+    }
+
+    private static final class CodeBuffer extends ByteVector
+    {
+        private int[] branchAt = new int[16];     // offsets of branch opcodes
+        private int[] branchTarget = new int[16]; // target instruction indices
+        private int branchCount = 0;
+
+        void pushInt(ClassFile cf, int value)
+        {
+            if (value >= -1 && value <= 5)
+                u1(0x03 + value); // iconst_<n>
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(0x10); u1(value); // bipush
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(0x11); u2(value); // sipush
+            }
+            else {
+                u1(0x13); u2(cf.intConstant(value)); // ldc_w
+            }
+        }
+
+        void loadRef(int local) {
+            u1(0x19); u1(local); // aload, the reference locals are all below 256
+        }
+
+        void loadDouble(int local) { wideLocal(0x18, local); }
+        void storeDouble(int local) { wideLocal(0x39, local); }
+
+        private void wideLocal(int opcode, int local)
+        {
+            if (local > 0xFF) {
+                u1(0xc4); u1(opcode); u2(local); // wide
+            }
+            else {
+                u1(opcode); u1(local);
+            }
+        }
+
+        void invokeStatic(ClassFile cf, String owner, String name, String descriptor) {
+            u1(0xb8);
+            u2(cf.methodRef(owner, name, descriptor));
+        }
+
+        void branch(int opcode, int target)
+        {
+            if (branchCount == branchAt.length) {
+                branchAt = Arrays.copyOf(branchAt, branchCount * 2);
+                branchTarget = Arrays.copyOf(branchTarget, branchCount * 2);
+            }
+            branchAt[branchCount] = size;
+            branchTarget[branchCount++] = target;
+            u1(opcode);
+            u2(0);
+        }
+
+        boolean patchBranches(int[] position)
+        {
+            for (int i = 0; i < branchCount; i++) {
+                int offset = position[branchTarget[i]] - branchAt[i];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                    return false;
+                bytes[branchAt[i] + 1] = (byte)(offset >> 8);
+                bytes[branchAt[i] + 2] = (byte)offset;
+            }
+            return true;
+        }
+    }
+
+    // Minimal class file writer: one class implementing JvmProgram with a
+    // default constructor and run(). Version 49 class files are verified by
+    // type inference, so no StackMapTable is needed.
+    private static final class ClassFile
+    {
+        private final ByteVector pool = new ByteVector();
+        private final HashMap<String, Integer> entries = new HashMap<>();
+        private int poolCount = 1;
+
+        private Integer lookup(String key) { return entries.get(key); }
+
+        private int add(String key, int slots)
+        {
+            int index = poolCount;
+            poolCount += slots;
+            entries.put(key, index);
+            return index;
+        }
+
+        int utf8(String s)
+        {
+            Integer index = lookup("U" + s);
+            if (index != null)
+                return index;
+
+            byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            pool.u1(1);
+            pool.u2(bytes.length);
+            pool.put(bytes);
+            return add("U" + s, 1);
+        }
+
+        int intConstant(int value)
+        {
+            Integer index = lookup("I" + value);
+            if (index != null)
+                return index;
+
+            pool.u1(3);
+            pool.u4(value);
+            return add("I" + value, 1);
+        }
+
+        int doubleConstant(double value)
+        {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = lookup("D" + bits);
+            if (index != null)
+                return index;
+
+            pool.u1(6);
+            pool.u8(bits);
+            return add("D" + bits, 2);
+        }
+
+        int classRef(String name)
+        {
+            Integer index = lookup("C" + name);
+            if (index != null)
+                return index;
+
+            int n = utf8(name);
+            pool.u1(7);
+            pool.u2(n);
+            return add("C" + name, 1);
+        }
+
+        int methodRef(String owner, String name, String descriptor)
+        {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = lookup(key);
+            if (index != null)
+                return index;
+
+            int c = classRef(owner);
+            int n = utf8(name), d = utf8(descriptor);
+            pool.u1(12); // NameAndType
+            pool.u2(n);
+            pool.u2(d);
+            int nameAndType = add("N" + name + descriptor, 1);
+
+            pool.u1(10);
+            pool.u2(c);
+            pool.u2(nameAndType);
+            return add(key, 1);
+        }
+
+        byte[] write(CodeBuffer run, int maxStack, int maxLocals)
+        {
+            int thisClass = classRef(PACKAGE + "JvmGeneratedProgram");
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef(PACKAGE + "JvmProgram");
+            int superInit = methodRef("java/lang/Object", "<init>", "()V");
+            int init = utf8("<init>"), initDesc = utf8("()V");
+            int runName = utf8("run"), runDesc = utf8("(" + RUNTIME_DESC + ")V");
+            int codeAttr = utf8("Code");
+
+            ByteVector out = new ByteVector();
+            out.u4(0xCAFEBABE);
+            out.u2(0);
+            out.u2(49);
+            out.u2(poolCount);
+            out.put(pool);
+
+            out.u2(0x0030); // final, super
+            out.u2(thisClass);
+            out.u2(superClass);
+            out.u2(1);
+            out.u2(iface);
+            out.u2(0); // fields
+
+            out.u2(2); // methods
+
+            ByteVector initCode = new ByteVector();
+            initCode.u1(0x2a); // aload_0
+            initCode.u1(0xb7); // invokespecial
+            initCode.u2(superInit);
+            initCode.u1(0xb1); // return
+            out.u2(0x0001);
+            out.u2(init);
+            out.u2(initDesc);
+            writeCode(out, codeAttr, initCode, 1, 1);
+
+            out.u2(0x0001);
+            out.u2(runName);
+            out.u2(runDesc);
+            writeCode(out, codeAttr, run, maxStack, maxLocals);
+
+            out.u2(0); // class attributes
+            return out.toByteArray();
+        }
+
+        private static void writeCode(ByteVector out, int codeAttr, ByteVector code,
+                                      int maxStack, int maxLocals)
+        {
+            out.u2(1); // attributes
+            out.u2(codeAttr);
+            out.u4(12 + code.size());
+            out.u2(maxStack);
+            out.u2(maxLocals);
+            out.u4(code.size());
+            out.put(code);
+            out.u2(0); // exception table
+            out.u2(0); // code attributes
+        }
+    }
+}
@@ -2,36 +2,375 @@ package com.alexgaiv.vmserver.parser;
 
 enum OpCode
 {
-    load(1),
-    store(2),
-    ld_arr(3),
-    st_arr(4),
-    subsp(5),
-    addsp(6),
-    jmp(7),
-    jmpz(8),
-
-    ld_const(9),
-
-    eq(10),
-    noteq(11),
-    lss(12),
-    grt(13),
-    lsseq(14),
-    grteq(15),
-    add(16),
-    sub(17),
-    mul(18),
-    div(19),
-    or(20),
-    and(21),
-    not(22),
-    neg(23),
-    print_real(24),
-    print_str(25),
-    print_arr(26),
-    sqrt(27);
+    load(Op.LOAD),
+    store(Op.STORE),
+    ld_arr(Op.LD_ARR),
+    st_arr(Op.ST_ARR),
+    subsp(Op.SUBSP),
+    addsp(Op.ADDSP),
+    jmp(Op.JMP),
+    jmpz(Op.JMPZ),
+
+    ld_const(Op.LD_CONST),
+
+    eq(Op.EQ),
+    noteq(Op.NOTEQ),
+    lss(Op.LSS),
+    grt(Op.GRT),
+    lsseq(Op.LSSEQ),
+    grteq(Op.GRTEQ),
+    add(Op.ADD),
+    sub(Op.SUB),
+    mul(Op.MUL),
+    div(Op.DIV),
+    or(Op.OR),
+    and(Op.AND),
+    not(Op.NOT),
+    neg(Op.NEG),
+    print_real(Op.PRINT_REAL),
+    print_str(Op.PRINT_STR),
+    print_arr(Op.PRINT_ARR),
+    sqrt(Op.SQRT),
+
+    // int values, see Op
+    add_i(Op.ADD_I),
+    sub_i(Op.SUB_I),
+    mul_i(Op.MUL_I),
+    neg_i(Op.NEG_I),
+    eq_i(Op.EQ_I),
+    noteq_i(Op.NOTEQ_I),
+    lss_i(Op.LSS_I),
+    grt_i(Op.GRT_I),
+    lsseq_i(Op.LSSEQ_I),
+    grteq_i(Op.GRTEQ_I),
+    i2r(Op.I2R),
+    ld_arr_i(Op.LD_ARR_I),
+    st_arr_i(Op.ST_ARR_I),
+    print_int(Op.PRINT_INT),
+    print_arr_i(Op.PRINT_ARR_I),
+
+    new_arr(Op.NEW_ARR),
+    free_arr(Op.FREE_ARR),
+
+    concat(Op.CONCAT),
+    r2s(Op.R2S),
+    i2s(Op.I2S),
+    len(Op.LEN),
+
+    sum(Op.SUM),
+    sum_i(Op.SUM_I),
+    max(Op.MAX),
+    max_i(Op.MAX_I),
+    dot(Op.DOT),
+    dot_i(Op.DOT_I),
+    axpy(Op.AXPY),
+    axpy_i(Op.AXPY_I),
+    fill(Op.FILL),
+
+    parfor(Op.PARFOR),
+    parend(Op.PAREND),
+    reduce(Op.REDUCE),
+    reduce_i(Op.REDUCE_I),
+
+    call(Op.CALL),
+    enter(Op.ENTER),
+    ret(Op.RET),
+    pop(Op.POP),
+
+    intern(Op.INTERN),
+
+    // superinstructions, produced only by PeepholeOptimizer
+    add_ll(Op.ADD_LL),
+    st_const(Op.ST_CONST),
+    inc(Op.INC),
+    jeq(Op.JEQ),
+    jne(Op.JNE),
+    jlt(Op.JLT),
+    jgt(Op.JGT),
+    jle(Op.JLE),
+    jge(Op.JGE),
+    for_lt(Op.FOR_LT),
+    for_le(Op.FOR_LE),
+    for_gt(Op.FOR_GT),
+    for_ge(Op.FOR_GE),
+    for_lt_const(Op.FOR_LT_CONST),
+    for_le_const(Op.FOR_LE_CONST),
+    for_gt_const(Op.FOR_GT_CONST),
+    for_ge_const(Op.FOR_GE_CONST),
+    for_lt_i(Op.FOR_LT_I),
+    for_le_i(Op.FOR_LE_I),
+    for_gt_i(Op.FOR_GT_I),
+    for_ge_i(Op.FOR_GE_I),
+    for_lt_const_i(Op.FOR_LT_CONST_I),
+    for_le_const_i(Op.FOR_LE_CONST_I),
+    for_gt_const_i(Op.FOR_GT_CONST_I),
+    for_ge_const_i(Op.FOR_GE_CONST_I);
 
     byte code;
     OpCode(int code) { this.code = (byte)code; }
+
+    private static final OpCode[] byCode;
+
+    static {
+        OpCode[] values = values();
+        byCode = new OpCode[values.length + 1];
+        for (OpCode opCode : values)
+            byCode[opCode.code] = opCode;
+    }
+
+    static OpCode fromCode(int code) {
+        return code > 0 && code < byCode.length ? byCode[code] : null;
+    }
+
+    // size of the instruction in bytes, including the opcode
+    int size()
+    {
+        if (code >= Op.LOAD && code <= Op.JMPZ || code == Op.INC || code >= Op.JEQ && code <= Op.JGE ||
+                code == Op.LD_ARR_I || code == Op.ST_ARR_I || code == Op.NEW_ARR || code == Op.FREE_ARR ||
+                code == Op.PARFOR || code == Op.REDUCE || code == Op.REDUCE_I || code == Op.CALL || code == Op.ENTER)
+            return 5;
+        if (code == Op.LD_CONST || code == Op.ADD_LL)
+            return 9;
+        if (code == Op.ST_CONST || code >= Op.FOR_LT && code <= Op.FOR_GE || code >= Op.FOR_LT_I && code <= Op.FOR_GE_I)
+            return 13;
+        if (code >= Op.FOR_LT_CONST && code <= Op.FOR_GE_CONST || code >= Op.FOR_LT_CONST_I && code <= Op.FOR_GE_CONST_I)
+            return 17;
+        return 1;
+    }
+
+    // result of an arithmetic, comparison or logical instruction, as the interpreter computes it
+    static double evaluate(int op, double left, double right)
+    {
+        switch (op)
+        {
+            case Op.EQ: return left == right ? 1.0 : 0.0;
+            case Op.NOTEQ: return left != right ? 1.0 : 0.0;
+            case Op.LSS: return left < right ? 1.0 : 0.0;
+            case Op.GRT: return left > right ? 1.0 : 0.0;
+            case Op.LSSEQ: return left <= right ? 1.0 : 0.0;
+            case Op.GRTEQ: return left >= right ? 1.0 : 0.0;
+            case Op.ADD: return left + right;
+            case Op.SUB: return left - right;
+            case Op.MUL: return left * right;
+            case Op.DIV: return left / right;
+            case Op.OR: return left != 0.0 || right != 0.0 ? 1.0 : 0.0;
+            case Op.AND: return left != 0.0 && right != 0.0 ? 1.0 : 0.0;
+            case Op.NOT: return left != 0.0 ? 0.0 : 1.0;
+            case Op.NEG: return -left;
+            case Op.SQRT: return Math.sqrt(left);
+            case Op.ADD_I: return intValue(toLong(left) + toLong(right));
+            case Op.SUB_I: return intValue(toLong(left) - toLong(right));
+            case Op.MUL_I: return intValue(toLong(left) * toLong(right));
+            case Op.NEG_I: return intValue(-toLong(left));
+            case Op.EQ_I: return toLong(left) == toLong(right) ? 1.0 : 0.0;
+            case Op.NOTEQ_I: return toLong(left) != toLong(right) ? 1.0 : 0.0;
+            case Op.LSS_I: return toLong(left) < toLong(right) ? 1.0 : 0.0;
+            case Op.GRT_I: return toLong(left) > toLong(right) ? 1.0 : 0.0;
+            case Op.LSSEQ_I: return toLong(left) <= toLong(right) ? 1.0 : 0.0;
+            case Op.GRTEQ_I: return toLong(left) >= toLong(right) ? 1.0 : 0.0;
+            case Op.I2R: return (double)toLong(left);
+            default: throw new IllegalArgumentException("not an arithmetic instruction: " + op);
+        }
+    }
+
+    // an int is kept in a double slot as the raw bits of the long
+    static long toLong(double value) { return Double.doubleToRawLongBits(value); }
+    static double intValue(long value) { return Double.longBitsToDouble(value); }
+
+    boolean isJump() {
+        return code == Op.JMP || code == Op.JMPZ || code >= Op.JEQ && code <= Op.FOR_GE_CONST || isIntLoop() ||
+            code == Op.PARFOR;
+    }
+
+    // the operand is the address of a variable, for the instructions the parser emits
+    boolean hasAddress() {
+        return code == Op.LOAD || code == Op.STORE || code == Op.LD_ARR || code == Op.ST_ARR ||
+            code == Op.LD_ARR_I || code == Op.ST_ARR_I || code == Op.FREE_ARR ||
+            code == Op.REDUCE || code == Op.REDUCE_I;
+    }
+
+    boolean isLoop() { return code >= Op.FOR_LT && code <= Op.FOR_GE_CONST || isIntLoop(); }
+
+    boolean isIntLoop() { return code >= Op.FOR_LT_I && code <= Op.FOR_GE_CONST_I; }
+
+    // the operation on int values, for an operation of the language on reals
+    OpCode toInt()
+    {
+        switch (this)
+        {
+            case add: return add_i;
+            case sub: return sub_i;
+            case mul: return mul_i;
+            case neg: return neg_i;
+            case eq: return eq_i;
+            case noteq: return noteq_i;
+            case lss: return lss_i;
+            case grt: return grt_i;
+            case lsseq: return lsseq_i;
+            case grteq: return grteq_i;
+            case ld_arr: return ld_arr_i;
+            case st_arr: return st_arr_i;
+            default: throw new IllegalArgumentException("no int form of " + this);
+        }
+    }
+}
+
+// Opcode values as compile-time constants, so the interpreter can dispatch on a plain int switch
+final class Op
+{
+    static final int LOAD = 1;
+    static final int STORE = 2;
+    static final int LD_ARR = 3;
+    static final int ST_ARR = 4;
+    static final int SUBSP = 5;
+    static final int ADDSP = 6;
+    static final int JMP = 7;
+    static final int JMPZ = 8;
+
+    static final int LD_CONST = 9;
+
+    static final int EQ = 10;
+    static final int NOTEQ = 11;
+    static final int LSS = 12;
+    static final int GRT = 13;
+    static final int LSSEQ = 14;
+    static final int GRTEQ = 15;
+    static final int ADD = 16;
+    static final int SUB = 17;
+    static final int MUL = 18;
+    static final int DIV = 19;
+    static final int OR = 20;
+    static final int AND = 21;
+    static final int NOT = 22;
+    static final int NEG = 23;
+    static final int PRINT_REAL = 24;
+    static final int PRINT_STR = 25;
+    static final int PRINT_ARR = 26;
+    static final int SQRT = 27;
+
+    static final int ADD_LL = 28;   // load x; load y; add
+    static final int ST_CONST = 29; // ld_const k; store x
+    static final int INC = 30;      // load x; ld_const 1; add; store x
+
+    // comparison followed by jmpz: jump when the comparison is false,
+    // so e.g. jge also jumps when an operand is NaN, exactly like lss; jmpz
+    static final int JEQ = 31;
+    static final int JNE = 32;
+    static final int JLT = 33;
+    static final int JGT = 34;
+    static final int JLE = 35;
+    static final int JGE = 36;
+
+    // loop-back of a counted loop, L x y: x += 1 (lt, le) or x -= 1 (gt, ge),
+    // then jump to L if x compares true with the variable y or, for the _const
+    // forms, with a constant. It replaces
+    //   load x; ld_const 1; add; store x; jmp l0; [l0] load x; load y; lss; jmpz l1
+    // with a jump to the instruction after that jmpz, when l1 follows the jmp.
+    static final int FOR_LT = 37;
+    static final int FOR_LE = 38;
+    static final int FOR_GT = 39;
+    static final int FOR_GE = 40;
+    static final int FOR_LT_CONST = 41;
+    static final int FOR_LE_CONST = 42;
+    static final int FOR_GT_CONST = 43;
+    static final int FOR_GE_CONST = 44;
+
+    // Operations on ints: 64-bit two's complement values, kept in the same
+    // double slots as everything else as the raw bits of the long, so that
+    // load, store, ld_const and the operand stack move them unchanged.
+    // i2r widens an int to a real; ld_arr_i and st_arr_i take an int index.
+    static final int ADD_I = 45;
+    static final int SUB_I = 46;
+    static final int MUL_I = 47;
+    static final int NEG_I = 48;
+    static final int EQ_I = 49;
+    static final int NOTEQ_I = 50;
+    static final int LSS_I = 51;
+    static final int GRT_I = 52;
+    static final int LSSEQ_I = 53;
+    static final int GRTEQ_I = 54;
+    static final int I2R = 55;
+    static final int LD_ARR_I = 56;
+    static final int ST_ARR_I = 57;
+    static final int PRINT_INT = 58;
+    static final int PRINT_ARR_I = 59;
+
+    // for_* with an int loop variable and limit
+    static final int FOR_LT_I = 60;
+    static final int FOR_LE_I = 61;
+    static final int FOR_GT_I = 62;
+    static final int FOR_GE_I = 63;
+    static final int FOR_LT_CONST_I = 64;
+    static final int FOR_LE_CONST_I = 65;
+    static final int FOR_GT_CONST_I = 66;
+    static final int FOR_GE_CONST_I = 67;
+
+    // Arrays live in an ArrayHeap, their variable holds a handle. new_arr n
+    // pushes the handle of a new array of n elements, free_arr x frees the
+    // array whose handle is in x and all arrays allocated after it.
+    // ld_arr x, st_arr x and print_arr take the array by its handle.
+    static final int NEW_ARR = 68;
+    static final int FREE_ARR = 69;
+
+    // Strings live in a StringHeap and are handles as well, those of the
+    // literals are their ids in the string table, where 0 is the empty
+    // string, the value of a string variable before it is assigned. concat
+    // pops two strings and pushes their concatenation, r2s and i2s push the
+    // text of a real or an int, as print would output it, and len pushes the
+    // length of a string as an int.
+    static final int CONCAT = 70;
+    static final int R2S = 71;
+    static final int I2S = 72;
+    static final int LEN = 73;
+
+    // Array functions, on arrays given by their handles, see ArrayHeap.
+    // sum and max pop an array and push the sum or the largest element,
+    // dot pops two and pushes their dot product, axpy pops k, x and y and
+    // adds k * x to y, and fill pops an array and a value and sets every
+    // element to it. The _i forms are for int arrays; fill moves the bits.
+    static final int SUM = 74;
+    static final int SUM_I = 75;
+    static final int MAX = 76;
+    static final int MAX_I = 77;
+    static final int DOT = 78;
+    static final int DOT_I = 79;
+    static final int AXPY = 80;
+    static final int AXPY_I = 81;
+    static final int FILL = 82;
+
+    // A parallel loop, parsed from parfor:
+    //   lo; hi; parfor L; reduce r...; store i; [body]; parend; [L]
+    // parfor pops hi and lo and runs the body once for every int from lo to
+    // hi - 1, pushed before the body starts, in chunks on threads of their
+    // own, each with a copy of the variables. The reduce and reduce_i
+    // instructions name the real and int variables that are summed over the
+    // chunks; no other variable is written back. Chunk outputs are appended
+    // in index order. Only the interpreter runs parfor, see ProgramExecutor.
+    static final int PARFOR = 83;
+    static final int PAREND = 84;
+    static final int REDUCE = 85;
+    static final int REDUCE_I = 86;
+
+    // Functions. The addresses of a function are relative to the frame
+    // pointer, which the interpreter adds to every address; the code outside
+    // of functions runs with it at 0. A call pushes its arguments and runs
+    //   call f        the index of f, its enter instruction once decoded
+    //   enter n       the first n slots of the frame are the arguments
+    //                 pushed, the next one is the return value
+    //   ...           each return stores the return value, frees the
+    //                 variables of the function and jumps to the ret
+    //   ret           leaves the return value in place of the arguments
+    // pop drops the value of a call used as a statement. Only the
+    // interpreter runs calls; most are inlined by the parser instead.
+    static final int CALL = 87;
+    static final int ENTER = 88;
+    static final int RET = 89;
+    static final int POP = 90;
+
+    // == and != on strings compare handles, so the parser puts intern after
+    // every operand that is not a literal: it pops a string and pushes the
+    // handle of the first one with the same text, see StringHeap.intern.
+    static final int INTERN = 91;
+
+    private Op() { }
 }
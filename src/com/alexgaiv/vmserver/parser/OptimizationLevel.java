@@ -0,0 +1,17 @@
+package com.alexgaiv.vmserver.parser;
+
+public enum OptimizationLevel
+{
+    NONE,
+    BASIC, // value numbering, constant propagation, dead code and dead store elimination
+    FULL;  // also loop-invariant code motion and strength reduction
+
+    public static OptimizationLevel fromName(String name) {
+        try {
+            return valueOf(name);
+        }
+        catch (IllegalArgumentException | NullPointerException e) {
+            return NONE;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+// Rewrites common instruction sequences of parser output into superinstructions:
+//
+//   load x; ld_const 1; add; store x   ->  inc x
+//   load x; load y; add                ->  add_ll x y
+//   ld_const k; store x                ->  st_const k x
+//   lss; jmpz L                        ->  jge L   (and likewise for the other comparisons)
+//
+// and the loop-back of counted loops, as parsed from both while and for:
+//
+//   [l0] load x; load y; lss; jmpz l1; [body] ...
+//        load x; ld_const 1; add; store x; jmp l0; [l1]
+//     -> [l0] load x; load y; jge l1; [body] ...
+//        for_lt body x y; [l1]
+//
+// and the same with add_i, lss_i, ... for an int x, into the for_*_i forms.
+//
+// A sequence is fused only if no jump lands inside it. Jumps are re-emitted
+// with putLabel() and patched once the new offsets of their targets are known.
+class PeepholeOptimizer
+{
+    private ByteBuffer in;
+    private int[] offsets;    // byte offset of every source instruction
+    private OpCode[] opCodes;
+    private boolean[] target; // source instruction is a jump target
+    private int[] loopTest;   // first instruction of the loop test a counted loop step jumps to, or -1
+    private int count;
+
+    static Bytecode optimize(Bytecode bytecode) {
+        return new PeepholeOptimizer().run(bytecode);
+    }
+
+    private Bytecode run(Bytecode bytecode)
+    {
+        in = bytecode.toByteBuffer();
+        int codeSize = bytecode.size();
+        if (!scan(codeSize))
+            return bytecode; // malformed code is left to the decoder to report
+
+        Bytecode out = new Bytecode();
+        int[] newOffset = new int[codeSize + 1]; // source byte offset -> new byte offset
+        ArrayList<int[]> jumps = new ArrayList<>(); // {label position, source target}
+
+        int i = 0;
+        while (i < count)
+        {
+            newOffset[offsets[i]] = out.size();
+            OpCode op = opCodes[i];
+            int arg = op.size() == 5 ? in.getInt(offsets[i] + 1) : 0;
+
+            if (loopTest[i] != -1) {
+                int test = loopTest[i];
+                OpCode limit = opCodes[test + 1];
+                out.put(loopOpCode(opCodes[test + 2], limit == OpCode.ld_const));
+                jumps.add(new int[] { out.putLabel(), offsets[test + 4] });
+                out.putInt(arg);
+                if (limit == OpCode.ld_const)
+                    out.putDouble(value(test + 1));
+                else
+                    out.putInt(intArg(test + 1));
+                i += 5;
+            }
+            else if (op == OpCode.load && matches(i, OpCode.load, OpCode.ld_const, OpCode.add, OpCode.store) &&
+                    value(i + 1) == 1.0 && intArg(i + 3) == arg) {
+                out.put(OpCode.inc, arg);
+                i += 4;
+            }
+            else if (op == OpCode.load && matches(i, OpCode.load, OpCode.load, OpCode.add)) {
+                out.put(OpCode.add_ll, arg, intArg(i + 1));
+                i += 3;
+            }
+            else if (op == OpCode.ld_const && matches(i, OpCode.ld_const, OpCode.store)) {
+                out.putStoreValue(value(i), intArg(i + 1));
+                i += 2;
+            }
+            else if (negatedJump(op) != null && matches(i, op, OpCode.jmpz)) {
+                out.put(negatedJump(op));
+                jumps.add(new int[] { out.putLabel(), intArg(i + 1) });
+                i += 2;
+            }
+            else if (op.isJump()) {
+                out.put(op);
+                jumps.add(new int[] { out.putLabel(), arg });
+                i++;
+            }
+            else {
+                // copy the instruction unchanged
+                for (int b = 0; b < op.size(); b++)
+                    out.putByte(in.get(offsets[i] + b));
+                i++;
+            }
+        }
+        newOffset[codeSize] = out.size();
+
+        for (int[] jump : jumps)
+            out.putInt(jump[0], newOffset[jump[1]]);
+        return out;
+    }
+
+    private boolean scan(int codeSize)
+    {
+        offsets = new int[codeSize];
+        opCodes = new OpCode[codeSize];
+        boolean[] isStart = new boolean[codeSize + 1];
+
+        int ip = 0;
+        while (ip < codeSize) {
+            OpCode opCode = OpCode.fromCode(in.get(ip));
+            if (opCode == null || ip + opCode.size() > codeSize)
+                return false;
+            isStart[ip] = true;
+            offsets[count] = ip;
+            opCodes[count++] = opCode;
+            ip += opCode.size();
+        }
+        isStart[codeSize] = true;
+
+        boolean[] targetOffset = new boolean[codeSize + 1];
+        for (int i = 0; i < count; i++) {
+            if (opCodes[i].isJump()) {
+                int t = intArg(i);
+                if (t < 0 || t > codeSize || !isStart[t])
+                    return false;
+                targetOffset[t] = true;
+            }
+        }
+
+        target = new boolean[count];
+        for (int i = 0; i < count; i++)
+            target[i] = targetOffset[offsets[i]];
+
+        int[] indexAt = new int[codeSize + 1];
+        for (int i = 0; i < count; i++)
+            indexAt[offsets[i]] = i;
+        indexAt[codeSize] = count;
+
+        loopTest = new int[count];
+        for (int i = 0; i < count; i++) {
+            loopTest[i] = findLoopTest(i, indexAt, codeSize);
+            if (loopTest[i] != -1)
+                target[loopTest[i] + 4] = true; // the loop instruction jumps to the body
+        }
+        return true;
+    }
+
+    // the loop test that the counted loop step starting at i jumps back to, or -1
+    private int findLoopTest(int i, int[] indexAt, int codeSize)
+    {
+        if (i + 2 >= count || !matches(i, OpCode.load, OpCode.ld_const, opCodes[i + 2], OpCode.store, OpCode.jmp))
+            return -1;
+        OpCode step = opCodes[i + 2];
+        boolean isInt = step == OpCode.add_i || step == OpCode.sub_i;
+        boolean up = step == OpCode.add || step == OpCode.add_i;
+        boolean down = step == OpCode.sub || step == OpCode.sub_i;
+        if (!up && !down)
+            return -1;
+        int x = intArg(i);
+        double one = isInt ? OpCode.intValue(1) : 1.0;
+        if (Double.doubleToRawLongBits(value(i + 1)) != Double.doubleToRawLongBits(one) || intArg(i + 3) != x)
+            return -1;
+
+        int test = indexAt[intArg(i + 4)];
+        int exit = i + 5 < count ? offsets[i + 5] : codeSize;
+        if (test + 4 >= count || opCodes[test] != OpCode.load || intArg(test) != x ||
+                opCodes[test + 1] != OpCode.load && opCodes[test + 1] != OpCode.ld_const ||
+                opCodes[test + 3] != OpCode.jmpz || intArg(test + 3) != exit)
+            return -1;
+
+        OpCode comparison = opCodes[test + 2];
+        if (isInt ? up && (comparison == OpCode.lss_i || comparison == OpCode.lsseq_i) ||
+                    down && (comparison == OpCode.grt_i || comparison == OpCode.grteq_i) :
+                up && (comparison == OpCode.lss || comparison == OpCode.lsseq) ||
+                    down && (comparison == OpCode.grt || comparison == OpCode.grteq))
+            return test;
+        return -1;
+    }
+
+    private static OpCode loopOpCode(OpCode comparison, boolean constantLimit)
+    {
+        switch (comparison)
+        {
+            case lss: return constantLimit ? OpCode.for_lt_const : OpCode.for_lt;
+            case lsseq: return constantLimit ? OpCode.for_le_const : OpCode.for_le;
+            case grt: return constantLimit ? OpCode.for_gt_const : OpCode.for_gt;
+            case grteq: return constantLimit ? OpCode.for_ge_const : OpCode.for_ge;
+            case lss_i: return constantLimit ? OpCode.for_lt_const_i : OpCode.for_lt_i;
+            case lsseq_i: return constantLimit ? OpCode.for_le_const_i : OpCode.for_le_i;
+            case grt_i: return constantLimit ? OpCode.for_gt_const_i : OpCode.for_gt_i;
+            default: return constantLimit ? OpCode.for_ge_const_i : OpCode.for_ge_i;
+        }
+    }
+
+    // instructions starting at i are exactly the pattern, and no jump lands after its first one
+    private boolean matches(int i, OpCode... pattern)
+    {
+        if (i + pattern.length > count)
+            return false;
+        for (int k = 0; k < pattern.length; k++) {
+            if (opCodes[i + k] != pattern[k] || k > 0 && target[i + k])
+                return false;
+        }
+        return true;
+    }
+
+    private int intArg(int i) { return in.getInt(offsets[i] + 1); }
+
+    private double value(int i) { return in.getDouble(offsets[i] + 1); }
+
+    private static OpCode negatedJump(OpCode comparison)
+    {
+        switch (comparison)
+        {
+            case eq: return OpCode.jne;
+            case noteq: return OpCode.jeq;
+            case lss: return OpCode.jge;
+            case grt: return OpCode.jle;
+            case lsseq: return OpCode.jgt;
+            case grteq: return OpCode.jlt;
+            default: return null;
+        }
+    }
+}
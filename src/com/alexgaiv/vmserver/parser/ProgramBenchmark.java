@@ -0,0 +1,69 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Runs programs (see the benchmarks directory) on every engine and prints
+// the best time of several runs, after a few runs to warm up the JIT:
+//
+//   java com.alexgaiv.vmserver.parser.ProgramBenchmark [-opt LEVEL] [-runs N] file...
+public class ProgramBenchmark
+{
+    private static final int WARMUP_RUNS = 3;
+
+    public static void main(String[] args) throws IOException
+    {
+        OptimizationLevel level = OptimizationLevel.NONE;
+        int runs = 10;
+        int i = 0;
+        for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+            if (args[i].equals("-opt"))
+                level = OptimizationLevel.fromName(args[i + 1]);
+            else if (args[i].equals("-runs"))
+                runs = Integer.parseInt(args[i + 1]);
+        }
+
+        for (; i < args.length; i++)
+        {
+            String programText = new String(Files.readAllBytes(Paths.get(args[i])), Charset.defaultCharset());
+            System.out.println(args[i] + " (" + level + ")");
+            printSize(programText);
+
+            for (ExecutionEngine engine : ExecutionEngine.values())
+            {
+                ProgramExecutor executor = new ProgramExecutor();
+                ProgramExecuteResult result = null;
+                long best = Long.MAX_VALUE;
+                for (int run = 0; run < WARMUP_RUNS + runs; run++) {
+                    long start = System.nanoTime();
+                    result = executor.execute(programText, engine, level);
+                    long time = System.nanoTime() - start;
+                    if (run >= WARMUP_RUNS)
+                        best = Math.min(best, time);
+                }
+
+                if (result.success)
+                    System.out.printf("  %-12s %8.2f ms%n", engine, best / 1e6);
+                else
+                    System.out.printf("  %-12s %s%n", engine, result.errorMessage);
+            }
+        }
+    }
+
+    // the size of the parsed bytecode, as it is and in its compact encoding
+    private static void printSize(String programText)
+    {
+        try {
+            ProgramParser parser = new ProgramParser();
+            parser.parse(programText);
+            Bytecode bytecode = parser.getBytecode();
+            System.out.printf("  %-12s %8d bytes, %d compact%n", "bytecode",
+                bytecode.size(), CompactBytecode.encode(bytecode).length);
+        }
+        catch (ProgramParseException | ProgramExecuteException e) {
+            // the runs report it
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+
+// Runs programs (see the regressions directory) on every engine at every
+// optimization level and checks that each prints what FILE.out next to the
+// program says, the error message included if it fails. A program is
+// FILE.txt, or FILE.vmc compiled by CompiledProgram, which may be broken on
+// purpose for the verifier to find. The programs of the regressions
+// directory are run if no files are given:
+//
+//   java com.alexgaiv.vmserver.parser.ProgramCheck [file...]
+public class ProgramCheck
+{
+    public static void main(String[] args) throws IOException
+    {
+        ArrayList<Path> files = new ArrayList<>();
+        if (args.length == 0) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("regressions"), "*.{txt,vmc}")) {
+                for (Path file : dir)
+                    files.add(file);
+            }
+            Collections.sort(files);
+        }
+        for (String name : args)
+            files.add(Paths.get(name));
+
+        int failed = 0;
+        for (Path file : files)
+        {
+            CompiledProgram program = file.toString().endsWith(".vmc") ? CompiledProgram.load(file) :
+                CompiledProgram.compile(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            Path outFile = Paths.get(file.toString().replaceFirst("\\.(txt|vmc)$", "") + ".out");
+            String expected = new String(Files.readAllBytes(outFile), StandardCharsets.UTF_8);
+
+            for (ExecutionEngine engine : ExecutionEngine.values()) {
+                for (OptimizationLevel level : OptimizationLevel.values()) {
+                    ProgramExecuteResult result = new ProgramExecutor().execute(program, engine, level);
+                    String output = result.success ? result.programOutput : result.errorMessage;
+                    if (!output.equals(expected)) {
+                        System.out.println(file + " (" + engine + ", " + level + ") printed:\n" + output);
+                        failed++;
+                    }
+                }
+            }
+        }
+
+        System.out.println(files.size() + " programs, " + failed + " runs failed");
+        if (failed > 0)
+            System.exit(1);
+    }
+}
@@ -1,12 +1,17 @@
 package com.alexgaiv.vmserver.parser;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ProgramExecuteException extends Exception
 {
@@ -17,231 +22,839 @@ class ProgramExecuteException extends Exception
 
 public class ProgramExecutor
 {
-    private ArrayList<Double> stack;
+    // Goes up with every change that makes some program print something
+    // else, so that what a program printed on an older server is not taken
+    // for what it prints now.
+    public static final int VERSION = 2;
 
-    public ProgramExecuteResult execute(String program)
+    private static final int INITIAL_CALLS_SIZE = 32;
+    private static final int MAX_CALL_DEPTH = 1 << 16;
+    // the number of chunks a parfor loop with enough indices is split into
+    private static final int PARALLEL_CHUNKS = 64;
+    private static final ForkJoinPool PARALLEL_POOL = new ForkJoinPool();
+
+    private double[] stack;
+    private int sp; // stack pointer, index of the first free slot
+    private ArrayHeap heap;
+    private int[] calls; // the return address and frame pointer of every active call
+    private int callDepth;
+    private BytecodeVerifier verifier;
+    private final ProgramOutput output; // reused from program to program
+
+    // the program started and not ended yet
+    private CompiledProgram program;
+    private ExecutionEngine engine;
+    private OptimizationLevel level;
+    private String error;            // why it can't run, found by start
+    private WholeProgram compiled;   // the engine's code for it, null if interpreted
+    // where the interpreter goes on with it, code is null unless it runs it
+    private DecodedProgram code;
+    private StringHeap strings;
+    private int pc;
+    private int fp;
+
+    public ProgramExecutor() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    // keeps at most outputMemory bytes of what a program prints in memory,
+    // the rest in a temporary file, and stops a program that prints more
+    // than outputLimit bytes
+    public ProgramExecutor(int outputMemory, long outputLimit) {
+        output = new ProgramOutput(outputMemory, outputLimit);
+    }
+
+    // what the programs of this executor print, to watch while one runs
+    public ProgramOutput getOutput() { return output; }
+
+    public ProgramExecuteResult execute(String program) {
+        return execute(program, ExecutionEngine.INTERPRETER);
+    }
+
+    public ProgramExecuteResult execute(String program, ExecutionEngine engine) {
+        return execute(program, engine, OptimizationLevel.NONE);
+    }
+
+    public ProgramExecuteResult execute(String program, ExecutionEngine engine, OptimizationLevel level)
     {
-        ProgramExecuteResult result = new ProgramExecuteResult();
-        ProgramParser parser = new ProgramParser();
-        StringBuilder output = new StringBuilder();
+        return execute(CompiledProgram.compile(program), engine, level);
+    }
 
-        try
-        {
-            parser.parse(program);
+    // runs a program parsed before, or loaded with CompiledProgram.load
+    public ProgramExecuteResult execute(CompiledProgram program, ExecutionEngine engine, OptimizationLevel level)
+    {
+        start(program, engine, level);
+        ProgramExecuteResult result;
+        do {
+            result = step(Long.MAX_VALUE);
+        }
+        while (result == null);
+        return result;
+    }
 
-            Bytecode bytecode = parser.getBytecode();
-            ByteBuffer buffer = bytecode.toByteBuffer();
-            HashMap<Integer, String> stringTable = parser.getStringTable();
-            stack = new ArrayList<>();
+    // Starts a program to run in slices with step, so that a few threads
+    // can take turns on many programs. It is compiled here and runs from
+    // the first step on.
+    public void start(CompiledProgram program, ExecutionEngine engine, OptimizationLevel level)
+    {
+        end();
+        output.clear();
+        this.program = program;
+        this.engine = engine;
+        this.level = level;
+        error = program.error;
+        try {
+            if (error == null)
+                compile();
+        }
+        catch (ProgramExecuteException e) {
+            error = e.getMessage();
+        }
+    }
 
-            int ip = 0; // instruction pointer
+    // Whether step runs the program started whole, however long it takes:
+    // the engines other than the interpreter do, and the interpreter runs
+    // a parfor loop whole.
+    public boolean runsWhole()
+    {
+        if (compiled != null)
+            return true;
+        if (code == null)
+            return false;
+        for (int op : code.ops) {
+            if (op == Op.PARFOR)
+                return true;
+        }
+        return false;
+    }
 
-            while (ip < bytecode.size())
-            {
-                byte op = buffer.get(ip);
-                OpCode opCode = OpCode.values()[op - 1];
-
-                switch (opCode)
-                {
-                    case load: {
-                        int address = buffer.getInt(ip + 1);
-                        pushStack(stack.get(address));
-                        ip += 5;
-                        break;
-                    }
-                    case store: {
-                        int address = buffer.getInt(ip + 1);
-                        stack.set(address, popStack());
-                        ip += 5;
-                        break;
-                    }
-                    case ld_arr: {
-                        int arrayAddress = buffer.getInt(ip + 1);
-                        int index = (int)popStack();
-                        int arraySize = (int)(double)stack.get(arrayAddress);
-                        if (index >= arraySize)
-                            throw new ProgramExecuteException("Array index was out of bounds");
-
-                        pushStack(stack.get(arrayAddress + index + 1));
-                        ip += 5;
-                        break;
-                    }
-                    case st_arr: {
-                        int arrayAddress = buffer.getInt(ip + 1);
-                        double value = popStack();
-                        int index = (int)popStack();
-                        int arraySize = (int)(double)stack.get(arrayAddress);
-                        if (index >= arraySize)
-                            throw new ProgramExecuteException("Array index was out of bounds");
-
-                        stack.set(arrayAddress + index + 1, value);
-                        ip += 5;
-                        break;
-                    }
-                    case subsp: {
-                        int amount = buffer.getInt(ip + 1);
-                        for (int i = 0; i < amount; i++)
-                            pushStack(0.0);
-                        ip += 5;
-                        break;
-                    }
-                    case addsp: {
-                        int amount = buffer.getInt(ip + 1);
-                        for (int i = 0; i < amount; i++)
-                            popStack();
-                        ip += 5;
-                        break;
-                    }
-                    case jmp: {
-                        ip = buffer.getInt(ip + 1);
-                        break;
-                    }
-                    case jmpz: {
-                        double value = popStack();
-                        if (value == 0.0)
-                            ip = buffer.getInt(ip + 1);
-                        else ip += 5;
-                        break;
-                    }
-                    case ld_const: {
-                        double value = buffer.getDouble(ip + 1);
-                        pushStack(value);
-                        ip += 9;
-                        break;
-                    }
-                    case eq:
-                        pushStack(popStack() == popStack() ? 1.0 : 0.0); ip++;
-                        break;
-                    case noteq:
-                        pushStack(popStack() != popStack() ? 1.0 : 0.0); ip++;
-                        break;
-                    case lss: {
-                        double right = popStack();
-                        double left = popStack();
-                        pushStack(left < right ? 1.0 : 0.0);
-                        ip++;
-                        break;
-                    }
-                    case grt: {
-                        double right = popStack();
-                        double left = popStack();
-                        pushStack(left > right ? 1.0 : 0.0);
-                        ip++;
-                        break;
-                    }
-                    case lsseq: {
-                        double right = popStack();
-                        double left = popStack();
-                        pushStack(left <= right ? 1.0 : 0.0);
-                        ip++;
-                        break;
-                    }
-                    case grteq: {
-                        double right = popStack();
-                        double left = popStack();
-                        pushStack(left >= right ? 1.0 : 0.0);
-                        ip++;
-                        break;
-                    }
-                    case add:
-                        pushStack(popStack() + popStack()); ip++;
-                        break;
-                    case sub: {
-                        double right = popStack();
-                        double left = popStack();
-                        pushStack(left - right);
-                        ip++;
-                        break;
-                    }
-                    case mul:
-                        pushStack(popStack() * popStack()); ip++;
-                        break;
-                    case div: {
-                        double right = popStack();
-                        double left = popStack();
-                        pushStack(left / right);
-                        ip++;
-                        break;
-                    }
-                    case or:
-                        pushStack(popStack() != 0.0 || popStack() != 0.0 ? 1.0 : 0.0); ip++;
-                        break;
-                    case and:
-                        pushStack(popStack() != 0.0 && popStack() != 0.0 ? 1.0 : 0.0); ip++;
-                        break;
-                    case not: {
-                        pushStack(popStack() != 0.0 ? 0.0 : 1.0);
-                        ip++;
-                        break;
-                    }
-                    case neg: {
-                        pushStack(-popStack());
-                        ip++;
-                        break;
-                    }
-                    case print_real:
-                        output.append(popStack());
-                        ip++;
-                        break;
-                    case print_arr:
-                        int arrayAddress = (int)(double)popStack();
-                        int arraySize = (int)(double)stack.get(arrayAddress); // cannot be zero
-
-                        output.append("[");
-                        output.append(stack.get(arrayAddress + 1));
-                        for (int i = 1; i < arraySize; i++) {
-                            output.append(", ").append(stack.get(arrayAddress + i + 1));
-                        }
-                        output.append("]");
-                        ip++;
-                        break;
-                    case print_str:
-                        int stringId = (int)(double)popStack();
-                        String string = stringTable.get(stringId);
-                        if (string == null) {
-                            throw new ProgramExecuteException("Invalid string pointer");
-                        }
-                        output.append(string);
-                        ip++;
-                        break;
-                    case sqrt:
-                        pushStack(Math.sqrt(popStack()));
-                        ip++;
-                        break;
-                    default:
-                        throw new ProgramExecuteException("Unknown instruction");
+    // Runs the program started on until it has taken budget more jumps and
+    // calls, see run, and returns its result once it has ended, null while
+    // it has more to run. Only the interpreter stops in the middle of a
+    // program, see runsWhole.
+    public ProgramExecuteResult step(long budget)
+    {
+        if (program == null)
+            throw new IllegalStateException("No program was started");
 
-                }
+        ProgramExecuteResult result = new ProgramExecuteResult();
+        boolean paused = false;
+        try
+        {
+            if (error != null) {
+                result.errorMessage = error;
+                return result;
+            }
+            if (compiled != null)
+                compiled.run();
+            else if (!run(code, pc, code.size(), fp, strings, output, budget)) {
+                paused = true;
+                return null;
             }
 
             result.success = true;
-            result.programOutput = output.toString();
+            result.programOutput = output.excerpt();
         }
-        catch (ProgramParseException | ProgramExecuteException e) {
+        catch (ProgramExecuteException e) {
             result.success = false;
             result.errorMessage = e.getMessage();
         }
+        finally {
+            if (!paused)
+                end();
+        }
+        return result;
+    }
+
+    // a program compiled by one of the engines that run it whole
+    private interface WholeProgram
+    {
+        void run() throws ProgramExecuteException;
+    }
+
+    // Compiles the program for the engine, else makes it ready for the
+    // interpreter. The stack is allocated at the size the verifier found,
+    // so pushes do not check it; only a call may need more.
+    private void compile() throws ProgramExecuteException
+    {
+        BytecodeVerifier.verify(program);
+        StringHeap strings = new StringHeap(program.stringTable);
+
+        Bytecode bytecode = SsaOptimizer.optimize(program.bytecode, level);
+
+        // superinstructions only have handlers in the interpreter
+        DecodedProgram code = DecodedProgram.decode(engine == ExecutionEngine.INTERPRETER ?
+            PeepholeOptimizer.optimize(bytecode) : bytecode);
+        BytecodeVerifier verifier = BytecodeVerifier.verify(code);
+
+        switch (engine)
+        {
+            case CLOSURE: {
+                ClosureProgram closureProgram = new ClosureCompiler().compile(code);
+                if (closureProgram != null) {
+                    compiled = () -> closureProgram.run(output, strings);
+                    return;
+                }
+                break;
+            }
+            case JVM: {
+                JvmProgram jvmProgram = JvmCompiler.compile(code);
+                if (jvmProgram != null) {
+                    compiled = () -> jvmProgram.run(new JvmRuntime(output, strings));
+                    return;
+                }
+                break;
+            }
+            case REGISTER: {
+                RegisterProgram registerProgram = RegisterCompiler.compile(code);
+                if (registerProgram != null) {
+                    compiled = () -> registerProgram.run(output, strings);
+                    return;
+                }
+                break;
+            }
+        }
+
+        this.code = code;
+        this.strings = strings;
+        this.verifier = verifier;
+        stack = new double[verifier.stackSize];
+        sp = 0;
+        heap = new ArrayHeap();
+        calls = new int[INITIAL_CALLS_SIZE];
+        callDepth = 0;
+        pc = 0;
+        fp = 0;
+    }
 
+    // drops the program and what the interpreter had of it
+    private void end()
+    {
+        program = null;
+        error = null;
+        compiled = null;
+        code = null;
+        strings = null;
         stack = null;
-        return result;
+        heap = null;
+        calls = null;
+        verifier = null;
+    }
+
+    // Runs the instructions from pc until the one at end, fp is the frame
+    // pointer. Every jump taken and every call uses up one of budget, as
+    // every loop and recursion goes through them; if it runs out first,
+    // keeps where it stopped in pc and fp and returns false.
+    private boolean run(DecodedProgram code, int pc, int end, int fp, StringHeap strings, ProgramOutput output,
+                        long budget) throws ProgramExecuteException
+    {
+        final int[] ops = code.ops;
+        final int[] args = code.args;
+        final int[] args2 = code.args2;
+        final int[] args3 = code.args3;
+        final double[] constants = code.constants;
+
+        dispatch:
+        while (pc < end)
+        {
+            int arg = args[pc];
+
+            switch (ops[pc++])
+            {
+                case Op.LOAD:
+                    pushStack(stack[fp + arg]);
+                    break;
+                case Op.STORE:
+                    stack[fp + arg] = popStack();
+                    break;
+                case Op.LD_ARR: {
+                    double[] array = heap.arrays[(int)stack[fp + arg]];
+                    pushStack(array[ArrayHeap.checkIndex(array, popStack())]);
+                    break;
+                }
+                case Op.ST_ARR: {
+                    double value = popStack();
+                    double[] array = heap.arrays[(int)stack[fp + arg]];
+                    array[ArrayHeap.checkIndex(array, popStack())] = value;
+                    break;
+                }
+                case Op.NEW_ARR:
+                    pushStack(heap.allocate(arg));
+                    break;
+                case Op.FREE_ARR:
+                    heap.free(stack[fp + arg]);
+                    break;
+                case Op.SUBSP:
+                    Arrays.fill(stack, sp, sp + arg, 0.0);
+                    sp += arg;
+                    break;
+                case Op.ADDSP:
+                    sp -= arg;
+                    break;
+                case Op.JMP:
+                    pc = arg;
+                    if (--budget < 0)
+                        break dispatch;
+                    break;
+                case Op.JMPZ:
+                    if (popStack() == 0.0) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.LD_CONST:
+                    pushStack(constants[arg]);
+                    break;
+                case Op.EQ:
+                    pushStack(popStack() == popStack() ? 1.0 : 0.0);
+                    break;
+                case Op.NOTEQ:
+                    pushStack(popStack() != popStack() ? 1.0 : 0.0);
+                    break;
+                case Op.LSS: {
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left < right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.GRT: {
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left > right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.LSSEQ: {
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left <= right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.GRTEQ: {
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left >= right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.ADD:
+                    pushStack(popStack() + popStack());
+                    break;
+                case Op.SUB: {
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left - right);
+                    break;
+                }
+                case Op.MUL:
+                    pushStack(popStack() * popStack());
+                    break;
+                case Op.DIV: {
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left / right);
+                    break;
+                }
+                case Op.OR: {
+                    // pop both operands before testing, so none is left on the stack
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left != 0.0 || right != 0.0 ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.AND: {
+                    double right = popStack();
+                    double left = popStack();
+                    pushStack(left != 0.0 && right != 0.0 ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.NOT:
+                    pushStack(popStack() != 0.0 ? 0.0 : 1.0);
+                    break;
+                case Op.NEG:
+                    pushStack(-popStack());
+                    break;
+                case Op.PRINT_REAL:
+                    output.append(popStack());
+                    break;
+                case Op.PRINT_ARR:
+                    ArrayHeap.print(heap.get(popStack()), output);
+                    break;
+                case Op.PRINT_STR:
+                    output.append(strings.get(popStack()));
+                    break;
+                case Op.SQRT:
+                    pushStack(Math.sqrt(popStack()));
+                    break;
+                case Op.ADD_I:
+                    pushStack(OpCode.intValue(OpCode.toLong(popStack()) + OpCode.toLong(popStack())));
+                    break;
+                case Op.SUB_I: {
+                    long right = OpCode.toLong(popStack());
+                    pushStack(OpCode.intValue(OpCode.toLong(popStack()) - right));
+                    break;
+                }
+                case Op.MUL_I:
+                    pushStack(OpCode.intValue(OpCode.toLong(popStack()) * OpCode.toLong(popStack())));
+                    break;
+                case Op.NEG_I:
+                    pushStack(OpCode.intValue(-OpCode.toLong(popStack())));
+                    break;
+                case Op.EQ_I:
+                    pushStack(OpCode.toLong(popStack()) == OpCode.toLong(popStack()) ? 1.0 : 0.0);
+                    break;
+                case Op.NOTEQ_I:
+                    pushStack(OpCode.toLong(popStack()) != OpCode.toLong(popStack()) ? 1.0 : 0.0);
+                    break;
+                case Op.LSS_I: {
+                    long right = OpCode.toLong(popStack());
+                    pushStack(OpCode.toLong(popStack()) < right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.GRT_I: {
+                    long right = OpCode.toLong(popStack());
+                    pushStack(OpCode.toLong(popStack()) > right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.LSSEQ_I: {
+                    long right = OpCode.toLong(popStack());
+                    pushStack(OpCode.toLong(popStack()) <= right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.GRTEQ_I: {
+                    long right = OpCode.toLong(popStack());
+                    pushStack(OpCode.toLong(popStack()) >= right ? 1.0 : 0.0);
+                    break;
+                }
+                case Op.I2R:
+                    pushStack((double)OpCode.toLong(popStack()));
+                    break;
+                case Op.LD_ARR_I: {
+                    double[] array = heap.arrays[(int)stack[fp + arg]];
+                    pushStack(array[ArrayHeap.checkIndex(array, OpCode.toLong(popStack()))]);
+                    break;
+                }
+                case Op.ST_ARR_I: {
+                    double value = popStack();
+                    double[] array = heap.arrays[(int)stack[fp + arg]];
+                    array[ArrayHeap.checkIndex(array, OpCode.toLong(popStack()))] = value;
+                    break;
+                }
+                case Op.PRINT_INT:
+                    output.append(OpCode.toLong(popStack()));
+                    break;
+                case Op.PRINT_ARR_I:
+                    ArrayHeap.printInt(heap.get(popStack()), output);
+                    break;
+                case Op.CONCAT: {
+                    double right = popStack();
+                    pushStack(strings.concat(popStack(), right));
+                    break;
+                }
+                case Op.R2S:
+                    pushStack(strings.fromReal(popStack()));
+                    break;
+                case Op.I2S:
+                    pushStack(strings.fromInt(OpCode.toLong(popStack())));
+                    break;
+                case Op.LEN:
+                    pushStack(OpCode.intValue(strings.length(popStack())));
+                    break;
+                case Op.INTERN:
+                    pushStack(strings.intern(popStack()));
+                    break;
+                case Op.SUM:
+                    pushStack(ArrayHeap.sum(heap.get(popStack())));
+                    break;
+                case Op.SUM_I:
+                    pushStack(OpCode.intValue(ArrayHeap.sumInt(heap.get(popStack()))));
+                    break;
+                case Op.MAX:
+                    pushStack(ArrayHeap.max(heap.get(popStack())));
+                    break;
+                case Op.MAX_I:
+                    pushStack(OpCode.intValue(ArrayHeap.maxInt(heap.get(popStack()))));
+                    break;
+                case Op.DOT: {
+                    double[] b = heap.get(popStack());
+                    pushStack(ArrayHeap.dot(heap.get(popStack()), b));
+                    break;
+                }
+                case Op.DOT_I: {
+                    double[] b = heap.get(popStack());
+                    pushStack(OpCode.intValue(ArrayHeap.dotInt(heap.get(popStack()), b)));
+                    break;
+                }
+                case Op.AXPY: {
+                    double[] y = heap.get(popStack());
+                    double[] x = heap.get(popStack());
+                    ArrayHeap.axpy(popStack(), x, y);
+                    break;
+                }
+                case Op.AXPY_I: {
+                    double[] y = heap.get(popStack());
+                    double[] x = heap.get(popStack());
+                    ArrayHeap.axpyInt(OpCode.toLong(popStack()), x, y);
+                    break;
+                }
+                case Op.FILL: {
+                    double value = popStack();
+                    ArrayHeap.fill(heap.get(popStack()), value);
+                    break;
+                }
+                case Op.ADD_LL:
+                    pushStack(stack[fp + arg] + stack[fp + args2[pc - 1]]);
+                    break;
+                case Op.ST_CONST:
+                    stack[fp + args2[pc - 1]] = constants[arg];
+                    break;
+                case Op.INC:
+                    stack[fp + arg] += 1.0;
+                    break;
+                case Op.JEQ: {
+                    double right = popStack();
+                    if (!(popStack() != right)) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                }
+                case Op.JNE: {
+                    double right = popStack();
+                    if (!(popStack() == right)) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                }
+                case Op.JLT: {
+                    double right = popStack();
+                    if (!(popStack() >= right)) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                }
+                case Op.JGT: {
+                    double right = popStack();
+                    if (!(popStack() <= right)) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                }
+                case Op.JLE: {
+                    double right = popStack();
+                    if (!(popStack() > right)) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                }
+                case Op.JGE: {
+                    double right = popStack();
+                    if (!(popStack() < right)) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                }
+                case Op.FOR_LT:
+                    if ((stack[fp + args2[pc - 1]] += 1.0) < stack[fp + args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_LE:
+                    if ((stack[fp + args2[pc - 1]] += 1.0) <= stack[fp + args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GT:
+                    if ((stack[fp + args2[pc - 1]] -= 1.0) > stack[fp + args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GE:
+                    if ((stack[fp + args2[pc - 1]] -= 1.0) >= stack[fp + args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_LT_CONST:
+                    if ((stack[fp + args2[pc - 1]] += 1.0) < constants[args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_LE_CONST:
+                    if ((stack[fp + args2[pc - 1]] += 1.0) <= constants[args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GT_CONST:
+                    if ((stack[fp + args2[pc - 1]] -= 1.0) > constants[args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GE_CONST:
+                    if ((stack[fp + args2[pc - 1]] -= 1.0) >= constants[args3[pc - 1]]) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_LT_I:
+                    if (stepInt(fp + args2[pc - 1], 1) < OpCode.toLong(stack[fp + args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_LE_I:
+                    if (stepInt(fp + args2[pc - 1], 1) <= OpCode.toLong(stack[fp + args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GT_I:
+                    if (stepInt(fp + args2[pc - 1], -1) > OpCode.toLong(stack[fp + args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GE_I:
+                    if (stepInt(fp + args2[pc - 1], -1) >= OpCode.toLong(stack[fp + args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_LT_CONST_I:
+                    if (stepInt(fp + args2[pc - 1], 1) < OpCode.toLong(constants[args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_LE_CONST_I:
+                    if (stepInt(fp + args2[pc - 1], 1) <= OpCode.toLong(constants[args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GT_CONST_I:
+                    if (stepInt(fp + args2[pc - 1], -1) > OpCode.toLong(constants[args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.FOR_GE_CONST_I:
+                    if (stepInt(fp + args2[pc - 1], -1) >= OpCode.toLong(constants[args3[pc - 1]])) {
+                        pc = arg;
+                        if (--budget < 0)
+                            break dispatch;
+                    }
+                    break;
+                case Op.PARFOR:
+                    pc = parallelLoop(code, pc - 1, fp, strings, output);
+                    break;
+                case Op.CALL:
+                    if (callDepth == MAX_CALL_DEPTH)
+                        throw new ProgramExecuteException("Too many nested calls");
+                    if (2 * callDepth == calls.length)
+                        calls = Arrays.copyOf(calls, calls.length * 2);
+                    ensureCapacity(sp + verifier.callGrowth(arg));
+                    calls[2 * callDepth] = pc;
+                    calls[2 * callDepth + 1] = fp;
+                    callDepth++;
+                    pc = arg;
+                    if (--budget < 0)
+                        break dispatch;
+                    break;
+                case Op.ENTER:
+                    fp = sp - arg;
+                    pushStack(0.0);
+                    break;
+                case Op.RET: {
+                    double value = popStack();
+                    sp = fp;
+                    pushStack(value);
+                    callDepth--;
+                    pc = calls[2 * callDepth];
+                    fp = calls[2 * callDepth + 1];
+                    break;
+                }
+                case Op.POP:
+                    sp--;
+                    break;
+                default:
+                    throw new ProgramExecuteException("Unknown instruction");
+            }
+        }
+        if (pc < end) {
+            this.pc = pc;
+            this.fp = fp;
+            return false;
+        }
+        return true;
+    }
+
+    // Runs the parfor at pc and returns the index of the instruction after
+    // its loop. The index range is split into chunks independently of the
+    // number of threads, so reductions add up in the same order and give
+    // the same result on every run.
+    private int parallelLoop(DecodedProgram code, int pc, int fp, StringHeap strings, ProgramOutput output)
+            throws ProgramExecuteException
+    {
+        long hi = OpCode.toLong(popStack());
+        long lo = OpCode.toLong(popStack());
+        int next = code.args[pc];
+        int end = next - 1; // parend
+
+        int bodyStart = pc + 1;
+        while (code.ops[bodyStart] == Op.REDUCE || code.ops[bodyStart] == Op.REDUCE_I)
+            bodyStart++;
+        if (lo >= hi)
+            return next;
+
+        // hi - lo may overflow a long, the count of indices is unsigned
+        long n = hi - lo;
+        int chunks = Long.compareUnsigned(n, PARALLEL_CHUNKS) < 0 ? (int)n : PARALLEL_CHUNKS;
+        long base = Long.divideUnsigned(n, chunks);
+        long extra = Long.remainderUnsigned(n, chunks);
+
+        ArrayList<ProgramExecutor> workers = new ArrayList<>(chunks);
+        ArrayList<ProgramOutput> outputs = new ArrayList<>(chunks);
+        ArrayList<Callable<ProgramExecuteException>> tasks = new ArrayList<>(chunks);
+        AtomicLong chunkBytes = new AtomicLong();
+        long first = lo;
+        for (int c = 0; c < chunks; c++)
+        {
+            long from = first, to = first + base + (c < extra ? 1 : 0);
+            first = to;
+
+            ProgramExecutor worker = new ProgramExecutor();
+            worker.stack = Arrays.copyOf(stack, stack.length);
+            worker.sp = sp;
+            worker.heap = heap;
+            worker.calls = new int[INITIAL_CALLS_SIZE];
+            worker.verifier = verifier;
+            for (int i = pc + 1; i < bodyStart; i++)
+                worker.stack[fp + code.args[i]] = 0.0;
+            ProgramOutput chunkOutput = output.forChunk(chunkBytes);
+
+            workers.add(worker);
+            outputs.add(chunkOutput);
+            final int start = bodyStart;
+            // the pool wraps checked exceptions, so the error is returned instead
+            tasks.add(() -> {
+                try {
+                    for (long i = from; i != to; i++) {
+                        worker.pushStack(OpCode.intValue(i));
+                        worker.run(code, start, end, fp, strings, chunkOutput, Long.MAX_VALUE);
+                    }
+                    return null;
+                }
+                catch (ProgramExecuteException e) {
+                    return e;
+                }
+            });
+        }
+
+        try
+        {
+            // the error of the first chunk that failed, like in a sequential loop
+            List<Future<ProgramExecuteException>> results = PARALLEL_POOL.invokeAll(tasks);
+            for (int c = 0; c < chunks; c++) {
+                ProgramExecuteException error;
+                try {
+                    error = results.get(c).get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error)
+                        throw (Error)cause;
+                    throw (RuntimeException)cause;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ProgramExecuteException("Execution was interrupted");
+                }
+                if (error != null)
+                    throw error;
+            }
+
+            for (int c = 0; c < chunks; c++)
+            {
+                output.append(outputs.get(c));
+                double[] chunkStack = workers.get(c).stack;
+                for (int i = pc + 1; i < bodyStart; i++) {
+                    int address = fp + code.args[i];
+                    if (code.ops[i] == Op.REDUCE)
+                        stack[address] += chunkStack[address];
+                    else
+                        stack[address] = OpCode.intValue(OpCode.toLong(stack[address]) + OpCode.toLong(chunkStack[address]));
+                }
+            }
+        }
+        finally {
+            for (ProgramOutput chunkOutput : outputs)
+                chunkOutput.close();
+        }
+        return next;
+    }
+
+    // adds step to the int at address and returns the new value
+    private long stepInt(int address, long step) {
+        long value = OpCode.toLong(stack[address]) + step;
+        stack[address] = OpCode.intValue(value);
+        return value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > stack.length)
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
     }
 
     private void pushStack(double value) {
-        stack.add(value);
+        stack[sp++] = value;
     }
 
     private double popStack() {
-        return stack.remove(stack.size() - 1);
+        return stack[--sp];
     }
 
     public static void main(String[] args)
     {
         ProgramExecutor executor = new ProgramExecutor();
+        ExecutionEngine engine = args.length > 0 ? ExecutionEngine.fromName(args[0]) : ExecutionEngine.INTERPRETER;
+        OptimizationLevel level = args.length > 1 ? OptimizationLevel.fromName(args[1]) : OptimizationLevel.NONE;
 
         String programText;
         try {
             programText = new String(Files.readAllBytes(Paths.get("sample.txt")), Charset.defaultCharset());
-            ProgramExecuteResult result = executor.execute(programText);
+            ProgramExecuteResult result = executor.execute(programText, engine, level);
             System.out.printf(result.success ? result.programOutput : result.errorMessage);
         }
         catch (IOException e) {
@@ -0,0 +1,375 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// What a program prints, as UTF-8 in a byte array that grows as needed and
+// is reused by the next program of the same executor. Numbers are written
+// straight into it, without strings in between; the text is the same as
+// StringBuilder.append would make.
+//
+// At most memoryLimit bytes are kept in memory: when the array would grow
+// past it, its bytes are moved to the end of a temporary file and it starts
+// over, so a program that prints in an endless loop only fills the disk, up
+// to limit bytes, where it is stopped. The check is made when the array
+// fills up, so the output may go past the limit by the rest of the array.
+// The result of the program only keeps the first and the last bytes of a
+// long output.
+//
+// The server streams the output to clients while the program runs, from
+// another thread. Every append publishes the new size with a release store
+// after the bytes are written, and the array is published the same way
+// together with where it starts when either changes, so a reader that
+// loads both with acquire sees the bytes below the size, in the array or
+// in the file, without locking the executor.
+public final class ProgramOutput
+{
+    // the first and the last bytes of a long output that the result keeps,
+    // little enough for writeUTF even if every byte took one and a half
+    static final int EXCERPT_HEAD = 16 * 1024;
+    static final int EXCERPT_TAIL = 16 * 1024;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final VarHandle WINDOW, PUBLISHED;
+
+    static
+    {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            WINDOW = lookup.findVarHandle(ProgramOutput.class, "window", Window.class);
+            PUBLISHED = lookup.findVarHandle(ProgramOutput.class, "published", long.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // the array and the offset of its first byte in the output
+    private static final class Window
+    {
+        final byte[] bytes;
+        final long base;
+
+        Window(byte[] bytes, long base)
+        {
+            this.bytes = bytes;
+            this.base = base;
+        }
+    }
+
+    private final int memoryLimit;
+    private final long limit;
+    // the bytes of all the chunks of a parfor loop, which share the limit,
+    // null for the output of a program
+    private final AtomicLong chunkBytes;
+    private final long start;  // the output before a chunk, 0 for a program
+    private long counted = 0;  // the bytes of this chunk in chunkBytes
+
+    private byte[] bytes = new byte[256];
+    private long base = 0;       // the bytes before it are in the file
+    private int size = 0;
+    private FileChannel spill = null;
+    private Window window;
+    private long published = 0;  // the size readers see
+
+    ProgramOutput(int memoryLimit, long limit)
+    {
+        this(memoryLimit, limit, null, 0);
+    }
+
+    private ProgramOutput(int memoryLimit, long limit, AtomicLong chunkBytes, long start)
+    {
+        this.memoryLimit = Math.min(Math.max(memoryLimit, bytes.length), MAX_ARRAY_SIZE);
+        this.limit = limit;
+        this.chunkBytes = chunkBytes;
+        this.start = start;
+        window = new Window(bytes, 0);
+    }
+
+    // an output for a chunk of a parfor loop, appended to this one at its
+    // end; all of them together with this one are kept to the limit
+    ProgramOutput forChunk(AtomicLong chunkBytes) {
+        return new ProgramOutput(memoryLimit, limit, chunkBytes, size());
+    }
+
+    void clear()
+    {
+        close();
+        base = 0;
+        size = 0;
+        counted = 0;
+        WINDOW.setRelease(this, new Window(bytes, 0));
+        publish();
+    }
+
+    // deletes the file, once nothing reads the output any more
+    public void close()
+    {
+        if (spill != null) {
+            try {
+                spill.close();
+            }
+            catch (IOException e) {
+                // the file is deleted when the process exits then
+            }
+            spill = null;
+        }
+    }
+
+    long size() { return base + size; }
+
+    // the bytes published so far, for a reader
+    public long available() { return (long)PUBLISHED.getAcquire(this); }
+
+    // Bytes of the output published so far, at most max of them from from
+    // on, and none of a character whose bytes are not all there yet, for a
+    // thread that reads the output while it is written. Max is at least 4,
+    // the longest character.
+    public byte[] read(long from, int max) throws IOException
+    {
+        long end = (long)PUBLISHED.getAcquire(this);
+        Window w = (Window)WINDOW.getAcquire(this);
+        int length = (int)Math.min(end - from, max);
+        if (length <= 0)
+            return new byte[0];
+        byte[] b = new byte[length];
+        copy(from, length, w, b, 0);
+        if (from + length == end)
+            return b;
+        return Arrays.copyOf(b, wholeCharacters(b, length));
+    }
+
+    // The output for the result: all of it if it is short, else its head
+    // and tail, cut between characters, and how much was left out.
+    String excerpt() throws ProgramExecuteException
+    {
+        try {
+            return excerpt(size());
+        }
+        catch (IOException e) {
+            throw new ProgramExecuteException("Cannot read the output: " + e.getMessage());
+        }
+    }
+
+    private String excerpt(long total) throws IOException
+    {
+        if (total <= EXCERPT_HEAD + EXCERPT_TAIL) {
+            byte[] b = new byte[(int)total];
+            copy(0, b.length, window, b, 0);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        byte[] head = new byte[EXCERPT_HEAD];
+        copy(0, head.length, window, head, 0);
+        int headLength = wholeCharacters(head, head.length);
+
+        byte[] tail = new byte[EXCERPT_TAIL];
+        copy(total - tail.length, tail.length, window, tail, 0);
+        int tailStart = 0;
+        while (tailStart < tail.length && (tail[tailStart] & 0xc0) == 0x80)
+            tailStart++;
+
+        long omitted = total - headLength - (tail.length - tailStart);
+        return new String(head, 0, headLength, StandardCharsets.UTF_8) +
+            "\n\n[... " + omitted + " bytes omitted, " + total + " bytes of output in all ...]\n\n" +
+            new String(tail, tailStart, tail.length - tailStart, StandardCharsets.UTF_8);
+    }
+
+    void append(String s) throws ProgramExecuteException
+    {
+        int length = s.length();
+        reserve(length);
+        int i = 0;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80)
+                break;
+            bytes[size++] = (byte)c;
+        }
+        if (i < length)
+            appendUtf8(s, i);
+        publish();
+    }
+
+    void append(long value) throws ProgramExecuteException
+    {
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+            return;
+        }
+        reserve(20);
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value;
+        }
+        int length = 1;
+        for (long v = value; v >= 10; v /= 10)
+            length++;
+        for (int i = size + length - 1; i >= size; i--) {
+            bytes[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        size += length;
+        publish();
+    }
+
+    // Double.toString of Java 17 and earlier prints more digits than needed
+    // for some values of 2^53 and more and some powers of two below 2^-23,
+    // so values outside of the range where it agrees with DoubleFormat are
+    // left to it; print rarely sees them.
+    void append(double value) throws ProgramExecuteException
+    {
+        double magnitude = Math.abs(value);
+        if (magnitude >= 1e-3 && magnitude < 0x1p53 || value == 0) {
+            reserve(DoubleFormat.MAX_LENGTH);
+            size = DoubleFormat.write(value, bytes, size);
+            publish();
+        }
+        else {
+            append(Double.toString(value));
+        }
+    }
+
+    // the output of a chunk of a parfor loop, which has ended
+    void append(ProgramOutput other) throws ProgramExecuteException
+    {
+        long total = other.size();
+        for (long from = 0; from < total; )
+        {
+            int length = (int)Math.min(total - from, 64 * 1024);
+            reserve(length);
+            try {
+                other.copy(from, length, other.window, bytes, size);
+            }
+            catch (IOException e) {
+                throw new ProgramExecuteException("Cannot read the output: " + e.getMessage());
+            }
+            size += length;
+            from += length;
+            publish();
+        }
+    }
+
+    // the rest of s from i on, with the surrogate pairs as 4-byte sequences;
+    // an unpaired surrogate becomes '?', like in String.getBytes
+    private void appendUtf8(String s, int i) throws ProgramExecuteException
+    {
+        int length = s.length();
+        reserve(3 * (length - i));
+        for (; i < length; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[size++] = (byte)c;
+            }
+            else if (c < 0x800) {
+                bytes[size++] = (byte)(0xc0 | c >> 6);
+                bytes[size++] = (byte)(0x80 | c & 0x3f);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                bytes[size++] = (byte)(0xf0 | cp >> 18);
+                bytes[size++] = (byte)(0x80 | cp >> 12 & 0x3f);
+                bytes[size++] = (byte)(0x80 | cp >> 6 & 0x3f);
+                bytes[size++] = (byte)(0x80 | cp & 0x3f);
+            }
+            else if (Character.isSurrogate(c)) {
+                bytes[size++] = '?';
+            }
+            else {
+                bytes[size++] = (byte)(0xe0 | c >> 12);
+                bytes[size++] = (byte)(0x80 | c >> 6 & 0x3f);
+                bytes[size++] = (byte)(0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    // copies length bytes from from on, from the file as far as they are
+    // not in the array of w, to out at offset
+    private void copy(long from, int length, Window w, byte[] out, int offset) throws IOException
+    {
+        int inFile = (int)Math.max(0, Math.min(length, w.base - from));
+        if (inFile > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(out, offset, inFile);
+            while (buffer.hasRemaining()) {
+                if (spill.read(buffer, from + buffer.position() - offset) < 0)
+                    throw new EOFException();
+            }
+        }
+        if (inFile < length)
+            System.arraycopy(w.bytes, (int)(from + inFile - w.base), out, offset + inFile, length - inFile);
+    }
+
+    // the length of b up to the character whose bytes it does not all have
+    private static int wholeCharacters(byte[] b, int length)
+    {
+        int start = length - 1;
+        while (start > 0 && (b[start] & 0xc0) == 0x80)
+            start--;
+        int lead = b[start] & 0xff;
+        int characterLength = lead < 0x80 ? 1 : lead < 0xe0 ? 2 : lead < 0xf0 ? 3 : 4;
+        return start + characterLength <= length ? length : start;
+    }
+
+    private void reserve(int count) throws ProgramExecuteException
+    {
+        if (count > bytes.length - size)
+            makeRoom(count);
+    }
+
+    private void makeRoom(int count) throws ProgramExecuteException
+    {
+        long total = size();
+        boolean over = start + total + count > limit;
+        if (chunkBytes != null && !over) {
+            over = start + chunkBytes.addAndGet(total - counted) > limit;
+            counted = total;
+        }
+        if (over)
+            throw new ProgramExecuteException("Program output exceeds the limit of " + limit + " bytes");
+
+        if (size > 0 && (long)size + count > memoryLimit)
+            spill();
+        if (count > bytes.length - size) {
+            long capacity = Math.max((long)size + count, Math.min((long)bytes.length * 2, memoryLimit));
+            if (capacity > MAX_ARRAY_SIZE)
+                throw new OutOfMemoryError("Program output is too large");
+            bytes = Arrays.copyOf(bytes, (int)capacity);
+        }
+        WINDOW.setRelease(this, new Window(bytes, base));
+    }
+
+    // moves the array to the end of the file, the readers still have it
+    // until the new one is published
+    private void spill() throws ProgramExecuteException
+    {
+        try {
+            if (spill == null) {
+                spill = FileChannel.open(Files.createTempFile("vmoutput", null), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, size);
+            while (buffer.hasRemaining())
+                spill.write(buffer, base + buffer.position());
+        }
+        catch (IOException e) {
+            throw new ProgramExecuteException("Cannot write the output: " + e.getMessage());
+        }
+        base += size;
+        size = 0;
+        bytes = new byte[bytes.length];
+    }
+
+    private void publish() {
+        PUBLISHED.setRelease(this, base + size);
+    }
+}
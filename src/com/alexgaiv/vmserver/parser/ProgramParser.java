@@ -13,18 +13,73 @@ class ProgramParseException extends Exception
 
 class ProgramParser
 {
+    // The parfor loop being parsed. Its iterations run on copies of the
+    // variables, so the body may only assign its own variables, the index
+    // and the reductions, each as r = r + EXPR and never read otherwise.
+    private static final class ParallelLoop
+    {
+        final int stackStart;  // variables from here on are declared in the body
+        final int index;
+        final ArrayList<Integer> reductions = new ArrayList<>();
+        int reductionStart = -1; // offset of the right side of an assignment to a reduction
+        int reduction = -1;
+
+        ParallelLoop(int stackStart, int index)
+        {
+            this.stackStart = stackStart;
+            this.index = index;
+        }
+    }
+
+    // A function of the program. Its variables are addressed relative to the
+    // frame pointer: the parameters first, then the return value, then the
+    // variables of its body; see Op.CALL.
+    private static final class Function
+    {
+        final String name;
+        final int index;
+        final VariableType returnType;
+        final ArrayList<VariableType> parameterTypes = new ArrayList<>();
+        final ArrayList<VariableType> elementTypes = new ArrayList<>(); // of array parameters
+        Bytecode body;      // between enter and ret, null while the function is parsed
+        boolean recursive;
+        boolean arrays;     // declares arrays, or calls a function that does
+
+        Function(String name, int index, VariableType returnType)
+        {
+            this.name = name;
+            this.index = index;
+            this.returnType = returnType;
+        }
+    }
+
+    // functions whose code is at most this long in bytes are inlined
+    private static final int INLINE_LIMIT = 256;
+
     private Bytecode bytecode;
     private Token token;
     private ProgramTokenizer tokenizer;
     private ArrayList<Variable> variables;
     private VariableType expressionType;
+    private VariableType arrayElementType; // of the last expression of type array
     private int scopeFlagIndex;
     private int stackPointer;
+    private int constantStart;    // offset of the last ld_const emitted by putConstant()
+    private double constantValue;
+    private boolean reachable;    // false after a loop that never exits
+    private ParallelLoop parallelLoop;
+    private HashMap<String, Function> functions;
+    private Function function;    // the function being parsed
+    private ArrayList<Integer> returnJumps;
+    private int expressionStart;  // offset where the operand stack was last known to be empty
+    private int callStart, callEnd;
 
     private final static String wrongArgsTypesMessage =
             "Wrong argument types for operator `%s`:\nRequired (%s, %s), got (%s, %s)";
     private final static String wrongArgTypeMessage =
             "Wrong argument type for operator `%s`:\nRequired %s, got %s";
+    private final static String wrongFunctionArgMessage =
+            "Wrong argument for function `%s`:\nRequired %s, got %s";
 
     Bytecode getBytecode() { return bytecode; }
     HashMap<Integer, String> getStringTable() { return tokenizer.getStringTable(); }
@@ -37,6 +92,13 @@ class ProgramParser
         expressionType = VariableType.VT_NOT_SET;
         scopeFlagIndex = -1;
         stackPointer = 0;
+        constantStart = -1;
+        reachable = true;
+        parallelLoop = null;
+        functions = new HashMap<>();
+        function = null;
+        expressionStart = -1;
+        callStart = callEnd = -1;
 
         try {
             nextToken();
@@ -48,7 +110,10 @@ class ProgramParser
     }
 
     private void nextToken() throws IOException, UnexpectedTokenException
-    { token = tokenizer.nextToken(); }
+    {
+        token = tokenizer.nextToken();
+        bytecode.setLine(tokenizer.lineno());
+    }
 
     private void parseError() throws UnexpectedTokenException {
         throw new UnexpectedTokenException(token.type.toString(), tokenizer.lineno());
@@ -90,15 +155,19 @@ class ProgramParser
                 "Variable " + identifier.name +
                 " is already declared in current scope", tokenizer.lineno());
 
+        if (parallelLoop != null)
+            throw new ProgramParseException("Arrays cannot be declared in a parallel loop", tokenizer.lineno());
+        if (function != null)
+            function.arrays = true;
+
         Variable v = new Variable(VariableType.VT_ARRAY, identifier, identifier.assignedVarIndex);
         v.address = stackPointer;
         v.arrayElementType = elementType;
         v.scopeFlagIndex = scopeFlagIndex;
 
-        v.size = size + 1;
         stackPointer += v.size;
 
-        bytecode.putValue(size);
+        bytecode.put(OpCode.new_arr, size);
         bytecode.put(OpCode.store, v.address);
 
         int i = variables.size();
@@ -116,6 +185,7 @@ class ProgramParser
     {
         int i = variables.size();
         int size = 0;
+        Variable firstArray = null;
         while (i-- > 0)
         {
             Variable v = variables.get(i);
@@ -128,15 +198,232 @@ class ProgramParser
             }
             v.identifier.assignedVarIndex = v.prevAssignedVarIndex;
             size += v.size;
+            if (v.type == VariableType.VT_ARRAY)
+                firstArray = v;
             variables.remove(i);
         }
 
+        // arrays are freed in the reverse order of allocation, see ArrayHeap
+        if (firstArray != null)
+            bytecode.put(OpCode.free_arr, firstArray.address);
         if (size != 0) {
             stackPointer -= size;
             bytecode.put(OpCode.addsp, size);
         }
     }
 
+    private void putConstant(double value) {
+        constantStart = bytecode.size();
+        constantValue = value;
+        bytecode.putValue(value);
+    }
+
+    // the code emitted from start on is a single ld_const, its value is constantValue
+    private boolean isConstant(int start) {
+        return constantStart == start && bytecode.size() == start + 9;
+    }
+
+    private void truncate(int start) {
+        bytecode.truncate(start);
+        constantStart = -1;
+    }
+
+    // Emits a binary operator whose left operand starts at the given offset,
+    // or evaluates it at compile time if both operands are constants.
+    private void putOperator(OpCode op, int start, boolean leftConstant)
+    {
+        if (leftConstant && isConstant(start + 9)) {
+            double left = bytecode.getDouble(start + 1);
+            double right = constantValue;
+            truncate(start);
+            putConstant(OpCode.evaluate(op.code, left, right));
+        }
+        else bytecode.put(op);
+    }
+
+    private void putUnaryOperator(OpCode op, int start)
+    {
+        if (isConstant(start)) {
+            double value = constantValue;
+            truncate(start);
+            putConstant(OpCode.evaluate(op.code, value, 0.0));
+        }
+        else bytecode.put(op);
+    }
+
+    // an integral real constant is taken as an int where an int is expected
+    private static boolean isIntegral(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 0x1p63;
+    }
+
+    // Makes the int computed by the code from start to end a real: a
+    // constant is converted in place, other code gets an i2r after it.
+    private void widen(int start, int end, boolean constant)
+    {
+        if (constant) {
+            double value = (double)OpCode.toLong(bytecode.getDouble(start + 1));
+            bytecode.putDouble(start + 1, value);
+            if (constantStart == start)
+                constantValue = value;
+            return;
+        }
+
+        insert(end, OpCode.i2r);
+    }
+
+    // puts a one byte instruction at the given offset, before the code after it
+    private void insert(int offset, OpCode op)
+    {
+        Bytecode rest = bytecode.cut(offset);
+        bytecode.put(op);
+        bytecode.append(rest);
+        if (constantStart >= offset)
+            constantStart++;
+    }
+
+    private String getString(double stringId) {
+        return tokenizer.getStringTable().get((int)stringId);
+    }
+
+    // Makes the value computed by the code from start to end a string, the
+    // text print would output for it. A constant becomes a string literal.
+    private void toText(int start, int end, boolean constant, VariableType type)
+    {
+        if (type == VariableType.VT_STRING)
+            return;
+        boolean isInt = type == VariableType.VT_INT;
+
+        if (constant) {
+            double value = bytecode.getDouble(start + 1);
+            String text = isInt ? Long.toString(OpCode.toLong(value)) : Double.toString(value);
+            double stringId = tokenizer.addString(text);
+            bytecode.putDouble(start + 1, stringId);
+            if (constantStart == start)
+                constantValue = stringId;
+            return;
+        }
+        insert(end, isInt ? OpCode.i2s : OpCode.r2s);
+    }
+
+    // Emits the concatenation of the string computed from start on and the one
+    // from right on, one of which may be a number or a bool, to be converted
+    // to its text first. Constants are concatenated at compile time.
+    private void putConcat(int start, boolean leftConstant, int right,
+                           VariableType leftType, VariableType rightType)
+            throws ProgramParseException
+    {
+        if (leftType == VariableType.VT_ARRAY || rightType == VariableType.VT_ARRAY ||
+                leftType == VariableType.VT_NOT_SET || rightType == VariableType.VT_NOT_SET) {
+            String message = String.format(wrongArgsTypesMessage, "+", "string", "string", leftType, rightType);
+            throw new ProgramParseException(message, tokenizer.lineno());
+        }
+
+        // the right operand first, so that it is still where it was
+        toText(right, bytecode.size(), isConstant(right), rightType);
+        toText(start, right, leftConstant, leftType);
+
+        if (leftConstant && isConstant(start + 9)) {
+            String text = getString(bytecode.getDouble(start + 1)) + getString(constantValue);
+            truncate(start);
+            putConstant(tokenizer.addString(text));
+        }
+        else bytecode.put(OpCode.concat);
+    }
+
+    // makes the integral real constant at start an int
+    private void narrow(int start)
+    {
+        double value = OpCode.intValue((long)bytecode.getDouble(start + 1));
+        bytecode.putDouble(start + 1, value);
+        if (constantStart == start)
+            constantValue = value;
+    }
+
+    // Brings the operands of an arithmetic or comparison operator, the left
+    // one from start and the right one from right on, to the same type and
+    // returns it. Two ints stay ints; an int and a real are compared or
+    // computed as reals, unless the real is an integral constant, which
+    // becomes an int. Division is always on reals.
+    private VariableType unifyOperands(TokenType op, int start, boolean leftConstant, int right,
+                                       VariableType leftType, VariableType rightType)
+            throws ProgramParseException
+    {
+        boolean rightConstant = isConstant(right);
+        boolean widenLeft = false, widenRight = false;
+
+        // strings are only concatenated, and compared by their text: the
+        // handles of equal literals are the same, other operands are interned
+        // to the handle of the first string with their text
+        if (leftType == VariableType.VT_STRING || rightType == VariableType.VT_STRING) {
+            if (op != TokenType.T_EQUAL && op != TokenType.T_NOTEQUAL) {
+                String message = String.format(wrongArgsTypesMessage, op.getOperatorSymbol(),
+                    "real", "real", leftType, rightType);
+                throw new ProgramParseException(message, tokenizer.lineno());
+            }
+            if (leftType == rightType) {
+                // the right operand first, so that it is still where it was
+                if (!rightConstant)
+                    bytecode.put(OpCode.intern);
+                if (!leftConstant)
+                    insert(right, OpCode.intern);
+            }
+        }
+
+        if (op == TokenType.T_SLASH) {
+            widenLeft = leftType == VariableType.VT_INT;
+            widenRight = rightType == VariableType.VT_INT;
+        }
+        else if (leftType == VariableType.VT_INT && rightType == VariableType.VT_REAL) {
+            if (rightConstant && isIntegral(constantValue)) {
+                narrow(right);
+                rightType = VariableType.VT_INT;
+            }
+            else widenLeft = true;
+        }
+        else if (leftType == VariableType.VT_REAL && rightType == VariableType.VT_INT) {
+            if (leftConstant && isIntegral(bytecode.getDouble(start + 1))) {
+                narrow(start);
+                leftType = VariableType.VT_INT;
+            }
+            else widenRight = true;
+        }
+
+        // the right operand first, so that it is still where it was
+        if (widenRight) {
+            widen(right, bytecode.size(), rightConstant);
+            rightType = VariableType.VT_REAL;
+        }
+        if (widenLeft) {
+            widen(start, right, leftConstant);
+            leftType = VariableType.VT_REAL;
+        }
+
+        checkArgumentsTypes(leftType, rightType, op);
+        return leftType;
+    }
+
+    private void convertForAssignment(VariableType type, int start) throws ProgramParseException
+    {
+        convert(type, start);
+        checkArgumentsTypes(type, expressionType, TokenType.T_ASSIGN);
+    }
+
+    // Converts the value computed from start on to the type of the variable
+    // it is assigned to, like an operand: an int widens to a real and an
+    // integral real constant narrows to an int.
+    private void convert(VariableType type, int start)
+    {
+        if (type == VariableType.VT_REAL && expressionType == VariableType.VT_INT) {
+            widen(start, bytecode.size(), isConstant(start));
+            expressionType = VariableType.VT_REAL;
+        }
+        else if (type == VariableType.VT_INT && expressionType == VariableType.VT_REAL &&
+                isConstant(start) && isIntegral(constantValue)) {
+            narrow(start);
+            expressionType = VariableType.VT_INT;
+        }
+    }
+
     private void checkArgumentType(VariableType type, TokenType op)
         throws ProgramParseException
     {
@@ -149,7 +436,7 @@ class ProgramParser
             }
         }
         else
-            if (type != VariableType.VT_REAL) {
+            if (type != VariableType.VT_REAL && type != VariableType.VT_INT) {
                 String message = String.format(wrongArgTypeMessage, op.getOperatorSymbol(),
                         "real", type.toString());
                 throw new ProgramParseException(message, tokenizer.lineno());
@@ -200,7 +487,39 @@ class ProgramParser
         }
     }
 
+    // Functions come first, behind a jump to the code of the program. If all
+    // calls were inlined, the code of the functions is dropped.
     private void PROGRAM() throws IOException, ProgramParseException
+    {
+        int functionsEnd = -1;
+        if (token.type == TokenType.T_FUNCTION) {
+            bytecode.put(OpCode.jmp);
+            functionsEnd = bytecode.putLabel();
+            while (token.type == TokenType.T_FUNCTION)
+                FUNCTION_DECL();
+            bytecode.markLabel(functionsEnd);
+        }
+        int start = bytecode.size();
+
+        MAIN();
+
+        if (functionsEnd != -1 && !hasCalls(start)) {
+            Bytecode main = bytecode.cut(start);
+            bytecode.truncate(0);
+            bytecode.append(main);
+        }
+    }
+
+    private boolean hasCalls(int start)
+    {
+        for (int i = start; i < bytecode.size(); i += bytecode.getOpCode(i).size()) {
+            if (bytecode.getOpCode(i) == OpCode.call)
+                return true;
+        }
+        return false;
+    }
+
+    private void MAIN() throws IOException, ProgramParseException
     {
         if (token.type == TokenType.T_LBRACE) {
             while (token.type != TokenType.T_EOF) {
@@ -234,6 +553,23 @@ class ProgramParser
 
     private void CODE2() throws IOException, ProgramParseException
     {
+        // statements that can never run are parsed and type checked, but their code is dropped
+        int start = bytecode.size();
+        boolean wasReachable = reachable;
+
+        STATEMENT();
+
+        if (!wasReachable) {
+            truncate(start);
+            reachable = false;
+        }
+    }
+
+    private void STATEMENT() throws IOException, ProgramParseException
+    {
+        boolean wasReachable = reachable;
+        expressionStart = bytecode.size();
+
         if (token.type == TokenType.T_SEMICOLON) {
             do {
                 nextToken();
@@ -242,64 +578,111 @@ class ProgramParser
         else if (token.type == TokenType.T_LBRACE) {
             CODE();
         }
-        // COND (jmpz l1) STM1 (jmp l2) [l1] STM2 [l2]
-        // COND (jmpz l1) STM1 [l1]
+        // COND (jmp* l1) STM1 (jmp l2) [l1] STM2 [l2]
+        // COND (jmp* l1) STM1 [l1]
+        // a constant COND keeps only the branch it selects
         else if (token.type == TokenType.T_IF)
         {
             nextToken();
             expectToken(TokenType.T_LPAREN);
             nextToken();
-            EXPR();
-            expectToken(TokenType.T_RPAREN);
 
-            if (expressionType != VariableType.VT_BOOL) {
-                throw new ProgramParseException("Condition must have boolean type", tokenizer.lineno());
-            }
+            ArrayList<Integer> l1 = CONDITION();
+            expectToken(TokenType.T_RPAREN);
 
-            bytecode.put(OpCode.jmpz);
-            int l1 = bytecode.putLabel();
+            boolean constant = l1 == null;
+            boolean value = constantValue != 0.0;
 
             nextToken();
+            int thenStart = bytecode.size();
             CODE2();
+            boolean thenReachable = reachable;
+            if (constant && !value) {
+                truncate(thenStart);
+                thenReachable = false;
+            }
+            reachable = wasReachable;
 
             if (token.type == TokenType.T_ELSE)
             {
-                bytecode.put(OpCode.jmp);
-                int l2 = bytecode.putLabel();
-                bytecode.markLabel(l1);
+                int l2 = 0;
+                if (!constant) {
+                    bytecode.put(OpCode.jmp);
+                    l2 = bytecode.putLabel();
+                    markLabels(l1);
+                }
 
                 nextToken();
+                int elseStart = bytecode.size();
                 CODE2();
+                boolean elseReachable = reachable;
+                if (constant && value) {
+                    truncate(elseStart);
+                    elseReachable = false;
+                }
 
-                bytecode.markLabel(l2);
+                if (!constant)
+                    bytecode.markLabel(l2);
+                reachable = thenReachable || elseReachable;
             }
             else {
-                bytecode.markLabel(l1);
+                if (!constant)
+                    markLabels(l1);
+                reachable = thenReachable || wasReachable && !(constant && value);
             }
         }
-        // [l0] COND (jmpz l1) STM (jmp l0) [l1]
+        // [l0] COND (jmp* l1) STM (jmp l0) [l1]
         else if (token.type == TokenType.T_WHILE) {
             nextToken();
             expectToken(TokenType.T_LPAREN);
             nextToken();
 
             int l0 = bytecode.size();
-            EXPR();
+            ArrayList<Integer> l1 = CONDITION();
             expectToken(TokenType.T_RPAREN);
+            nextToken();
 
-            if (expressionType != VariableType.VT_BOOL) {
-                throw new ProgramParseException("Condition must have boolean type", tokenizer.lineno());
-            }
+            LOOP(l0, l1, null, wasReachable);
+        }
+        // INIT [l0] COND (jmp* l1) STM STEP (jmp l0) [l1]
+        // the same code as the equivalent while loop; a missing COND is always true
+        else if (token.type == TokenType.T_FOR) {
+            nextToken();
+            expectToken(TokenType.T_LPAREN);
+            nextToken();
 
-            bytecode.put(OpCode.jmpz);
-            int l1 = bytecode.putLabel();
+            if (token.type != TokenType.T_SEMICOLON)
+                EXPR_STATEMENT();
+            expectToken(TokenType.T_SEMICOLON);
+            nextToken();
 
+            int l0 = bytecode.size();
+            expressionStart = l0;
+            ArrayList<Integer> l1 = null;
+            if (token.type != TokenType.T_SEMICOLON)
+                l1 = CONDITION();
+            else
+                constantValue = 1.0;
+            expectToken(TokenType.T_SEMICOLON);
             nextToken();
-            CODE2();
 
-            bytecode.put(OpCode.jmp, l0);
-            bytecode.markLabel(l1);
+            // the step is parsed before the body, but runs after it
+            double condition = constantValue;
+            int stepStart = bytecode.size();
+            if (token.type != TokenType.T_RPAREN)
+                EXPR_STATEMENT();
+            expectToken(TokenType.T_RPAREN);
+            Bytecode step = bytecode.cut(stepStart);
+            constantStart = -1;
+            constantValue = condition;
+            nextToken();
 
+            LOOP(l0, l1, step, wasReachable);
+        }
+        // LO HI (parfor l) (reduce r)... (store i) STM (parend) [l]
+        else if (token.type == TokenType.T_PARFOR) {
+            PARFOR();
+            reachable = wasReachable;
         }
         else if (token.type == TokenType.T_PRINT || token.type == TokenType.T_PRINTLN)
         {
@@ -314,11 +697,14 @@ class ProgramParser
                 case VT_BOOL:
                     bytecode.put(OpCode.print_real);
                     break;
+                case VT_INT:
+                    bytecode.put(OpCode.print_int);
+                    break;
                 case VT_STRING:
                     bytecode.put(OpCode.print_str);
                     break;
                 case VT_ARRAY:
-                    bytecode.put(OpCode.print_arr);
+                    bytecode.put(arrayElementType == VariableType.VT_INT ? OpCode.print_arr_i : OpCode.print_arr);
                     break;
                 default:
                     throw new ProgramParseException(
@@ -326,24 +712,431 @@ class ProgramParser
             }
 
             if (tt == TokenType.T_PRINTLN) {
-                bytecode.putValue(0.0);
+                bytecode.putValue(tokenizer.addString("\n"));
                 bytecode.put(OpCode.print_str);
             }
 
             expressionType = VariableType.VT_NOT_SET;
             nextToken();
         }
+        else if (token.type == TokenType.T_RETURN) {
+            RETURN();
+        }
         else {
-            EXPR();
+            EXPR_STATEMENT();
             expectToken(TokenType.T_SEMICOLON);
             nextToken();
         }
     }
 
-    private void VAR_DECL() throws IOException, ProgramParseException
+    // An expression whose value is not used, which is dropped so that the
+    // operand stack is empty after every statement. An inlined call ends
+    // with the load of its value, which is dropped instead.
+    private void EXPR_STATEMENT() throws IOException, ProgramParseException
+    {
+        int start = bytecode.size();
+        expressionStart = start;
+        callStart = -1;
+        EXPR();
+        if (expressionType == VariableType.VT_NOT_SET)
+            return;
+
+        if (callStart == start && callEnd == bytecode.size() &&
+                bytecode.getOpCode(callEnd - OpCode.load.size()) == OpCode.load)
+            bytecode.truncate(callEnd - OpCode.load.size());
+        else
+            bytecode.put(OpCode.pop);
+        expressionType = VariableType.VT_NOT_SET;
+    }
+
+    // The body of a loop whose condition starts at l0 and jumps to l1 when
+    // false, or is the constant constantValue if l1 is null.
+    // A constant COND drops the loop if false and the jmpz if true.
+    private void LOOP(int l0, ArrayList<Integer> l1, Bytecode step, boolean wasReachable)
+            throws IOException, ProgramParseException
+    {
+        boolean constant = l1 == null;
+        boolean value = constantValue != 0.0;
+
+        CODE2();
+        if (step != null)
+            bytecode.append(step);
+
+        if (constant && !value) {
+            truncate(l0);
+            reachable = wasReachable;
+        }
+        else {
+            bytecode.put(OpCode.jmp, l0);
+            if (!constant)
+                markLabels(l1);
+            reachable = wasReachable && !constant;
+        }
+    }
+
+    // parfor (I = LO, HI) [reduce(R{,R})] STM
+    // STM runs for every int I from LO to HI - 1, see Op.PARFOR. Assigning
+    // the variables declared outside of the loop, and so shared by its
+    // iterations, is only allowed for the index and the reductions; which
+    // iterations write which array elements is up to the program.
+    private void PARFOR() throws IOException, ProgramParseException
+    {
+        if (parallelLoop != null)
+            throw new ProgramParseException("Parallel loops cannot be nested", tokenizer.lineno());
+
+        nextToken();
+        expectToken(TokenType.T_LPAREN);
+        nextToken();
+        expectToken(TokenType.T_ID);
+        Variable index = declaredVariable(token.identifier);
+        if (index.type != VariableType.VT_INT)
+            throw new ProgramParseException("Parallel loop index must be an int", tokenizer.lineno());
+        nextToken();
+        expectToken(TokenType.T_ASSIGN);
+        nextToken();
+
+        int start = bytecode.size();
+        EXPR();
+        convertForAssignment(VariableType.VT_INT, start);
+        expectToken(TokenType.T_COMMA);
+        nextToken();
+        start = bytecode.size();
+        EXPR();
+        convertForAssignment(VariableType.VT_INT, start);
+        expectToken(TokenType.T_RPAREN);
+        nextToken();
+
+        bytecode.put(OpCode.parfor);
+        int end = bytecode.putLabel();
+
+        ParallelLoop loop = new ParallelLoop(stackPointer, index.address);
+        if (token.type == TokenType.T_ID && token.identifier.name.equals("reduce")) {
+            nextToken();
+            expectToken(TokenType.T_LPAREN);
+            do {
+                nextToken();
+                expectToken(TokenType.T_ID);
+                Variable v = declaredVariable(token.identifier);
+                if (v.type != VariableType.VT_REAL && v.type != VariableType.VT_INT) {
+                    throw new ProgramParseException(
+                        "Reduction variable " + v.identifier.name + " must be real or int", tokenizer.lineno());
+                }
+                if (v.address == index.address || loop.reductions.contains(v.address)) {
+                    throw new ProgramParseException(
+                        "Variable " + v.identifier.name + " cannot be a reduction", tokenizer.lineno());
+                }
+                loop.reductions.add(v.address);
+                bytecode.put(v.type == VariableType.VT_INT ? OpCode.reduce_i : OpCode.reduce, v.address);
+                nextToken();
+            } while (token.type == TokenType.T_COMMA);
+            expectToken(TokenType.T_RPAREN);
+            nextToken();
+        }
+        bytecode.put(OpCode.store, index.address);
+
+        parallelLoop = loop;
+        CODE2();
+        parallelLoop = null;
+
+        bytecode.put(OpCode.parend);
+        bytecode.markLabel(end);
+        expressionType = VariableType.VT_NOT_SET;
+    }
+
+    private Variable declaredVariable(Identifier identifier) throws ProgramParseException
+    {
+        if (!identifier.isVariableAssigned()) {
+            throw new ProgramParseException(
+                    "Undeclared identifier " + identifier.name, tokenizer.lineno());
+        }
+        return variables.get(identifier.assignedVarIndex);
+    }
+
+    // whether assigning v in the current parallel loop makes it a reduction,
+    // if it is allowed at all
+    private boolean isReductionAssignment(Variable v) throws ProgramParseException
+    {
+        if (parallelLoop == null || v.address >= parallelLoop.stackStart || v.address == parallelLoop.index)
+            return false;
+        if (!parallelLoop.reductions.contains(v.address)) {
+            throw new ProgramParseException("Variable " + v.identifier.name +
+                " is shared by the iterations of a parallel loop and cannot be assigned", tokenizer.lineno());
+        }
+        return true;
+    }
+
+    // A reduction can only be loaded as the left operand of r = r + EXPR,
+    // which is the first instruction of the right side.
+    private void checkReductionLoad(Variable v) throws ProgramParseException
+    {
+        if (parallelLoop == null || !parallelLoop.reductions.contains(v.address))
+            return;
+        if (v.address != parallelLoop.reduction || bytecode.size() != parallelLoop.reductionStart)
+            throw new ProgramParseException(reductionMessage(v), tokenizer.lineno());
+        parallelLoop.reductionStart = -1;
+    }
+
+    private static String reductionMessage(Variable v) {
+        return String.format("Reduction variable %s can only be used as %s = %s + ...",
+            v.identifier.name, v.identifier.name, v.identifier.name);
+    }
+
+    // The right side of r = r + EXPR emitted from start on: load r, the code
+    // of EXPR, which leaves a single value on the operand stack without
+    // touching the one below, and add or add_i.
+    private void checkReduction(Variable v, int start) throws ProgramParseException
+    {
+        boolean valid = parallelLoop.reductionStart == -1;
+        int depth = 0; // above the loaded r
+        OpCode op = null;
+        int offset = start + OpCode.load.size();
+        while (valid && offset < bytecode.size()) {
+            op = bytecode.getOpCode(offset);
+            offset += op.size();
+            if (offset == bytecode.size())
+                break;
+            if (op == OpCode.call) {
+                // pops the arguments, pushes the value
+                int count = functionAt(bytecode.getInt(offset - 4)).parameterTypes.size();
+                valid = depth >= count;
+                depth += 1 - count;
+                continue;
+            }
+            valid = !op.isJump() && depth >= StackAnalysis.operandCount(op.code);
+            depth += StackAnalysis.stackEffect(op.code);
+        }
+        if (!valid || depth != 1 || op != OpCode.add && op != OpCode.add_i)
+            throw new ProgramParseException(reductionMessage(v), tokenizer.lineno());
+    }
+
+    private Function functionAt(int index)
+    {
+        for (Function f : functions.values()) {
+            if (f.index == index)
+                return f;
+        }
+        return null;
+    }
+
+    // function DATATYPE I([DATATYPE I[[]]{, DATATYPE I[[]]}]) CODE
+    // (enter n) CODE [returns] (ret), every path of CODE must return.
+    private void FUNCTION_DECL() throws IOException, ProgramParseException
+    {
+        nextToken();
+        VariableType returnType = dataType();
+        nextToken();
+        expectToken(TokenType.T_ID);
+        String name = token.identifier.name;
+        if (functions.containsKey(name))
+            throw new ProgramParseException("Function " + name + " is already declared", tokenizer.lineno());
+        Function f = new Function(name, functions.size(), returnType);
+        nextToken();
+        expectToken(TokenType.T_LPAREN);
+        nextToken();
+
+        enterScope();
+        while (token.type != TokenType.T_RPAREN)
+        {
+            if (!f.parameterTypes.isEmpty()) {
+                expectToken(TokenType.T_COMMA);
+                nextToken();
+            }
+            VariableType type = dataType();
+            nextToken();
+            expectToken(TokenType.T_ID);
+            Identifier identifier = token.identifier;
+            nextToken();
+
+            VariableType elementType = null;
+            if (token.type == TokenType.T_LBRACKET) {
+                nextToken();
+                expectToken(TokenType.T_RBRACKET);
+                nextToken();
+                elementType = type;
+                type = VariableType.VT_ARRAY;
+            }
+            newVariable(type, identifier).arrayElementType = elementType;
+            f.parameterTypes.add(type);
+            f.elementTypes.add(elementType);
+        }
+        nextToken();
+
+        bytecode.put(OpCode.enter, stackPointer);
+        stackPointer++; // the return value
+        int bodyStart = bytecode.size();
+        functions.put(name, f);
+        function = f;
+        returnJumps = new ArrayList<>();
+
+        // the body shares the scope of the parameters
+        expectToken(TokenType.T_LBRACE);
+        nextToken();
+        processDeclaration();
+        while (token.type != TokenType.T_RBRACE) {
+            CODE2();
+            if (token.type == TokenType.T_EOF) parseError();
+        }
+        if (reachable)
+            throw new ProgramParseException("Function " + name + " must return a value", tokenizer.lineno());
+        nextToken();
+
+        // the variables are freed by the returns, the code after them is never run
+        int end = bytecode.size();
+        exitScope();
+        bytecode.truncate(end);
+
+        markLabels(returnJumps);
+
+        f.body = bytecode.cut(bodyStart);
+        bytecode.append(f.body);
+        bytecode.put(OpCode.ret);
+
+        function = null;
+        reachable = true;
+        stackPointer = 0;
+    }
+
+    // return EXPR;
+    // EXPR (store rv) (free_arr a) (addsp n) (jmp ret)
+    private void RETURN() throws IOException, ProgramParseException
     {
-        VariableType dataType = token.type == TokenType.T_REAL ? VariableType.VT_REAL : VariableType.VT_STRING;
+        if (function == null)
+            throw new ProgramParseException("Return outside of a function", tokenizer.lineno());
+        if (parallelLoop != null)
+            throw new ProgramParseException("Cannot return from a parallel loop", tokenizer.lineno());
 
+        nextToken();
+        int start = bytecode.size();
+        EXPR();
+        expectToken(TokenType.T_SEMICOLON);
+        nextToken();
+        convert(function.returnType, start);
+        if (expressionType != function.returnType) {
+            String message = String.format("Function %s must return %s, got %s",
+                function.name, function.returnType, expressionType);
+            throw new ProgramParseException(message, tokenizer.lineno());
+        }
+
+        // the variables of the body, above the return value
+        int returnValue = function.parameterTypes.size();
+        int size = 0;
+        Variable firstArray = null;
+        for (Variable v : variables) {
+            if (!v.isScopeFlag() && v.address > returnValue) {
+                size += v.size;
+                if (v.type == VariableType.VT_ARRAY && firstArray == null)
+                    firstArray = v;
+            }
+        }
+
+        bytecode.put(OpCode.store, returnValue);
+        if (firstArray != null)
+            bytecode.put(OpCode.free_arr, firstArray.address);
+        if (size != 0)
+            bytecode.put(OpCode.addsp, size);
+        bytecode.put(OpCode.jmp);
+        returnJumps.add(bytecode.putLabel());
+
+        reachable = false;
+        expressionType = VariableType.VT_NOT_SET;
+    }
+
+    // A call of f, with the current token the `(` after its name. A small
+    // function that does not call itself is inlined where the operand
+    // stack is empty, with its frame on top of the variables:
+    //   (subsp n+1) ARG (store base)... [code of f] (addsp n+1) (load base+n)
+    // the return value is loaded from the frame just freed. Otherwise:
+    //   ARG... (call f)
+    private void CALL(Function f) throws IOException, ProgramParseException
+    {
+        if (parallelLoop != null && f.arrays) {
+            throw new ProgramParseException(
+                "Function " + f.name + " declares arrays and cannot be called in a parallel loop", tokenizer.lineno());
+        }
+        if (function != null)
+            function.arrays |= f.arrays;
+        if (f == function)
+            f.recursive = true;
+
+        int start = bytecode.size();
+        int outerStart = expressionStart;
+        boolean inline = f.body != null && !f.recursive && f.body.size() <= INLINE_LIMIT &&
+            start == expressionStart;
+        int count = f.parameterTypes.size();
+        int base = stackPointer;
+        if (inline) {
+            bytecode.put(OpCode.subsp, count + 1);
+            stackPointer += count + 1;
+        }
+
+        nextToken();
+        int i = 0;
+        for (; token.type != TokenType.T_RPAREN; i++)
+        {
+            if (i > 0) {
+                expectToken(TokenType.T_COMMA);
+                nextToken();
+            }
+            if (i == count)
+                break;
+
+            // the arguments of an inlined call are stored off the stack, those
+            // of a call go on top of what is there
+            int argStart = bytecode.size();
+            if (inline)
+                expressionStart = argStart;
+            EXPR();
+            if (f.parameterTypes.get(i) == VariableType.VT_ARRAY) {
+                if (expressionType != VariableType.VT_ARRAY) {
+                    String message = String.format(wrongFunctionArgMessage, f.name,
+                        f.elementTypes.get(i) + " array", expressionType);
+                    throw new ProgramParseException(message, tokenizer.lineno());
+                }
+                checkElementType(f.name, f.elementTypes.get(i), arrayElementType);
+            }
+            else {
+                convertToElement(f.name, f.parameterTypes.get(i), argStart, bytecode.size(),
+                    isConstant(argStart), expressionType);
+            }
+            if (inline)
+                bytecode.put(OpCode.store, base + i);
+        }
+        if (i != count || token.type != TokenType.T_RPAREN) {
+            throw new ProgramParseException(
+                "Function " + f.name + " takes " + count + " arguments", tokenizer.lineno());
+        }
+        nextToken();
+        expressionStart = outerStart;
+
+        if (inline) {
+            stackPointer = base;
+            bytecode.append(f.body.relocate(base));
+            bytecode.put(OpCode.addsp, count + 1);
+            bytecode.put(OpCode.load, base + count);
+        }
+        else {
+            bytecode.put(OpCode.call, f.index);
+        }
+        callStart = start;
+        callEnd = bytecode.size();
+        expressionType = f.returnType;
+    }
+
+    private VariableType dataType() throws UnexpectedTokenException
+    {
+        if (token.type == TokenType.T_REAL)
+            return VariableType.VT_REAL;
+        if (token.type == TokenType.T_INT)
+            return VariableType.VT_INT;
+        if (token.type == TokenType.T_STRING)
+            return VariableType.VT_STRING;
+        parseError();
+        return null;
+    }
+
+    private void VAR_DECL() throws IOException, ProgramParseException
+    {
+        VariableType dataType = dataType();
         nextToken();
         VAR_DECL2(dataType);
         while (token.type == TokenType.T_COMMA) {
@@ -385,78 +1178,226 @@ class ProgramParser
 
             if (token.type == TokenType.T_ASSIGN) {
                 nextToken();
+                int start = bytecode.size();
+                expressionStart = start;
                 EXPR();
 
-                checkArgumentsTypes(dataType, expressionType, TokenType.T_ASSIGN);
+                convertForAssignment(dataType, start);
                 bytecode.put(OpCode.store, variable.address);
             }
         }
     }
 
-    private void EXPR() throws IOException, ProgramParseException
+    // Parses the condition of if/while and emits the jumps taken when it is
+    // false; the code falls through when it is true. Returns the labels of
+    // those jumps, or null and no code if the condition is the constant
+    // constantValue.
+    private ArrayList<Integer> CONDITION() throws IOException, ProgramParseException
+    {
+        int start = bytecode.size();
+        ArrayList<Integer> falseJumps = new ArrayList<>();
+        EXPR(falseJumps);
+
+        if (expressionType != VariableType.VT_BOOL) {
+            throw new ProgramParseException("Condition must have boolean type", tokenizer.lineno());
+        }
+
+        if (isConstant(start)) {
+            truncate(start);
+            return null;
+        }
+        return falseJumps;
+    }
+
+    private void EXPR() throws IOException, ProgramParseException {
+        EXPR(null);
+    }
+
+    // && and || skip their right operand when the left one decides the result:
+    //   A && B:  A (jmpz f) B ... [f] 0
+    //   A || B:  A (jmpz l) (jmp t) [l] B ... [t] 1
+    // Jumps of a chain of operators go to the next operand that can still
+    // change the result, or to its end. As a condition (falseJumps given), the
+    // last operand is tested too and every false result jumps to falseJumps.
+    private void EXPR(ArrayList<Integer> falseJumps) throws IOException, ProgramParseException
     {
+        int start = bytecode.size();
         EXPR2();
         TokenType tt = token.type;
         VariableType leftExpressionType = expressionType;
+        boolean chain = false;
+        ArrayList<Integer> toFalse = new ArrayList<>();
+        ArrayList<Integer> toTrue = new ArrayList<>();
 
         while (tt.getOperatorPriority() == 4) {
+            boolean and = tt == TokenType.T_AND;
             nextToken();
+
+            int right = start;
+            boolean decided = false;
+            if (isConstant(start)) {
+                // the result so far is known: it either is the result or the right operand is
+                decided = (constantValue != 0.0) != and;
+                truncate(start);
+            }
+            else {
+                bytecode.put(OpCode.jmpz);
+                if (and) {
+                    toFalse.add(bytecode.putLabel());
+                    markLabels(toTrue);
+                }
+                else {
+                    int next = bytecode.putLabel();
+                    bytecode.put(OpCode.jmp);
+                    toTrue.add(bytecode.putLabel());
+                    bytecode.markLabel(next);
+                    markLabels(toFalse);
+                }
+                right = bytecode.size();
+            }
+
             EXPR2();
             checkArgumentsTypes(leftExpressionType, expressionType, tt);
-            bytecode.put(tt.getOpCode());
+            if (expressionType == VariableType.VT_INT) {
+                String message = String.format(wrongArgsTypesMessage, tt.getOperatorSymbol(),
+                    "bool", "bool", leftExpressionType, expressionType);
+                throw new ProgramParseException(message, tokenizer.lineno());
+            }
+            if (decided) {
+                truncate(start);
+                putConstant(and ? 0.0 : 1.0);
+            }
+            else if (isConstant(right)) {
+                double value = constantValue != 0.0 ? 1.0 : 0.0;
+                truncate(right);
+                putConstant(value);
+            }
 
+            chain = true;
             expressionType = VariableType.VT_BOOL;
             tt = token.type;
         }
+
+        int last = bytecode.size() - 9;
+        if (falseJumps != null) {
+            if (isConstant(start))
+                return;
+            if (!isConstant(last)) {
+                bytecode.put(OpCode.jmpz);
+                falseJumps.add(bytecode.putLabel());
+            }
+            else if (constantValue == 0.0) {
+                // a constant last operand needs no test
+                truncate(last);
+                bytecode.put(OpCode.jmp);
+                falseJumps.add(bytecode.putLabel());
+            }
+            else {
+                truncate(last);
+            }
+            markLabels(toTrue);
+            falseJumps.addAll(toFalse);
+            return;
+        }
+        if (!chain || isConstant(start))
+            return;
+
+        // the last operand is the result, and like the other operators it must be 0 or 1
+        if (!isConstant(last) && leftExpressionType != VariableType.VT_BOOL) {
+            bytecode.putValue(0.0);
+            bytecode.put(OpCode.noteq);
+        }
+        int endFalse = -1, endTrue = -1;
+        if (!toFalse.isEmpty()) {
+            bytecode.put(OpCode.jmp);
+            endFalse = bytecode.putLabel();
+            markLabels(toFalse);
+            bytecode.putValue(0.0);
+        }
+        if (!toTrue.isEmpty()) {
+            bytecode.put(OpCode.jmp);
+            endTrue = bytecode.putLabel();
+            markLabels(toTrue);
+            bytecode.putValue(1.0);
+        }
+        if (endFalse != -1)
+            bytecode.markLabel(endFalse);
+        if (endTrue != -1)
+            bytecode.markLabel(endTrue);
+    }
+
+    private void markLabels(ArrayList<Integer> labels)
+    {
+        for (int label : labels)
+            bytecode.markLabel(label);
+        labels.clear();
     }
 
     private void EXPR2() throws IOException, ProgramParseException
     {
+        int start = bytecode.size();
         EXPR3();
         TokenType tt = token.type;
         VariableType leftExpressionType = expressionType;
 
         while (tt.getOperatorPriority() == 3) {
+            boolean leftConstant = isConstant(start);
             nextToken();
+            int right = bytecode.size();
             EXPR3();
-            checkArgumentsTypes(leftExpressionType, expressionType, tt);
-            bytecode.put(tt.getOpCode());
+            VariableType type = unifyOperands(tt, start, leftConstant, right, leftExpressionType, expressionType);
+            putOperator(type == VariableType.VT_INT ? tt.getOpCode().toInt() : tt.getOpCode(), start, leftConstant);
 
             expressionType = VariableType.VT_BOOL;
+            leftExpressionType = expressionType;
             tt = token.type;
         }
     }
 
     private void EXPR3() throws IOException, ProgramParseException
     {
+        int start = bytecode.size();
         EXPR4();
         TokenType tt = token.type;
         VariableType leftExpressionType = expressionType;
 
         while (tt.getOperatorPriority() == 2) {
+            boolean leftConstant = isConstant(start);
             nextToken();
+            int right = bytecode.size();
             EXPR4();
-            checkArgumentsTypes(leftExpressionType, expressionType, tt);
-            bytecode.put(tt.getOpCode());
-
-            expressionType = tt.isBooleanOperator() ? VariableType.VT_BOOL : VariableType.VT_REAL;
+            if (tt == TokenType.T_PLUS &&
+                    (leftExpressionType == VariableType.VT_STRING || expressionType == VariableType.VT_STRING)) {
+                putConcat(start, leftConstant, right, leftExpressionType, expressionType);
+                expressionType = VariableType.VT_STRING;
+            }
+            else {
+                VariableType type = unifyOperands(tt, start, leftConstant, right, leftExpressionType, expressionType);
+                putOperator(type == VariableType.VT_INT ? tt.getOpCode().toInt() : tt.getOpCode(), start, leftConstant);
+                expressionType = type == VariableType.VT_INT ? VariableType.VT_INT : VariableType.VT_REAL;
+            }
+            leftExpressionType = expressionType;
             tt = token.type;
         }
     }
 
     private void EXPR4() throws IOException, ProgramParseException
     {
+        int start = bytecode.size();
         F();
         TokenType tt = token.type;
         VariableType leftExpressionType = expressionType;
 
         while (tt.getOperatorPriority() == 1) {
+            boolean leftConstant = isConstant(start);
             nextToken();
+            int right = bytecode.size();
             F();
-            checkArgumentsTypes(leftExpressionType, expressionType, tt);
-            bytecode.put(tt.getOpCode());
+            VariableType type = unifyOperands(tt, start, leftConstant, right, leftExpressionType, expressionType);
+            putOperator(type == VariableType.VT_INT ? tt.getOpCode().toInt() : tt.getOpCode(), start, leftConstant);
 
-            expressionType = tt.isBooleanOperator() ? VariableType.VT_BOOL : VariableType.VT_REAL;
+            expressionType = type == VariableType.VT_INT ? VariableType.VT_INT : VariableType.VT_REAL;
+            leftExpressionType = expressionType;
             tt = token.type;
         }
     }
@@ -465,30 +1406,34 @@ class ProgramParser
     {
         switch (token.type)
         {
-            case T_NOT:
+            case T_NOT: {
                 nextToken();
+                int start = bytecode.size();
                 F();
                 checkArgumentType(expressionType, TokenType.T_NOT);
-                bytecode.put(OpCode.not);
+                putUnaryOperator(OpCode.not, start);
                 break;
-            case T_MINUS:
+            }
+            case T_MINUS: {
                 nextToken();
+                int start = bytecode.size();
                 F();
                 checkArgumentType(expressionType, TokenType.T_MINUS);
-                bytecode.put(OpCode.neg);
+                putUnaryOperator(expressionType == VariableType.VT_INT ? OpCode.neg_i : OpCode.neg, start);
                 break;
+            }
             case T_PLUS:
                 nextToken();
                 F();
                 checkArgumentType(expressionType, TokenType.T_PLUS);
                 break;
             case T_NUMBER:
-                bytecode.putValue(token.realValue);
+                putConstant(token.realValue);
                 nextToken();
                 expressionType = VariableType.VT_REAL;
                 break;
             case T_STR_LITERAL:
-                bytecode.putValue(token.stringId);
+                putConstant(token.stringId);
                 nextToken();
                 expressionType = VariableType.VT_STRING;
                 break;
@@ -498,30 +1443,72 @@ class ProgramParser
                 expectToken(TokenType.T_RPAREN);
                 nextToken();
                 break;
-            case T_SQRT:
+            case T_SQRT: {
                 nextToken();
                 expectToken(TokenType.T_LPAREN);
                 nextToken();
+                int start = bytecode.size();
                 EXPR();
                 expectToken(TokenType.T_RPAREN);
 
-                bytecode.put(OpCode.sqrt);
+                if (expressionType == VariableType.VT_INT)
+                    widen(start, bytecode.size(), isConstant(start));
+                putUnaryOperator(OpCode.sqrt, start);
                 expressionType = VariableType.VT_REAL;
                 nextToken();
                 break;
+            }
+            case T_LEN: {
+                nextToken();
+                expectToken(TokenType.T_LPAREN);
+                nextToken();
+                int start = bytecode.size();
+                EXPR();
+                expectToken(TokenType.T_RPAREN);
+
+                if (expressionType != VariableType.VT_STRING) {
+                    String message = String.format(wrongArgTypeMessage, "len", "string", expressionType);
+                    throw new ProgramParseException(message, tokenizer.lineno());
+                }
+                if (isConstant(start)) {
+                    long length = getString(constantValue).length();
+                    truncate(start);
+                    putConstant(OpCode.intValue(length));
+                }
+                else bytecode.put(OpCode.len);
+                expressionType = VariableType.VT_INT;
+                nextToken();
+                break;
+            }
             case T_ID:
                 Identifier identifier = token.identifier;
+                int line = tokenizer.lineno();
+                nextToken();
+                if (token.type == TokenType.T_LPAREN) {
+                    if (functions.containsKey(identifier.name))
+                        CALL(functions.get(identifier.name));
+                    else
+                        FUNCTION(identifier.name, line);
+                    break;
+                }
                 if (!identifier.isVariableAssigned()) {
                     throw new ProgramParseException(
-                            "Undeclared identifier " + identifier.name, tokenizer.lineno());
+                            "Undeclared identifier " + identifier.name, line);
                 }
                 Variable variable = variables.get(identifier.assignedVarIndex);
 
-                nextToken();
                 if (token.type == TokenType.T_ASSIGN) {
                     nextToken();
+                    boolean reduction = isReductionAssignment(variable);
+                    int start = bytecode.size();
+                    if (reduction) {
+                        parallelLoop.reduction = variable.address;
+                        parallelLoop.reductionStart = start;
+                    }
                     EXPR();
-                    checkArgumentsTypes(variable.type, expressionType, TokenType.T_ASSIGN);
+                    convertForAssignment(variable.type, start);
+                    if (reduction)
+                        checkReduction(variable, start);
                     bytecode.put(OpCode.store, variable.address);
                     expressionType = VariableType.VT_NOT_SET;
                 }
@@ -531,27 +1518,32 @@ class ProgramParser
                     expectToken(TokenType.T_RBRACKET);
                     nextToken();
 
-                    if (expressionType != VariableType.VT_REAL) {
+                    if (expressionType != VariableType.VT_REAL && expressionType != VariableType.VT_INT) {
                         throw new ProgramParseException("Array index must be an number", tokenizer.lineno());
                     }
+                    boolean intIndex = expressionType == VariableType.VT_INT;
 
                     if (token.type == TokenType.T_ASSIGN) {
                         nextToken();
+                        int start = bytecode.size();
                         EXPR();
-                        checkArgumentsTypes(variable.arrayElementType, expressionType, TokenType.T_ASSIGN);
-                        bytecode.put(OpCode.st_arr, variable.address);
+                        convertForAssignment(variable.arrayElementType, start);
+                        bytecode.put(intIndex ? OpCode.st_arr_i : OpCode.st_arr, variable.address);
                         expressionType = VariableType.VT_NOT_SET;
                     }
                     else {
-                        if (variable.arrayElementType == VariableType.VT_REAL) {
-                            bytecode.put(OpCode.ld_arr, variable.address);
+                        if (variable.arrayElementType == VariableType.VT_REAL ||
+                                variable.arrayElementType == VariableType.VT_INT) {
+                            bytecode.put(intIndex ? OpCode.ld_arr_i : OpCode.ld_arr, variable.address);
                         }
                         expressionType = variable.arrayElementType;
                     }
                 }
                 else {
+                    checkReductionLoad(variable);
                     if (variable.type == VariableType.VT_ARRAY) {
-                        bytecode.putValue((double)variable.address);
+                        bytecode.put(OpCode.load, variable.address);
+                        arrayElementType = variable.arrayElementType;
                     }
                     else {
                         bytecode.put(OpCode.load, variable.address);
@@ -563,4 +1555,110 @@ class ProgramParser
                 parseError();
         }
     }
+
+    // A call of an array function, with the current token the `(` after its
+    // name. Function names are not keywords, a call is an identifier that is
+    // followed by `(`. sum, max and dot return a number of the element type
+    // of their arrays; axpy and fill change their last array and return
+    // nothing, like an assignment.
+    private void FUNCTION(String name, int line) throws IOException, ProgramParseException
+    {
+        nextToken();
+        switch (name)
+        {
+            case "sum":
+            case "max": {
+                VariableType type = arrayArgument(name);
+                boolean isInt = type == VariableType.VT_INT;
+                if (name.equals("sum"))
+                    bytecode.put(isInt ? OpCode.sum_i : OpCode.sum);
+                else
+                    bytecode.put(isInt ? OpCode.max_i : OpCode.max);
+                expressionType = type;
+                break;
+            }
+            case "dot": {
+                VariableType type = arrayArgument(name);
+                nextArgument();
+                checkElementType(name, type, arrayArgument(name));
+                bytecode.put(type == VariableType.VT_INT ? OpCode.dot_i : OpCode.dot);
+                expressionType = type;
+                break;
+            }
+            case "axpy": {
+                int start = bytecode.size();
+                EXPR();
+                int end = bytecode.size();
+                boolean constant = isConstant(start);
+                VariableType scalarType = expressionType;
+                nextArgument();
+                VariableType type = arrayArgument(name);
+                nextArgument();
+                checkElementType(name, type, arrayArgument(name));
+                convertToElement(name, type, start, end, constant, scalarType);
+                bytecode.put(type == VariableType.VT_INT ? OpCode.axpy_i : OpCode.axpy);
+                expressionType = VariableType.VT_NOT_SET;
+                break;
+            }
+            case "fill": {
+                VariableType type = arrayArgument(name);
+                nextArgument();
+                int start = bytecode.size();
+                EXPR();
+                convertToElement(name, type, start, bytecode.size(), isConstant(start), expressionType);
+                bytecode.put(OpCode.fill);
+                expressionType = VariableType.VT_NOT_SET;
+                break;
+            }
+            default:
+                throw new ProgramParseException("Unknown function " + name, line);
+        }
+        expectToken(TokenType.T_RPAREN);
+        nextToken();
+    }
+
+    private void nextArgument() throws IOException, ProgramParseException
+    {
+        expectToken(TokenType.T_COMMA);
+        nextToken();
+    }
+
+    // parses an argument that must be an array of numbers, returns its element type
+    private VariableType arrayArgument(String function) throws IOException, ProgramParseException
+    {
+        EXPR();
+        if (expressionType != VariableType.VT_ARRAY ||
+                arrayElementType != VariableType.VT_REAL && arrayElementType != VariableType.VT_INT) {
+            String message = String.format(wrongFunctionArgMessage, function, "array of numbers",
+                expressionType == VariableType.VT_ARRAY ? arrayElementType + " array" : expressionType);
+            throw new ProgramParseException(message, tokenizer.lineno());
+        }
+        return arrayElementType;
+    }
+
+    private void checkElementType(String function, VariableType required, VariableType type)
+            throws ProgramParseException
+    {
+        if (type != required) {
+            String message = String.format(wrongFunctionArgMessage, function, required + " array", type + " array");
+            throw new ProgramParseException(message, tokenizer.lineno());
+        }
+    }
+
+    // Converts the number computed by the code from start to end to the
+    // element type of an array, like convertForAssignment() does.
+    private void convertToElement(String function, VariableType elementType, int start, int end,
+                                  boolean constant, VariableType type)
+            throws ProgramParseException
+    {
+        if (elementType == VariableType.VT_REAL && type == VariableType.VT_INT)
+            widen(start, end, constant);
+        else if (elementType == VariableType.VT_INT && type == VariableType.VT_REAL &&
+                constant && isIntegral(bytecode.getDouble(start + 1)))
+            narrow(start);
+        else if (type != elementType) {
+            String message = String.format(wrongFunctionArgMessage, function, elementType, type);
+            throw new ProgramParseException(message, tokenizer.lineno());
+        }
+    }
 }
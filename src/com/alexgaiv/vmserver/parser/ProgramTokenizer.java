@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
 import java.util.HashMap;
-import java.util.Map;
 
 enum TokenType
 {
@@ -32,15 +31,21 @@ enum TokenType
 
     // data types
     T_REAL,
+    T_INT,
     T_STRING,
 
     T_PRINT,
     T_PRINTLN,
     T_SQRT,
+    T_LEN,
 
     T_IF,
     T_ELSE,
     T_WHILE,
+    T_FOR,
+    T_PARFOR,
+    T_FUNCTION,
+    T_RETURN,
     T_LPAREN,
     T_RPAREN,
     T_LBRACKET,
@@ -87,7 +92,7 @@ enum TokenType
     }
 
     boolean isDataType() {
-        return this == TokenType.T_REAL || this == TokenType.T_STRING;
+        return this == TokenType.T_REAL || this == TokenType.T_INT || this == TokenType.T_STRING;
     }
 }
 
@@ -128,6 +133,7 @@ class ProgramTokenizer
     private StreamTokenizer tz;
     private IdentifiersTable identifiers;
     private HashMap<Integer, String> stringTable;
+    private HashMap<String, Integer> stringIds;
     private int lastStringId;
     private final static HashMap<String, TokenType> keyword2token;
     private final static HashMap<Character, TokenType> delim2token;
@@ -137,7 +143,7 @@ class ProgramTokenizer
         delim2token = new HashMap<>();
 
         String[] keywords = {
-            "real", "string", "if", "else", "while", "print", "println", "sqrt"
+            "real", "int", "string", "if", "else", "while", "for", "parfor", "function", "return", "print", "println", "sqrt", "len"
         };
 
         char[] delims = {
@@ -146,13 +152,19 @@ class ProgramTokenizer
 
         TokenType[] keywordsTokens = {
                 TokenType.T_REAL,
+                TokenType.T_INT,
                 TokenType.T_STRING,
                 TokenType.T_IF,
                 TokenType.T_ELSE,
                 TokenType.T_WHILE,
+                TokenType.T_FOR,
+                TokenType.T_PARFOR,
+                TokenType.T_FUNCTION,
+                TokenType.T_RETURN,
                 TokenType.T_PRINT,
                 TokenType.T_PRINTLN,
-                TokenType.T_SQRT
+                TokenType.T_SQRT,
+                TokenType.T_LEN
         };
 
         TokenType[] delimsTokens = {
@@ -192,9 +204,12 @@ class ProgramTokenizer
         tz = new StreamTokenizer(new StringReader(str));
         identifiers = new IdentifiersTable();
         stringTable = new HashMap<>();
+        stringIds = new HashMap<>();
         lastStringId = 0;
 
-        stringTable.put(lastStringId, "\n");
+        // 0 is the value of a string variable not assigned yet
+        stringTable.put(lastStringId, "");
+        stringIds.put("", lastStringId);
 
         tz.parseNumbers();
         tz.slashStarComments(true);
@@ -208,6 +223,18 @@ class ProgramTokenizer
     int lineno() { return tz.lineno(); }
     HashMap<Integer, String> getStringTable() { return stringTable; }
 
+    // the id of the string in the string table, which it is added to if new
+    int addString(String string)
+    {
+        Integer stringId = stringIds.get(string);
+        if (stringId == null) {
+            stringId = ++lastStringId;
+            stringTable.put(stringId, string);
+            stringIds.put(string, stringId);
+        }
+        return stringId;
+    }
+
     Token nextToken() throws IOException, UnexpectedTokenException
     {
         int tokenType = tz.nextToken();
@@ -220,18 +247,7 @@ class ProgramTokenizer
             case StreamTokenizer.TT_NUMBER:
                 return new Token(TokenType.T_NUMBER, tz.nval);
             case '"':
-                int stringId = -1;
-                for (Map.Entry<Integer, String> e : stringTable.entrySet()) {
-                    if (e.getValue().equals(tz.sval)) {
-                        stringId = e.getKey();
-                        break;
-                    }
-                }
-                if (stringId == -1) {
-                    stringId = ++lastStringId;
-                    stringTable.put(stringId, tz.sval);
-                }
-                return new Token(TokenType.T_STR_LITERAL, stringId);
+                return new Token(TokenType.T_STR_LITERAL, addString(tz.sval));
             case StreamTokenizer.TT_WORD:
                 tt = lookupKeyword(tz.sval);
                 if (tt != TokenType.T_NULL)
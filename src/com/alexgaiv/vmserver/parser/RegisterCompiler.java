@@ -0,0 +1,644 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.Arrays;
+
+// Three-address instruction set of the register VM. Every instruction takes
+// four ints in RegisterProgram.code: the opcode and operands a, b, c.
+final class RegOp
+{
+    static final int MOV = 1;    // a = b
+    static final int ADD = 2;    // a = b + c
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;
+    static final int EQ = 6;     // a = b == c ? 1 : 0
+    static final int NOTEQ = 7;
+    static final int LSS = 8;
+    static final int GRT = 9;
+    static final int LSSEQ = 10;
+    static final int GRTEQ = 11;
+    static final int OR = 12;
+    static final int AND = 13;
+    static final int NOT = 14;   // a = !b
+    static final int NEG = 15;
+    static final int SQRT = 16;
+    static final int LD_ARR = 17; // a = b[c], b holds the handle of the array
+    static final int ST_ARR = 18; // a[b] = c
+    static final int CLEAR = 19;  // zero registers a .. a+b-1
+    static final int JMP = 20;    // goto c
+    static final int JMPZ = 21;   // if a == 0 goto c
+    static final int JNEQ = 22;   // if !(a == b) goto c
+    static final int JNNOTEQ = 23;
+    static final int JNLSS = 24;
+    static final int JNGRT = 25;
+    static final int JNLSSEQ = 26;
+    static final int JNGRTEQ = 27;
+    static final int PRINT_REAL = 28;
+    static final int PRINT_STR = 29;
+    static final int PRINT_ARR = 30;
+    static final int FOR_LT = 31; // a += 1; if (a < b) goto c
+    static final int FOR_LE = 32;
+    static final int FOR_GT = 33; // a -= 1; if (a > b) goto c
+    static final int FOR_GE = 34;
+
+    // the same on ints, see Op
+    static final int ADD_I = 35;
+    static final int SUB_I = 36;
+    static final int MUL_I = 37;
+    static final int NEG_I = 38;
+    static final int EQ_I = 39;
+    static final int NOTEQ_I = 40;
+    static final int LSS_I = 41;
+    static final int GRT_I = 42;
+    static final int LSSEQ_I = 43;
+    static final int GRTEQ_I = 44;
+    static final int I2R = 45;      // a = (real)b
+    static final int LD_ARR_I = 46;
+    static final int ST_ARR_I = 47;
+    static final int PRINT_INT = 48;
+    static final int PRINT_ARR_I = 49;
+    static final int FOR_LT_I = 50;
+    static final int FOR_LE_I = 51;
+    static final int FOR_GT_I = 52;
+    static final int FOR_GE_I = 53;
+    static final int JNEQ_I = 54;
+    static final int JNNOTEQ_I = 55;
+    static final int JNLSS_I = 56;
+    static final int JNGRT_I = 57;
+    static final int JNLSSEQ_I = 58;
+    static final int JNGRTEQ_I = 59;
+    static final int NEW_ARR = 60;  // a = handle of a new array of b elements
+    static final int FREE_ARR = 61; // free the arrays from the handle in a on
+    static final int CONCAT = 62;   // a = b + c on strings, see StringHeap
+    static final int R2S = 63;      // a = text of the real b
+    static final int I2S = 64;      // a = text of the int b
+    static final int LEN = 65;      // a = length of the string b
+    static final int SUM = 66;      // a = sum of the array b, see ArrayHeap
+    static final int SUM_I = 67;
+    static final int MAX = 68;
+    static final int MAX_I = 69;
+    static final int DOT = 70;      // a = dot product of the arrays b and c
+    static final int DOT_I = 71;
+    static final int AXPY = 72;     // array c += a * array b
+    static final int AXPY_I = 73;
+    static final int FILL = 74;     // set the elements of the array a to b
+    static final int INTERN = 75;   // a = handle of the string b for ==, see StringHeap
+
+    private RegOp() {}
+
+    static boolean writesA(int op) {
+        return op >= MOV && op <= LD_ARR || op >= ADD_I && op <= LD_ARR_I || op == NEW_ARR || op >= CONCAT && op <= DOT_I || op == INTERN;
+    }
+
+    static boolean isJump(int op) {
+        return op >= JMP && op <= JNGRTEQ || op >= FOR_LT && op <= FOR_GE || op >= FOR_LT_I && op <= JNGRTEQ_I;
+    }
+
+    // the compare-and-branch instruction for a comparison, 0 if there is none
+    static int negatedBranch(int op)
+    {
+        switch (op)
+        {
+            case EQ: return JNEQ;
+            case NOTEQ: return JNNOTEQ;
+            case LSS: return JNLSS;
+            case GRT: return JNGRT;
+            case LSSEQ: return JNLSSEQ;
+            case GRTEQ: return JNGRTEQ;
+            case EQ_I: return JNEQ_I;
+            case NOTEQ_I: return JNNOTEQ_I;
+            case LSS_I: return JNLSS_I;
+            case GRT_I: return JNGRT_I;
+            case LSSEQ_I: return JNLSSEQ_I;
+            case GRTEQ_I: return JNGRTEQ_I;
+            default: return 0;
+        }
+    }
+}
+
+// Compiled register VM program. The register file starts with the variables
+// area, laid out at the same addresses as in the interpreter's stack, followed
+// by one temporary per operand stack depth and then the constant pool. Arrays
+// are in an ArrayHeap, like in the interpreter.
+class RegisterProgram
+{
+    final int[] code;
+    private final double[] constants;
+    private final int constantBase;
+
+    RegisterProgram(int[] code, double[] constants, int constantBase)
+    {
+        this.code = code;
+        this.constants = constants;
+        this.constantBase = constantBase;
+    }
+
+    int size() { return code.length / 4; }
+
+    void run(ProgramOutput output, StringHeap strings) throws ProgramExecuteException
+    {
+        final int[] code = this.code;
+        final double[] r = new double[constantBase + constants.length];
+        System.arraycopy(constants, 0, r, constantBase, constants.length);
+        final ArrayHeap heap = new ArrayHeap();
+
+        final int end = code.length;
+        int ip = 0;
+
+        while (ip < end)
+        {
+            int a = code[ip + 1];
+            int b = code[ip + 2];
+            int c = code[ip + 3];
+
+            switch (code[ip])
+            {
+                case RegOp.MOV: r[a] = r[b]; break;
+                case RegOp.ADD: r[a] = r[b] + r[c]; break;
+                case RegOp.SUB: r[a] = r[b] - r[c]; break;
+                case RegOp.MUL: r[a] = r[b] * r[c]; break;
+                case RegOp.DIV: r[a] = r[b] / r[c]; break;
+                case RegOp.EQ: r[a] = r[b] == r[c] ? 1.0 : 0.0; break;
+                case RegOp.NOTEQ: r[a] = r[b] != r[c] ? 1.0 : 0.0; break;
+                case RegOp.LSS: r[a] = r[b] < r[c] ? 1.0 : 0.0; break;
+                case RegOp.GRT: r[a] = r[b] > r[c] ? 1.0 : 0.0; break;
+                case RegOp.LSSEQ: r[a] = r[b] <= r[c] ? 1.0 : 0.0; break;
+                case RegOp.GRTEQ: r[a] = r[b] >= r[c] ? 1.0 : 0.0; break;
+                case RegOp.OR: r[a] = r[b] != 0.0 || r[c] != 0.0 ? 1.0 : 0.0; break;
+                case RegOp.AND: r[a] = r[b] != 0.0 && r[c] != 0.0 ? 1.0 : 0.0; break;
+                case RegOp.NOT: r[a] = r[b] != 0.0 ? 0.0 : 1.0; break;
+                case RegOp.NEG: r[a] = -r[b]; break;
+                case RegOp.SQRT: r[a] = Math.sqrt(r[b]); break;
+                case RegOp.LD_ARR: {
+                    double[] array = heap.arrays[(int)r[b]];
+                    r[a] = array[ArrayHeap.checkIndex(array, r[c])];
+                    break;
+                }
+                case RegOp.ST_ARR: {
+                    double[] array = heap.arrays[(int)r[a]];
+                    array[ArrayHeap.checkIndex(array, r[b])] = r[c];
+                    break;
+                }
+                case RegOp.NEW_ARR:
+                    r[a] = heap.allocate(b);
+                    break;
+                case RegOp.FREE_ARR:
+                    heap.free(r[a]);
+                    break;
+                case RegOp.CLEAR:
+                    Arrays.fill(r, a, a + b, 0.0);
+                    break;
+                case RegOp.JMP:
+                    ip = c;
+                    continue;
+                case RegOp.JMPZ:
+                    if (r[a] == 0.0) { ip = c; continue; }
+                    break;
+                case RegOp.JNEQ:
+                    if (!(r[a] == r[b])) { ip = c; continue; }
+                    break;
+                case RegOp.JNNOTEQ:
+                    if (!(r[a] != r[b])) { ip = c; continue; }
+                    break;
+                case RegOp.JNLSS:
+                    if (!(r[a] < r[b])) { ip = c; continue; }
+                    break;
+                case RegOp.JNGRT:
+                    if (!(r[a] > r[b])) { ip = c; continue; }
+                    break;
+                case RegOp.JNLSSEQ:
+                    if (!(r[a] <= r[b])) { ip = c; continue; }
+                    break;
+                case RegOp.JNGRTEQ:
+                    if (!(r[a] >= r[b])) { ip = c; continue; }
+                    break;
+                case RegOp.FOR_LT:
+                    if ((r[a] += 1.0) < r[b]) { ip = c; continue; }
+                    break;
+                case RegOp.FOR_LE:
+                    if ((r[a] += 1.0) <= r[b]) { ip = c; continue; }
+                    break;
+                case RegOp.FOR_GT:
+                    if ((r[a] -= 1.0) > r[b]) { ip = c; continue; }
+                    break;
+                case RegOp.FOR_GE:
+                    if ((r[a] -= 1.0) >= r[b]) { ip = c; continue; }
+                    break;
+                case RegOp.PRINT_REAL:
+                    output.append(r[a]);
+                    break;
+                case RegOp.PRINT_STR:
+                    output.append(strings.get(r[a]));
+                    break;
+                case RegOp.PRINT_ARR:
+                    ArrayHeap.print(heap.get(r[a]), output);
+                    break;
+                case RegOp.ADD_I: r[a] = OpCode.intValue(OpCode.toLong(r[b]) + OpCode.toLong(r[c])); break;
+                case RegOp.SUB_I: r[a] = OpCode.intValue(OpCode.toLong(r[b]) - OpCode.toLong(r[c])); break;
+                case RegOp.MUL_I: r[a] = OpCode.intValue(OpCode.toLong(r[b]) * OpCode.toLong(r[c])); break;
+                case RegOp.NEG_I: r[a] = OpCode.intValue(-OpCode.toLong(r[b])); break;
+                case RegOp.EQ_I: r[a] = OpCode.toLong(r[b]) == OpCode.toLong(r[c]) ? 1.0 : 0.0; break;
+                case RegOp.NOTEQ_I: r[a] = OpCode.toLong(r[b]) != OpCode.toLong(r[c]) ? 1.0 : 0.0; break;
+                case RegOp.LSS_I: r[a] = OpCode.toLong(r[b]) < OpCode.toLong(r[c]) ? 1.0 : 0.0; break;
+                case RegOp.GRT_I: r[a] = OpCode.toLong(r[b]) > OpCode.toLong(r[c]) ? 1.0 : 0.0; break;
+                case RegOp.LSSEQ_I: r[a] = OpCode.toLong(r[b]) <= OpCode.toLong(r[c]) ? 1.0 : 0.0; break;
+                case RegOp.GRTEQ_I: r[a] = OpCode.toLong(r[b]) >= OpCode.toLong(r[c]) ? 1.0 : 0.0; break;
+                case RegOp.I2R: r[a] = (double)OpCode.toLong(r[b]); break;
+                case RegOp.LD_ARR_I: {
+                    double[] array = heap.arrays[(int)r[b]];
+                    r[a] = array[ArrayHeap.checkIndex(array, OpCode.toLong(r[c]))];
+                    break;
+                }
+                case RegOp.ST_ARR_I: {
+                    double[] array = heap.arrays[(int)r[a]];
+                    array[ArrayHeap.checkIndex(array, OpCode.toLong(r[b]))] = r[c];
+                    break;
+                }
+                case RegOp.PRINT_INT:
+                    output.append(OpCode.toLong(r[a]));
+                    break;
+                case RegOp.PRINT_ARR_I:
+                    ArrayHeap.printInt(heap.get(r[a]), output);
+                    break;
+                case RegOp.CONCAT: r[a] = strings.concat(r[b], r[c]); break;
+                case RegOp.R2S: r[a] = strings.fromReal(r[b]); break;
+                case RegOp.I2S: r[a] = strings.fromInt(OpCode.toLong(r[b])); break;
+                case RegOp.LEN: r[a] = OpCode.intValue(strings.length(r[b])); break;
+                case RegOp.INTERN: r[a] = strings.intern(r[b]); break;
+                case RegOp.SUM: r[a] = ArrayHeap.sum(heap.get(r[b])); break;
+                case RegOp.SUM_I: r[a] = OpCode.intValue(ArrayHeap.sumInt(heap.get(r[b]))); break;
+                case RegOp.MAX: r[a] = ArrayHeap.max(heap.get(r[b])); break;
+                case RegOp.MAX_I: r[a] = OpCode.intValue(ArrayHeap.maxInt(heap.get(r[b]))); break;
+                case RegOp.DOT: r[a] = ArrayHeap.dot(heap.get(r[b]), heap.get(r[c])); break;
+                case RegOp.DOT_I: r[a] = OpCode.intValue(ArrayHeap.dotInt(heap.get(r[b]), heap.get(r[c]))); break;
+                case RegOp.AXPY: ArrayHeap.axpy(r[a], heap.get(r[b]), heap.get(r[c])); break;
+                case RegOp.AXPY_I: ArrayHeap.axpyInt(OpCode.toLong(r[a]), heap.get(r[b]), heap.get(r[c])); break;
+                case RegOp.FILL: ArrayHeap.fill(heap.get(r[a]), r[b]); break;
+                case RegOp.FOR_LT_I: {
+                    long x = OpCode.toLong(r[a]) + 1;
+                    r[a] = OpCode.intValue(x);
+                    if (x < OpCode.toLong(r[b])) { ip = c; continue; }
+                    break;
+                }
+                case RegOp.FOR_LE_I: {
+                    long x = OpCode.toLong(r[a]) + 1;
+                    r[a] = OpCode.intValue(x);
+                    if (x <= OpCode.toLong(r[b])) { ip = c; continue; }
+                    break;
+                }
+                case RegOp.FOR_GT_I: {
+                    long x = OpCode.toLong(r[a]) - 1;
+                    r[a] = OpCode.intValue(x);
+                    if (x > OpCode.toLong(r[b])) { ip = c; continue; }
+                    break;
+                }
+                case RegOp.FOR_GE_I: {
+                    long x = OpCode.toLong(r[a]) - 1;
+                    r[a] = OpCode.intValue(x);
+                    if (x >= OpCode.toLong(r[b])) { ip = c; continue; }
+                    break;
+                }
+                case RegOp.JNEQ_I:
+                    if (!(OpCode.toLong(r[a]) == OpCode.toLong(r[b]))) { ip = c; continue; }
+                    break;
+                case RegOp.JNNOTEQ_I:
+                    if (!(OpCode.toLong(r[a]) != OpCode.toLong(r[b]))) { ip = c; continue; }
+                    break;
+                case RegOp.JNLSS_I:
+                    if (!(OpCode.toLong(r[a]) < OpCode.toLong(r[b]))) { ip = c; continue; }
+                    break;
+                case RegOp.JNGRT_I:
+                    if (!(OpCode.toLong(r[a]) > OpCode.toLong(r[b]))) { ip = c; continue; }
+                    break;
+                case RegOp.JNLSSEQ_I:
+                    if (!(OpCode.toLong(r[a]) <= OpCode.toLong(r[b]))) { ip = c; continue; }
+                    break;
+                case RegOp.JNGRTEQ_I:
+                    if (!(OpCode.toLong(r[a]) >= OpCode.toLong(r[b]))) { ip = c; continue; }
+                    break;
+                default:
+                    throw new ProgramExecuteException("Unknown instruction");
+            }
+            ip += 4;
+        }
+    }
+}
+
+// Translates decoded stack bytecode into register VM code. Operand stack
+// slots are resolved at compile time: loads and constants emit nothing and
+// just name their register, operations write the temporary of the stack
+// depth they produce, and a store retargets the operation that computed its
+// value, so that `a = b + c` becomes a single `add a, b, c`. A comparison
+// followed by jmpz becomes one compare-and-branch instruction, and the step
+// and jump back of a counted loop one for_* instruction, like in
+// PeepholeOptimizer.
+//
+// Needs the static stack layout described by StackAnalysis; compile() returns
+// null for code without one and the caller falls back to the interpreter.
+class RegisterCompiler
+{
+    private int[] out;
+    private int count;      // emitted instructions
+    private int blockStart; // first instruction a jump may land on
+
+    private int[] valueStack; // register holding every operand stack slot
+    private int depth;
+    private int variableCount;
+    private int tempBase;
+
+    static RegisterProgram compile(DecodedProgram code)
+    {
+        StackAnalysis stack = StackAnalysis.analyze(code);
+        if (stack == null)
+            return null;
+        return new RegisterCompiler().generate(code, stack);
+    }
+
+    private RegisterProgram generate(DecodedProgram code, StackAnalysis stack)
+    {
+        int size = code.size();
+        variableCount = stack.maxStackPointer;
+        tempBase = variableCount;
+        int constantBase = tempBase + stack.maxDepth;
+
+        out = new int[4 * Math.max(size, 4)];
+        valueStack = new int[stack.maxDepth + 1];
+        int[] startOf = new int[size + 1]; // decoded instruction -> register instruction
+        boolean[] target = new boolean[size + 1];
+        for (int pc = 0; pc < size; pc++) {
+            if (code.ops[pc] == Op.JMP || code.ops[pc] == Op.JMPZ)
+                target[code.args[pc]] = true;
+        }
+
+        for (int pc = 0; pc < size; pc++)
+        {
+            // values left on the operand stack by && and || cross labels in their temporaries
+            if (target[pc] && pc > 0 && stack.isReachable(pc - 1) && code.ops[pc - 1] != Op.JMP)
+                spill();
+            startOf[pc] = count;
+            if (!stack.isReachable(pc))
+                continue;
+            if (target[pc]) {
+                depth = stack.depth[pc];
+                for (int i = 0; i < depth; i++)
+                    valueStack[i] = tempBase + i;
+                blockStart = count;
+            }
+
+            int arg = code.args[pc];
+            switch (code.ops[pc])
+            {
+                case Op.LOAD:
+                    valueStack[depth++] = arg;
+                    break;
+                case Op.LD_CONST:
+                    valueStack[depth++] = constantBase + arg;
+                    break;
+                case Op.STORE: {
+                    int value = valueStack[--depth];
+                    materialize(arg, arg + 1);
+                    if (value != arg && !retarget(value, arg))
+                        emit(RegOp.MOV, arg, value, 0);
+                    break;
+                }
+                case Op.LD_ARR:
+                case Op.LD_ARR_I: {
+                    int index = valueStack[--depth];
+                    emit(code.ops[pc] == Op.LD_ARR ? RegOp.LD_ARR : RegOp.LD_ARR_I, push(), arg, index);
+                    break;
+                }
+                case Op.ST_ARR:
+                case Op.ST_ARR_I: {
+                    int value = valueStack[--depth];
+                    int index = valueStack[--depth];
+                    emit(code.ops[pc] == Op.ST_ARR ? RegOp.ST_ARR : RegOp.ST_ARR_I, arg, index, value);
+                    break;
+                }
+                case Op.NEW_ARR:
+                    emit(RegOp.NEW_ARR, push(), arg, 0);
+                    break;
+                case Op.FREE_ARR:
+                    emit(RegOp.FREE_ARR, arg, 0, 0);
+                    break;
+                case Op.SUBSP:
+                    if (arg > 0)
+                        emit(RegOp.CLEAR, stack.stackPointer[pc], arg, 0);
+                    break;
+                case Op.ADDSP:
+                    break;
+                case Op.JMP:
+                    spill();
+                    if (!fuseLoop(code, pc, target, constantBase))
+                        emit(RegOp.JMP, 0, 0, arg);
+                    break;
+                case Op.JMPZ: {
+                    int condition = valueStack[--depth];
+                    spill();
+                    int last = 4 * (count - 1);
+                    int branch = condition >= tempBase && count > blockStart && out[last + 1] == condition ?
+                        RegOp.negatedBranch(out[last]) : 0;
+                    if (branch != 0) {
+                        out[last] = branch;
+                        out[last + 1] = out[last + 2];
+                        out[last + 2] = out[last + 3];
+                        out[last + 3] = arg;
+                    }
+                    else {
+                        emit(RegOp.JMPZ, condition, 0, arg);
+                    }
+                    break;
+                }
+                case Op.EQ: binary(RegOp.EQ); break;
+                case Op.NOTEQ: binary(RegOp.NOTEQ); break;
+                case Op.LSS: binary(RegOp.LSS); break;
+                case Op.GRT: binary(RegOp.GRT); break;
+                case Op.LSSEQ: binary(RegOp.LSSEQ); break;
+                case Op.GRTEQ: binary(RegOp.GRTEQ); break;
+                case Op.ADD: binary(RegOp.ADD); break;
+                case Op.SUB: binary(RegOp.SUB); break;
+                case Op.MUL: binary(RegOp.MUL); break;
+                case Op.DIV: binary(RegOp.DIV); break;
+                case Op.OR: binary(RegOp.OR); break;
+                case Op.AND: binary(RegOp.AND); break;
+                case Op.NOT: unary(RegOp.NOT); break;
+                case Op.NEG: unary(RegOp.NEG); break;
+                case Op.SQRT: unary(RegOp.SQRT); break;
+                case Op.PRINT_REAL: emit(RegOp.PRINT_REAL, valueStack[--depth], 0, 0); break;
+                case Op.POP: depth--; break;
+                case Op.PRINT_STR: emit(RegOp.PRINT_STR, valueStack[--depth], 0, 0); break;
+                case Op.PRINT_ARR: emit(RegOp.PRINT_ARR, valueStack[--depth], 0, 0); break;
+                case Op.ADD_I: binary(RegOp.ADD_I); break;
+                case Op.SUB_I: binary(RegOp.SUB_I); break;
+                case Op.MUL_I: binary(RegOp.MUL_I); break;
+                case Op.EQ_I: binary(RegOp.EQ_I); break;
+                case Op.NOTEQ_I: binary(RegOp.NOTEQ_I); break;
+                case Op.LSS_I: binary(RegOp.LSS_I); break;
+                case Op.GRT_I: binary(RegOp.GRT_I); break;
+                case Op.LSSEQ_I: binary(RegOp.LSSEQ_I); break;
+                case Op.GRTEQ_I: binary(RegOp.GRTEQ_I); break;
+                case Op.NEG_I: unary(RegOp.NEG_I); break;
+                case Op.I2R: unary(RegOp.I2R); break;
+                case Op.PRINT_INT: emit(RegOp.PRINT_INT, valueStack[--depth], 0, 0); break;
+                case Op.PRINT_ARR_I: emit(RegOp.PRINT_ARR_I, valueStack[--depth], 0, 0); break;
+                case Op.CONCAT: binary(RegOp.CONCAT); break;
+                case Op.R2S: unary(RegOp.R2S); break;
+                case Op.I2S: unary(RegOp.I2S); break;
+                case Op.LEN: unary(RegOp.LEN); break;
+                case Op.INTERN: unary(RegOp.INTERN); break;
+                case Op.SUM: unary(RegOp.SUM); break;
+                case Op.SUM_I: unary(RegOp.SUM_I); break;
+                case Op.MAX: unary(RegOp.MAX); break;
+                case Op.MAX_I: unary(RegOp.MAX_I); break;
+                case Op.DOT: binary(RegOp.DOT); break;
+                case Op.DOT_I: binary(RegOp.DOT_I); break;
+                case Op.AXPY:
+                case Op.AXPY_I: {
+                    int y = valueStack[--depth];
+                    int x = valueStack[--depth];
+                    int k = valueStack[--depth];
+                    emit(code.ops[pc] == Op.AXPY ? RegOp.AXPY : RegOp.AXPY_I, k, x, y);
+                    break;
+                }
+                case Op.FILL: {
+                    int value = valueStack[--depth];
+                    int array = valueStack[--depth];
+                    emit(RegOp.FILL, array, value, 0);
+                    break;
+                }
+                default:
+                    return null;
+            }
+        }
+        startOf[size] = count;
+
+        // jump operands still hold decoded instruction indices
+        for (int i = 0; i < count; i++) {
+            if (RegOp.isJump(out[4 * i]))
+                out[4 * i + 3] = 4 * startOf[out[4 * i + 3]];
+        }
+
+        return new RegisterProgram(Arrays.copyOf(out, 4 * count), code.constants, constantBase);
+    }
+
+    private void binary(int op)
+    {
+        int right = valueStack[--depth];
+        int left = valueStack[--depth];
+        emit(op, push(), left, right);
+    }
+
+    private void unary(int op)
+    {
+        int operand = valueStack[--depth];
+        emit(op, push(), operand, 0);
+    }
+
+    // pushes the temporary of the current depth and returns it
+    private int push()
+    {
+        int temp = tempBase + depth;
+        valueStack[depth++] = temp;
+        return temp;
+    }
+
+    // Copies operand stack slots that still refer to variables in [from, to)
+    // into their temporaries, before those variables are overwritten.
+    private void materialize(int from, int to)
+    {
+        for (int i = 0; i < depth; i++) {
+            int register = valueStack[i];
+            if (register >= from && register < to) {
+                emit(RegOp.MOV, tempBase + i, register, 0);
+                valueStack[i] = tempBase + i;
+            }
+        }
+    }
+
+    // Replaces the step `add x, x, 1` (or add_i) just emitted for the jmp at pc
+    // with a for_* instruction, if the jmp goes back to the test of a counted loop
+    // (load x; load y; lss; jmpz) that exits to pc + 1.
+    private boolean fuseLoop(DecodedProgram code, int pc, boolean[] target, int constantBase)
+    {
+        int test = code.args[pc];
+        int last = 4 * (count - 1);
+        if (pc < 4 || target[pc] || target[pc - 1] || target[pc - 2] || target[pc - 3] ||
+                count == 0 || test + 3 >= code.size())
+            return false;
+
+        int x = out[last + 1];
+        int step = out[last + 3];
+        boolean isInt = out[last] == RegOp.ADD_I || out[last] == RegOp.SUB_I;
+        boolean up = out[last] == RegOp.ADD || out[last] == RegOp.ADD_I;
+        double one = isInt ? OpCode.intValue(1) : 1.0;
+        if (!up && out[last] != RegOp.SUB && out[last] != RegOp.SUB_I || out[last + 2] != x || x >= variableCount ||
+                step < constantBase || OpCode.toLong(code.constants[step - constantBase]) != OpCode.toLong(one))
+            return false;
+
+        int[] ops = code.ops;
+        if (ops[pc - 4] != Op.LOAD || ops[pc - 3] != Op.LD_CONST || ops[pc - 1] != Op.STORE ||
+                ops[pc - 2] != (up ? (isInt ? Op.ADD_I : Op.ADD) : (isInt ? Op.SUB_I : Op.SUB)))
+            return false;
+        if (ops[test] != Op.LOAD || code.args[test] != x || ops[test + 3] != Op.JMPZ || code.args[test + 3] != pc + 1)
+            return false;
+        int limit;
+        if (ops[test + 1] == Op.LOAD)
+            limit = code.args[test + 1];
+        else if (ops[test + 1] == Op.LD_CONST)
+            limit = constantBase + code.args[test + 1];
+        else
+            return false;
+
+        int op;
+        switch (ops[test + 2]) {
+            case Op.LSS: op = RegOp.FOR_LT; break;
+            case Op.LSSEQ: op = RegOp.FOR_LE; break;
+            case Op.GRT: op = RegOp.FOR_GT; break;
+            case Op.GRTEQ: op = RegOp.FOR_GE; break;
+            case Op.LSS_I: op = RegOp.FOR_LT_I; break;
+            case Op.LSSEQ_I: op = RegOp.FOR_LE_I; break;
+            case Op.GRT_I: op = RegOp.FOR_GT_I; break;
+            case Op.GRTEQ_I: op = RegOp.FOR_GE_I; break;
+            default: return false;
+        }
+        if (isInt != (op >= RegOp.FOR_LT_I) ||
+                up != (op == RegOp.FOR_LT || op == RegOp.FOR_LE || op == RegOp.FOR_LT_I || op == RegOp.FOR_LE_I))
+            return false;
+
+        out[last] = op;
+        out[last + 2] = limit;
+        out[last + 3] = test + 4; // the loop body, a decoded index like other jump targets
+        return true;
+    }
+
+    // copies every operand stack slot into its temporary
+    private void spill()
+    {
+        for (int i = 0; i < depth; i++) {
+            if (valueStack[i] != tempBase + i) {
+                emit(RegOp.MOV, tempBase + i, valueStack[i], 0);
+                valueStack[i] = tempBase + i;
+            }
+        }
+    }
+
+    // makes the instruction that just computed temp write to destination instead
+    private boolean retarget(int temp, int destination)
+    {
+        int last = 4 * (count - 1);
+        if (temp < tempBase || count <= blockStart || !RegOp.writesA(out[last]) || out[last + 1] != temp)
+            return false;
+        out[last + 1] = destination;
+        return true;
+    }
+
+    private void emit(int op, int a, int b, int c)
+    {
+        if (4 * count + 4 > out.length)
+            out = Arrays.copyOf(out, out.length * 2);
+        int i = 4 * count++;
+        out[i] = op;
+        out[i + 1] = a;
+        out[i + 2] = b;
+        out[i + 3] = c;
+    }
+}
@@ -0,0 +1,361 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// Builds the SSA form of decoded bytecode with the algorithm of Braun et al.,
+// "Simple and Efficient Construction of Static Single Assignment Form":
+// operand stack slots are resolved within a block like in RegisterCompiler,
+// and a read of a scalar variable looks up its last assignment, through the
+// predecessors if needed, placing phis where definitions merge; operand stack
+// slots left across a jump by && and || are read the same way. Variables that
+// hold array handles stay in memory and are accessed with load/store values.
+class SsaBuilder
+{
+    private DecodedProgram code;
+    private StackAnalysis stack;
+    private boolean[] inArray;
+    private SsaGraph graph;
+    private boolean[] leader; // instruction starts a block
+
+    private final HashMap<SsaBlock, HashMap<Integer, SsaValue>> definitions = new HashMap<>();
+    private final HashMap<SsaBlock, HashMap<Integer, SsaValue>> incompletePhis = new HashMap<>();
+    private final HashMap<SsaBlock, Boolean> sealed = new HashMap<>();
+    private final HashMap<SsaBlock, Boolean> filled = new HashMap<>();
+
+    // returns null for code that has no static stack layout
+    static SsaGraph build(DecodedProgram code)
+    {
+        SsaBuilder builder = new SsaBuilder();
+        builder.code = code;
+        builder.stack = StackAnalysis.analyze(code);
+        if (builder.stack == null)
+            return null;
+        builder.inArray = builder.stack.findArrays(code);
+        if (builder.inArray == null)
+            return null;
+        return builder.build() ? builder.graph : null;
+    }
+
+    private boolean build()
+    {
+        int count = code.size();
+        graph = new SsaGraph();
+
+        leader = new boolean[count + 1];
+        leader[0] = true;
+        leader[count] = true;
+        for (int pc = 0; pc < count; pc++) {
+            if (stack.isReachable(pc) && (code.ops[pc] == Op.JMP || code.ops[pc] == Op.JMPZ)) {
+                leader[code.args[pc]] = true;
+                leader[pc + 1] = true;
+            }
+        }
+
+        SsaBlock[] blockAt = new SsaBlock[count + 1];
+        int[] startOf = new int[count + 1];
+        for (int pc = 0; pc <= count; pc++) {
+            if (leader[pc] && stack.isReachable(pc)) {
+                SsaBlock block = graph.newBlock();
+                blockAt[pc] = block;
+                startOf[block.id] = pc;
+                graph.blocks.add(block);
+                definitions.put(block, new HashMap<>());
+                incompletePhis.put(block, new HashMap<>());
+            }
+        }
+        graph.exit = blockAt[count];
+
+        // edges
+        for (SsaBlock block : graph.blocks)
+        {
+            int pc = startOf[block.id];
+            if (pc == count)
+                continue;
+            int end = pc + 1;
+            while (!leader[end])
+                end++;
+
+            int last = end - 1;
+            if (code.ops[last] == Op.JMP) {
+                link(block, blockAt[code.args[last]]);
+            }
+            else if (code.ops[last] == Op.JMPZ && blockAt[code.args[last]] != blockAt[end]) {
+                link(block, blockAt[end]);
+                link(block, blockAt[code.args[last]]);
+            }
+            else {
+                link(block, blockAt[end]);
+            }
+        }
+
+        // variables are read through the predecessors, so the entry must have none
+        if (!graph.entry().preds.isEmpty())
+            return false;
+
+        graph.orderBlocks();
+        SsaBlock[] rpo = graph.reversePostorder();
+        seal(graph.entry());
+
+        for (SsaBlock block : rpo)
+        {
+            if (!fill(block, startOf[block.id], count))
+                return false;
+            filled.put(block, true);
+
+            for (SsaBlock b : rpo) {
+                if (!isSealed(b) && allPredsFilled(b))
+                    seal(b);
+            }
+        }
+
+        graph.removeTrivialPhis();
+        return true;
+    }
+
+    private static void link(SsaBlock from, SsaBlock to)
+    {
+        from.succs.add(to);
+        to.preds.add(from);
+    }
+
+    private boolean fill(SsaBlock block, int start, int count)
+    {
+        if (start == count)
+            return true;
+
+        ArrayList<SsaValue> values = new ArrayList<>();
+        for (int i = 0; i < stack.depth[start]; i++)
+            values.add(readVariable(stackSlot(i), block));
+
+        for (int pc = start; pc < count; pc++)
+        {
+            if (pc > start && leader[pc])
+                break;
+
+            int op = code.ops[pc];
+            int arg = code.args[pc];
+
+            switch (op)
+            {
+                case Op.LOAD:
+                    if (isArray(arg))
+                        values.add(append(block, Op.LOAD, arg));
+                    else
+                        values.add(readVariable(arg, block));
+                    break;
+                case Op.STORE: {
+                    SsaValue value = pop(values);
+                    if (isArray(arg))
+                        append(block, Op.STORE, arg, value);
+                    else
+                        writeVariable(arg, block, value);
+                    break;
+                }
+                case Op.LD_CONST:
+                    values.add(graph.constant(code.constants[arg]));
+                    break;
+                case Op.LD_ARR:
+                case Op.LD_ARR_I: {
+                    SsaValue index = pop(values);
+                    values.add(append(block, op, arg, index));
+                    break;
+                }
+                case Op.ST_ARR:
+                case Op.ST_ARR_I: {
+                    SsaValue value = pop(values);
+                    SsaValue index = pop(values);
+                    append(block, op, arg, index, value);
+                    break;
+                }
+                case Op.SUBSP: {
+                    append(block, Op.SUBSP, arg);
+                    int from = stack.stackPointer[pc];
+                    for (int address = from; address < from + arg; address++) {
+                        if (!isArray(address))
+                            writeVariable(address, block, graph.constant(0.0));
+                    }
+                    break;
+                }
+                case Op.ADDSP:
+                    append(block, Op.ADDSP, arg);
+                    break;
+                case Op.JMP:
+                    break;
+                case Op.JMPZ:
+                    if (block.succs.size() == 2)
+                        block.condition = pop(values);
+                    else
+                        pop(values);
+                    break;
+                case Op.EQ: case Op.NOTEQ: case Op.LSS: case Op.GRT: case Op.LSSEQ: case Op.GRTEQ:
+                case Op.ADD: case Op.SUB: case Op.MUL: case Op.DIV: case Op.OR: case Op.AND:
+                case Op.EQ_I: case Op.NOTEQ_I: case Op.LSS_I: case Op.GRT_I: case Op.LSSEQ_I: case Op.GRTEQ_I:
+                case Op.ADD_I: case Op.SUB_I: case Op.MUL_I:
+                case Op.CONCAT: case Op.DOT: case Op.DOT_I: {
+                    SsaValue right = pop(values);
+                    SsaValue left = pop(values);
+                    values.add(append(block, op, 0, left, right));
+                    break;
+                }
+                case Op.NOT:
+                case Op.NEG:
+                case Op.SQRT:
+                case Op.NEG_I:
+                case Op.I2R:
+                case Op.R2S:
+                case Op.I2S:
+                case Op.LEN:
+                case Op.INTERN:
+                case Op.SUM:
+                case Op.SUM_I:
+                case Op.MAX:
+                case Op.MAX_I:
+                    values.add(append(block, op, 0, pop(values)));
+                    break;
+                case Op.AXPY:
+                case Op.AXPY_I: {
+                    SsaValue y = pop(values);
+                    SsaValue x = pop(values);
+                    append(block, op, 0, pop(values), x, y);
+                    break;
+                }
+                case Op.FILL: {
+                    SsaValue value = pop(values);
+                    append(block, op, 0, pop(values), value);
+                    break;
+                }
+                case Op.PRINT_REAL:
+                case Op.PRINT_STR:
+                case Op.PRINT_INT:
+                case Op.PRINT_ARR:
+                case Op.PRINT_ARR_I:
+                    append(block, op, 0, pop(values));
+                    break;
+                case Op.POP:
+                    pop(values);
+                    break;
+                case Op.NEW_ARR:
+                    values.add(append(block, Op.NEW_ARR, arg));
+                    break;
+                case Op.FREE_ARR:
+                    append(block, Op.FREE_ARR, arg);
+                    break;
+                default:
+                    return false;
+            }
+        }
+        for (int i = 0; i < values.size(); i++)
+            writeVariable(stackSlot(i), block, values.get(i));
+        return true;
+    }
+
+    // operand stack slots that cross blocks are variables at negative addresses
+    private static int stackSlot(int index) { return -1 - index; }
+
+    private boolean isArray(int address) {
+        return address < inArray.length && inArray[address];
+    }
+
+    private static SsaValue pop(ArrayList<SsaValue> values) {
+        return values.remove(values.size() - 1);
+    }
+
+    private SsaValue append(SsaBlock block, int op, int arg, SsaValue... operands)
+    {
+        SsaValue value = graph.newValue(block, op, arg, operands);
+        block.code.add(value);
+        return value;
+    }
+
+    private void writeVariable(int address, SsaBlock block, SsaValue value) {
+        definitions.get(block).put(address, value);
+    }
+
+    private SsaValue readVariable(int address, SsaBlock block)
+    {
+        SsaValue value = definitions.get(block).get(address);
+        if (value != null)
+            return value.resolve();
+        return readVariableRecursive(address, block);
+    }
+
+    private SsaValue readVariableRecursive(int address, SsaBlock block)
+    {
+        SsaValue value;
+        if (!isSealed(block)) {
+            value = newPhi(block);
+            incompletePhis.get(block).put(address, value);
+        }
+        else if (block.preds.isEmpty()) {
+            value = graph.constant(0.0);
+        }
+        else if (block.preds.size() == 1) {
+            value = readVariable(address, block.preds.get(0));
+        }
+        else {
+            value = newPhi(block);
+            writeVariable(address, block, value);
+            value = addPhiOperands(address, value);
+        }
+        writeVariable(address, block, value);
+        return value;
+    }
+
+    private SsaValue newPhi(SsaBlock block)
+    {
+        SsaValue phi = graph.newValue(block, SsaValue.PHI, 0);
+        block.phis.add(phi);
+        return phi;
+    }
+
+    private SsaValue addPhiOperands(int address, SsaValue phi)
+    {
+        ArrayList<SsaBlock> preds = phi.block.preds;
+        SsaValue[] operands = new SsaValue[preds.size()];
+        for (int i = 0; i < operands.length; i++)
+            operands[i] = readVariable(address, preds.get(i));
+        phi.operands = operands;
+        return tryRemoveTrivialPhi(phi);
+    }
+
+    private SsaValue tryRemoveTrivialPhi(SsaValue phi)
+    {
+        SsaValue same = null;
+        for (SsaValue operand : phi.operands) {
+            operand = operand.resolve();
+            if (operand == same || operand == phi)
+                continue;
+            if (same != null)
+                return phi;
+            same = operand;
+        }
+        if (same == null)
+            same = graph.constant(0.0);
+        phi.replacement = same;
+        phi.block.phis.remove(phi);
+        return same;
+    }
+
+    private boolean isSealed(SsaBlock block) {
+        return sealed.containsKey(block);
+    }
+
+    private boolean allPredsFilled(SsaBlock block)
+    {
+        for (SsaBlock pred : block.preds) {
+            if (!filled.containsKey(pred))
+                return false;
+        }
+        return true;
+    }
+
+    private void seal(SsaBlock block)
+    {
+        sealed.put(block, true);
+        for (Map.Entry<Integer, SsaValue> entry : incompletePhis.get(block).entrySet())
+            addPhiOperands(entry.getKey(), entry.getValue());
+        incompletePhis.get(block).clear();
+    }
+}
@@ -0,0 +1,330 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// A value or side effect of the SSA form. Operations reuse the bytecode
+// opcodes from Op: ld_const is a constant, load/store access a variable
+// holding an array handle, kept in memory, ld_arr/st_arr/free_arr take the
+// address of that variable in arg and new_arr the array size, subsp/addsp
+// keep the scopes of the original code. Scalar variables are
+// not loaded or stored at all: every read refers to the value last assigned,
+// merged by phis where control flow joins.
+class SsaValue
+{
+    static final int PHI = 100;
+
+    final int id;
+    int op;
+    int arg;
+    double constant;
+    SsaValue[] operands;
+    SsaBlock block;        // null for constants
+    SsaValue replacement;  // set when the value was found equal to another one
+
+    SsaValue(int id, int op, int arg, SsaValue... operands)
+    {
+        this.id = id;
+        this.op = op;
+        this.arg = arg;
+        this.operands = operands;
+    }
+
+    SsaValue resolve()
+    {
+        SsaValue value = this;
+        while (value.replacement != null)
+            value = value.replacement;
+        return value;
+    }
+
+    boolean isConstant() { return op == Op.LD_CONST; }
+
+    // computes a result from its operands only and cannot fail
+    boolean isPure() { return op >= Op.EQ && op <= Op.NEG || op == Op.SQRT || op >= Op.ADD_I && op <= Op.I2R; }
+
+    // has an effect other than producing a result
+    boolean isEffect()
+    {
+        switch (op)
+        {
+            case Op.STORE:
+            case Op.ST_ARR:
+            case Op.SUBSP:
+            case Op.ADDSP:
+            case Op.PRINT_REAL:
+            case Op.PRINT_STR:
+            case Op.PRINT_ARR:
+            case Op.ST_ARR_I:
+            case Op.PRINT_INT:
+            case Op.PRINT_ARR_I:
+            case Op.FREE_ARR:
+            case Op.AXPY:
+            case Op.AXPY_I:
+            case Op.FILL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // may throw: ld_arr on a bad index, dot on arrays of different sizes, and
+    // the string operations when the strings of the program take too much memory
+    boolean canFail() {
+        return op == Op.LD_ARR || op == Op.LD_ARR_I || op >= Op.CONCAT && op <= Op.LEN || op == Op.INTERN || op == Op.DOT || op == Op.DOT_I;
+    }
+
+    // reads memory that effects may change; the handle new_arr returns
+    // depends on the arrays allocated and freed before it
+    boolean readsMemory() {
+        return op == Op.LOAD || op == Op.LD_ARR || op == Op.LD_ARR_I || op == Op.NEW_ARR || op >= Op.SUM && op <= Op.DOT_I;
+    }
+
+    // accesses the elements of arrays given by handles among its operands
+    boolean usesArrays() { return op == Op.PRINT_ARR || op == Op.PRINT_ARR_I || op >= Op.SUM && op <= Op.FILL; }
+
+    boolean isCommutative()
+    {
+        switch (op)
+        {
+            case Op.EQ: case Op.NOTEQ: case Op.ADD: case Op.MUL: case Op.OR: case Op.AND:
+            case Op.EQ_I: case Op.NOTEQ_I: case Op.ADD_I: case Op.MUL_I:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
+
+class SsaBlock
+{
+    final int id;
+    final ArrayList<SsaValue> phis = new ArrayList<>();
+    final ArrayList<SsaValue> code = new ArrayList<>();
+    final ArrayList<SsaBlock> preds = new ArrayList<>();
+    final ArrayList<SsaBlock> succs = new ArrayList<>(); // with a condition: [nonzero, zero]
+    SsaValue condition;
+
+    SsaBlock idom;
+    int order;      // reverse postorder index
+    int loopDepth;
+
+    SsaBlock(int id) { this.id = id; }
+
+    void removePred(int index)
+    {
+        preds.remove(index);
+        for (SsaValue phi : phis) {
+            SsaValue[] operands = new SsaValue[phi.operands.length - 1];
+            for (int i = 0, j = 0; i < phi.operands.length; i++) {
+                if (i != index)
+                    operands[j++] = phi.operands[i];
+            }
+            phi.operands = operands;
+        }
+    }
+
+    boolean dominatedBy(SsaBlock block)
+    {
+        for (SsaBlock b = this; b != null; b = b.idom) {
+            if (b == block)
+                return true;
+        }
+        return false;
+    }
+}
+
+class SsaGraph
+{
+    final ArrayList<SsaBlock> blocks = new ArrayList<>(); // in layout order, entry first
+    SsaBlock exit;
+    int valueCount;
+    int blockCount;
+
+    private final HashMap<Long, SsaValue> constants = new HashMap<>();
+
+    SsaBlock entry() { return blocks.get(0); }
+
+    SsaBlock newBlock() { return new SsaBlock(blockCount++); }
+
+    SsaValue newValue(SsaBlock block, int op, int arg, SsaValue... operands)
+    {
+        SsaValue value = new SsaValue(valueCount++, op, arg, operands);
+        value.block = block;
+        return value;
+    }
+
+    // constants are shared, so equal constants are the same value
+    SsaValue constant(double value)
+    {
+        long bits = Double.doubleToRawLongBits(value);
+        SsaValue c = constants.get(bits);
+        if (c == null) {
+            c = new SsaValue(valueCount++, Op.LD_CONST, 0);
+            c.constant = value;
+            constants.put(bits, c);
+        }
+        return c;
+    }
+
+    // makes every operand and condition refer to the values that replaced them
+    void resolveOperands()
+    {
+        for (SsaBlock block : blocks)
+        {
+            for (SsaValue phi : block.phis)
+                resolve(phi.operands);
+            for (SsaValue value : block.code)
+                resolve(value.operands);
+            if (block.condition != null)
+                block.condition = block.condition.resolve();
+        }
+    }
+
+    private static void resolve(SsaValue[] operands) {
+        for (int i = 0; i < operands.length; i++)
+            operands[i] = operands[i].resolve();
+    }
+
+    // Removes phis whose operands are all the same value (or the phi itself),
+    // until none are left.
+    void removeTrivialPhis()
+    {
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (SsaBlock block : blocks)
+            {
+                for (int i = block.phis.size() - 1; i >= 0; i--)
+                {
+                    SsaValue phi = block.phis.get(i);
+                    SsaValue same = null;
+                    boolean trivial = true;
+                    for (SsaValue operand : phi.operands) {
+                        operand = operand.resolve();
+                        if (operand == phi || operand == same)
+                            continue;
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = operand;
+                    }
+                    if (trivial) {
+                        // a phi only of itself is never initialized on any path
+                        phi.replacement = same != null ? same : constant(0.0);
+                        block.phis.remove(i);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        resolveOperands();
+    }
+
+    // Computes reverse postorder and drops blocks that are not reachable
+    // from the entry, together with their edges.
+    void orderBlocks()
+    {
+        ArrayList<SsaBlock> postorder = new ArrayList<>();
+        boolean[] visited = new boolean[blockCount];
+        ArrayList<SsaBlock> stack = new ArrayList<>();
+        ArrayList<Integer> next = new ArrayList<>();
+        stack.add(entry());
+        next.add(0);
+        visited[entry().id] = true;
+
+        while (!stack.isEmpty())
+        {
+            int top = stack.size() - 1;
+            SsaBlock block = stack.get(top);
+            int i = next.get(top);
+            if (i < block.succs.size()) {
+                next.set(top, i + 1);
+                SsaBlock succ = block.succs.get(i);
+                if (!visited[succ.id]) {
+                    visited[succ.id] = true;
+                    stack.add(succ);
+                    next.add(0);
+                }
+            }
+            else {
+                postorder.add(block);
+                stack.remove(top);
+                next.remove(top);
+            }
+        }
+
+        for (int i = blocks.size() - 1; i >= 0; i--)
+        {
+            SsaBlock block = blocks.get(i);
+            if (visited[block.id])
+                continue;
+            for (SsaBlock succ : block.succs) {
+                int index = succ.preds.indexOf(block);
+                while (index != -1) {
+                    succ.removePred(index);
+                    index = succ.preds.indexOf(block);
+                }
+            }
+            blocks.remove(i);
+            if (block == exit)
+                exit = null;
+        }
+
+        for (int i = 0; i < postorder.size(); i++)
+            postorder.get(i).order = postorder.size() - 1 - i;
+    }
+
+    // Cooper, Harvey and Kennedy's iterative dominator algorithm, after orderBlocks()
+    void computeDominators()
+    {
+        SsaBlock[] rpo = new SsaBlock[blocks.size()];
+        for (SsaBlock block : blocks) {
+            rpo[block.order] = block;
+            block.idom = null;
+        }
+
+        SsaBlock entry = entry();
+        entry.idom = entry;
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (int i = 1; i < rpo.length; i++)
+            {
+                SsaBlock block = rpo[i];
+                SsaBlock idom = null;
+                for (SsaBlock pred : block.preds) {
+                    if (pred.idom == null)
+                        continue;
+                    idom = idom == null ? pred : intersect(pred, idom);
+                }
+                if (idom != block.idom) {
+                    block.idom = idom;
+                    changed = true;
+                }
+            }
+        }
+        entry.idom = null;
+    }
+
+    private static SsaBlock intersect(SsaBlock a, SsaBlock b)
+    {
+        while (a != b) {
+            while (a.order > b.order) a = a.idom;
+            while (b.order > a.order) b = b.idom;
+        }
+        return a;
+    }
+
+    // blocks sorted by reverse postorder
+    SsaBlock[] reversePostorder()
+    {
+        SsaBlock[] rpo = new SsaBlock[blocks.size()];
+        for (SsaBlock block : blocks)
+            rpo[block.order] = block;
+        return rpo;
+    }
+}
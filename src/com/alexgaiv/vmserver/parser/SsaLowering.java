@@ -0,0 +1,433 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+// Lowers the SSA form back to stack bytecode.
+//
+// A value used once, later in its own block, is emitted as an expression
+// tree right where it is used; every other value gets a slot. Slots are
+// variables below the ones of the original program, whose addresses are all
+// moved up by the number of slots; the program starts with `subsp slots` and
+// ends with `addsp slots`. Phis are slots assigned at the end of their
+// predecessors, all sources pushed before any is stored, and a phi shares
+// its slot with its operands where their live ranges do not overlap, so most
+// assignments to loop variables need no copy.
+class SsaLowering
+{
+    private final SsaGraph graph;
+    private final ArrayList<SsaBlock> layout = new ArrayList<>();
+    private boolean[] inlined;
+    private boolean[] materialized;
+    private int[] useCount;
+    private SsaBlock[] useBlock;
+    private SsaValue[] user;       // the using value, null for conditions and phi copies
+    private int[] rootPosition;    // where an inlined value is evaluated
+    private int[] parent;          // union-find of values sharing a slot
+    private int[] slot;
+    private int slotCount;
+    private Bytecode out;
+
+    private SsaLowering(SsaGraph graph) { this.graph = graph; }
+
+    static Bytecode lower(SsaGraph graph)
+    {
+        SsaLowering lowering = new SsaLowering(graph);
+        lowering.splitCriticalEdges();
+        lowering.findUses();
+        lowering.chooseInlined();
+        lowering.assignSlots();
+        return lowering.emit();
+    }
+
+    // A phi assignment on an edge from a branch into a join point can run
+    // on neither end, so such edges get a block of their own.
+    private void splitCriticalEdges()
+    {
+        ArrayList<SsaBlock> edges = new ArrayList<>();
+        for (SsaBlock block : graph.blocks)
+        {
+            if (block.succs.size() < 2)
+                continue;
+            for (int i = 0; i < block.succs.size(); i++)
+            {
+                SsaBlock succ = block.succs.get(i);
+                if (succ.phis.isEmpty() || succ.preds.size() < 2)
+                    continue;
+                SsaBlock edge = graph.newBlock();
+                edge.preds.add(block);
+                edge.succs.add(succ);
+                block.succs.set(i, edge);
+                succ.preds.set(succ.preds.indexOf(block), edge);
+                edges.add(edge);
+            }
+        }
+
+        for (SsaBlock block : graph.blocks) {
+            if (block != graph.exit)
+                layout.add(block);
+        }
+        layout.addAll(edges);
+        if (graph.exit != null)
+            layout.add(graph.exit);
+    }
+
+    private void findUses()
+    {
+        int count = graph.valueCount;
+        useCount = new int[count];
+        useBlock = new SsaBlock[count];
+        user = new SsaValue[count];
+
+        for (SsaBlock block : layout)
+        {
+            for (SsaValue phi : block.phis) {
+                for (int i = 0; i < phi.operands.length; i++)
+                    use(phi.operands[i], block.preds.get(i), null);
+            }
+            for (SsaValue value : block.code) {
+                for (SsaValue operand : value.operands)
+                    use(operand, block, value);
+            }
+            if (block.condition != null)
+                use(block.condition, block, null);
+        }
+    }
+
+    private void use(SsaValue value, SsaBlock block, SsaValue by)
+    {
+        useCount[value.id]++;
+        useBlock[value.id] = block;
+        user[value.id] = by;
+    }
+
+    private void chooseInlined()
+    {
+        int count = graph.valueCount;
+        inlined = new boolean[count];
+        materialized = new boolean[count];
+        rootPosition = new int[count];
+        int[] position = new int[count];
+
+        for (SsaBlock block : layout)
+        {
+            ArrayList<SsaValue> code = block.code;
+            for (int i = 0; i < code.size(); i++)
+                position[code.get(i).id] = i;
+
+            for (int i = code.size() - 1; i >= 0; i--)
+            {
+                SsaValue value = code.get(i);
+                if (value.isEffect())
+                    continue;
+
+                int id = value.id;
+                boolean inline = useCount[id] == 1 && useBlock[id] == block;
+                int root = code.size();
+                if (inline && user[id] != null) {
+                    SsaValue by = user[id];
+                    root = inlined[by.id] ? rootPosition[by.id] : position[by.id];
+                }
+                // a memory read must not move past anything but pure values
+                if (inline && value.readsMemory()) {
+                    for (int k = i + 1; k < root && inline; k++)
+                        inline = code.get(k).isPure();
+                }
+
+                inlined[id] = inline;
+                rootPosition[id] = root;
+                materialized[id] = !inline;
+            }
+            for (SsaValue phi : block.phis)
+                materialized[phi.id] = true;
+        }
+    }
+
+    // --- slots ---
+
+    private void assignSlots()
+    {
+        int count = graph.valueCount;
+        BitSet[] interference = new BitSet[count];
+        for (int i = 0; i < count; i++)
+            interference[i] = new BitSet();
+
+        // live values at the start of every block, until nothing changes
+        BitSet[] liveIn = new BitSet[graph.blockCount];
+        for (SsaBlock block : layout)
+            liveIn[block.id] = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = layout.size() - 1; i >= 0; i--) {
+                SsaBlock block = layout.get(i);
+                BitSet live = liveness(block, liveIn, null);
+                if (!live.equals(liveIn[block.id])) {
+                    liveIn[block.id] = live;
+                    changed = true;
+                }
+            }
+        }
+        for (SsaBlock block : layout)
+            liveness(block, liveIn, interference);
+
+        // coalesce phis with their operands
+        parent = new int[count];
+        BitSet[] members = new BitSet[count];
+        for (int i = 0; i < count; i++) {
+            parent[i] = i;
+            members[i] = new BitSet();
+            members[i].set(i);
+        }
+        for (SsaBlock block : layout)
+        {
+            for (SsaValue phi : block.phis)
+            {
+                for (SsaValue operand : phi.operands)
+                {
+                    if (!materialized[operand.id])
+                        continue;
+                    int a = find(phi.id), b = find(operand.id);
+                    if (a == b || interference[a].intersects(members[b]))
+                        continue;
+                    parent[b] = a;
+                    members[a].or(members[b]);
+                    interference[a].or(interference[b]);
+                }
+            }
+        }
+
+        slot = new int[count];
+        int[] slotOfClass = new int[count];
+        java.util.Arrays.fill(slotOfClass, -1);
+        for (SsaBlock block : layout) {
+            for (SsaValue phi : block.phis)
+                slot[phi.id] = slotFor(phi.id, slotOfClass);
+            for (SsaValue value : block.code) {
+                if (materialized[value.id])
+                    slot[value.id] = slotFor(value.id, slotOfClass);
+            }
+        }
+    }
+
+    private int slotFor(int id, int[] slotOfClass)
+    {
+        int root = find(id);
+        if (slotOfClass[root] == -1)
+            slotOfClass[root] = slotCount++;
+        return slotOfClass[root];
+    }
+
+    private int find(int id)
+    {
+        while (parent[id] != id) {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    // Walks a block backwards from its live-out values and returns its
+    // live-in values. With interference given, records that every slot
+    // written interferes with every value live right after the write.
+    private BitSet liveness(SsaBlock block, BitSet[] liveIn, BitSet[] interference)
+    {
+        BitSet live = new BitSet();
+        for (SsaBlock succ : block.succs)
+            live.or(liveIn[succ.id]);
+
+        if (block.succs.size() == 1) {
+            SsaBlock succ = block.succs.get(0);
+            int index = succ.preds.indexOf(block);
+            BitSet reads = new BitSet();
+            for (SsaValue phi : succ.phis)
+                leaves(phi.operands[index], reads);
+            for (SsaValue phi : succ.phis)
+                define(phi, live, interference);
+            live.or(reads);
+        }
+
+        if (block.condition != null)
+            leaves(block.condition, live);
+
+        ArrayList<SsaValue> code = block.code;
+        for (int i = code.size() - 1; i >= 0; i--)
+        {
+            SsaValue value = code.get(i);
+            if (inlined[value.id])
+                continue;
+            if (materialized[value.id])
+                define(value, live, interference);
+            for (SsaValue operand : value.operands)
+                leaves(operand, live);
+        }
+        return live;
+    }
+
+    private static void define(SsaValue value, BitSet live, BitSet[] interference)
+    {
+        live.clear(value.id);
+        if (interference != null) {
+            for (int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)) {
+                interference[value.id].set(i);
+                interference[i].set(value.id);
+            }
+        }
+    }
+
+    // values read from slots when evaluating a value where it is used
+    private void leaves(SsaValue value, BitSet reads)
+    {
+        if (value.isConstant())
+            return;
+        if (materialized[value.id]) {
+            reads.set(value.id);
+            return;
+        }
+        for (SsaValue operand : value.operands)
+            leaves(operand, reads);
+    }
+
+    // --- code ---
+
+    private Bytecode emit()
+    {
+        out = new Bytecode();
+        int[] offset = new int[graph.blockCount];
+        ArrayList<int[]> jumps = new ArrayList<>(); // {label position, block id}
+
+        if (slotCount > 0)
+            out.put(OpCode.subsp, slotCount);
+
+        for (int b = 0; b < layout.size(); b++)
+        {
+            SsaBlock block = layout.get(b);
+            SsaBlock next = b + 1 < layout.size() ? layout.get(b + 1) : null;
+            offset[block.id] = out.size();
+
+            for (SsaValue value : block.code)
+            {
+                if (value.isEffect())
+                    effect(value);
+                else if (materialized[value.id]) {
+                    expression(value);
+                    out.put(OpCode.store, slot[value.id]);
+                }
+            }
+
+            if (block.condition != null) {
+                tree(block.condition);
+                out.put(OpCode.jmpz);
+                jumps.add(new int[] { out.putLabel(), block.succs.get(1).id });
+                if (block.succs.get(0) != next) {
+                    out.put(OpCode.jmp);
+                    jumps.add(new int[] { out.putLabel(), block.succs.get(0).id });
+                }
+            }
+            else if (block.succs.size() == 1) {
+                SsaBlock succ = block.succs.get(0);
+                copies(block, succ);
+                if (succ != next) {
+                    out.put(OpCode.jmp);
+                    jumps.add(new int[] { out.putLabel(), succ.id });
+                }
+            }
+            else if (block == graph.exit && slotCount > 0) {
+                out.put(OpCode.addsp, slotCount);
+            }
+        }
+
+        for (int[] jump : jumps)
+            out.putInt(jump[0], offset[jump[1]]);
+        return out;
+    }
+
+    // assigns the phis of succ on the edge from block, as one parallel copy
+    private void copies(SsaBlock block, SsaBlock succ)
+    {
+        int index = succ.preds.indexOf(block);
+        ArrayList<SsaValue> targets = new ArrayList<>();
+        for (SsaValue phi : succ.phis) {
+            SsaValue source = phi.operands[index];
+            if (materialized[source.id] && slot[source.id] == slot[phi.id])
+                continue;
+            tree(source);
+            targets.add(phi);
+        }
+        for (int i = targets.size() - 1; i >= 0; i--)
+            out.put(OpCode.store, slot[targets.get(i).id]);
+    }
+
+    private void effect(SsaValue value)
+    {
+        switch (value.op)
+        {
+            case Op.STORE:
+                tree(value.operands[0]);
+                out.put(OpCode.store, value.arg + slotCount);
+                break;
+            case Op.ST_ARR:
+            case Op.ST_ARR_I:
+                tree(value.operands[0]);
+                tree(value.operands[1]);
+                out.put(OpCode.fromCode(value.op), value.arg + slotCount);
+                break;
+            case Op.SUBSP:
+            case Op.ADDSP:
+                out.put(OpCode.fromCode(value.op), value.arg);
+                break;
+            case Op.PRINT_REAL:
+            case Op.PRINT_STR:
+            case Op.PRINT_INT:
+            case Op.PRINT_ARR:
+            case Op.PRINT_ARR_I:
+                tree(value.operands[0]);
+                out.put(OpCode.fromCode(value.op));
+                break;
+            case Op.FREE_ARR:
+                out.put(OpCode.free_arr, value.arg + slotCount);
+                break;
+            case Op.AXPY:
+            case Op.AXPY_I:
+            case Op.FILL:
+                for (SsaValue operand : value.operands)
+                    tree(operand);
+                out.put(OpCode.fromCode(value.op));
+                break;
+        }
+    }
+
+    // pushes a value
+    private void tree(SsaValue value)
+    {
+        if (value.isConstant())
+            out.putValue(value.constant);
+        else if (materialized[value.id])
+            out.put(OpCode.load, slot[value.id]);
+        else
+            expression(value);
+    }
+
+    // computes a value from its operands
+    private void expression(SsaValue value)
+    {
+        switch (value.op)
+        {
+            case Op.LOAD:
+                out.put(OpCode.load, value.arg + slotCount);
+                break;
+            case Op.LD_ARR:
+            case Op.LD_ARR_I:
+                tree(value.operands[0]);
+                out.put(OpCode.fromCode(value.op), value.arg + slotCount);
+                break;
+            case Op.NEW_ARR:
+                out.put(OpCode.new_arr, value.arg);
+                break;
+            default:
+                for (SsaValue operand : value.operands)
+                    tree(operand);
+                out.put(OpCode.fromCode(value.op));
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// Optimizes bytecode through the SSA form: builds it from the parser output,
+// runs the passes selected by the optimization level and lowers the result
+// back to bytecode. Code the SSA form cannot express (only possible with
+// malformed bytecode) is returned unchanged.
+class SsaOptimizer
+{
+    private final SsaGraph graph;
+
+    private SsaOptimizer(SsaGraph graph) { this.graph = graph; }
+
+    static Bytecode optimize(Bytecode bytecode, OptimizationLevel level)
+    {
+        if (level == OptimizationLevel.NONE)
+            return bytecode;
+
+        try {
+            SsaGraph graph = SsaBuilder.build(DecodedProgram.decode(bytecode));
+            if (graph == null)
+                return bytecode;
+
+            SsaOptimizer optimizer = new SsaOptimizer(graph);
+            optimizer.run(level);
+            Bytecode optimized = SsaLowering.lower(graph);
+
+            // the lowered code must still have a static stack layout
+            if (StackAnalysis.analyze(DecodedProgram.decode(optimized)) == null)
+                return bytecode;
+            return optimized;
+        }
+        catch (ProgramExecuteException e) {
+            return bytecode;
+        }
+    }
+
+    private void run(OptimizationLevel level)
+    {
+        simplify();
+        if (level == OptimizationLevel.FULL) {
+            moveLoopInvariants();
+            reduceInductionVariables();
+            simplify();
+        }
+        eliminateDeadStores();
+        eliminateDeadCode();
+    }
+
+    // value numbering and constant folding, until no branch folds anymore
+    private void simplify()
+    {
+        boolean changed = true;
+        while (changed) {
+            graph.orderBlocks();
+            graph.computeDominators();
+            numberValues();
+            graph.removeTrivialPhis();
+            changed = foldBranches();
+        }
+        graph.orderBlocks();
+        graph.computeDominators();
+    }
+
+    // --- global value numbering ---
+
+    // Walks the dominator tree, replacing every pure value by an equal one
+    // computed in a dominating position and folding operations on constants.
+    private void numberValues()
+    {
+        HashMap<SsaBlock, ArrayList<SsaBlock>> children = dominatorTree();
+        HashMap<ValueKey, SsaValue> available = new HashMap<>();
+        ArrayList<ValueKey> scope = new ArrayList<>();
+        numberValues(graph.entry(), children, available, scope);
+        graph.resolveOperands();
+    }
+
+    private void numberValues(SsaBlock block, HashMap<SsaBlock, ArrayList<SsaBlock>> children,
+                              HashMap<ValueKey, SsaValue> available, ArrayList<ValueKey> scope)
+    {
+        int scopeStart = scope.size();
+
+        for (SsaValue phi : block.phis) {
+            resolve(phi);
+            ValueKey key = new ValueKey(phi, block.id);
+            SsaValue same = available.get(key);
+            if (same != null)
+                phi.replacement = same;
+            else {
+                available.put(key, phi);
+                scope.add(key);
+            }
+        }
+        block.phis.removeIf(phi -> phi.replacement != null);
+
+        for (SsaValue value : block.code)
+        {
+            resolve(value);
+            if (!value.isPure())
+                continue;
+
+            SsaValue folded = fold(value);
+            if (folded != null) {
+                value.replacement = folded;
+                continue;
+            }
+
+            ValueKey key = new ValueKey(value, -1);
+            SsaValue same = available.get(key);
+            if (same != null)
+                value.replacement = same;
+            else {
+                available.put(key, value);
+                scope.add(key);
+            }
+        }
+        block.code.removeIf(value -> value.replacement != null);
+        if (block.condition != null)
+            block.condition = block.condition.resolve();
+
+        ArrayList<SsaBlock> dominated = children.get(block);
+        if (dominated != null) {
+            for (SsaBlock child : dominated)
+                numberValues(child, children, available, scope);
+        }
+
+        while (scope.size() > scopeStart)
+            available.remove(scope.remove(scope.size() - 1));
+    }
+
+    private HashMap<SsaBlock, ArrayList<SsaBlock>> dominatorTree()
+    {
+        HashMap<SsaBlock, ArrayList<SsaBlock>> children = new HashMap<>();
+        for (SsaBlock block : graph.reversePostorder()) {
+            if (block.idom != null)
+                children.computeIfAbsent(block.idom, b -> new ArrayList<>()).add(block);
+        }
+        return children;
+    }
+
+    private static void resolve(SsaValue value) {
+        for (int i = 0; i < value.operands.length; i++)
+            value.operands[i] = value.operands[i].resolve();
+    }
+
+    private SsaValue fold(SsaValue value)
+    {
+        for (SsaValue operand : value.operands) {
+            if (!operand.isConstant())
+                return null;
+        }
+        double left = value.operands[0].constant;
+        double right = value.operands.length > 1 ? value.operands[1].constant : 0.0;
+        return graph.constant(OpCode.evaluate(value.op, left, right));
+    }
+
+    private static final class ValueKey
+    {
+        private final int op;
+        private final int block; // phis are only equal within a block
+        private final int[] operands;
+
+        ValueKey(SsaValue value, int block)
+        {
+            this.op = value.op;
+            this.block = block;
+            operands = new int[value.operands.length];
+            for (int i = 0; i < operands.length; i++)
+                operands[i] = value.operands[i].id;
+            if (value.isCommutative())
+                Arrays.sort(operands);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof ValueKey))
+                return false;
+            ValueKey k = (ValueKey) o;
+            return op == k.op && block == k.block && Arrays.equals(operands, k.operands);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * op + block) * 31 + Arrays.hashCode(operands);
+        }
+    }
+
+    // A branch on a constant becomes a jump. Returns true if any did, after
+    // removing the blocks that became unreachable.
+    private boolean foldBranches()
+    {
+        boolean changed = false;
+        for (SsaBlock block : graph.blocks)
+        {
+            if (block.condition == null || !block.condition.isConstant())
+                continue;
+
+            SsaBlock taken = block.succs.get(block.condition.constant != 0.0 ? 0 : 1);
+            SsaBlock other = block.succs.get(block.condition.constant != 0.0 ? 1 : 0);
+            other.removePred(other.preds.indexOf(block));
+            block.succs.clear();
+            block.succs.add(taken);
+            block.condition = null;
+            changed = true;
+        }
+        if (changed)
+            graph.orderBlocks();
+        return changed;
+    }
+
+    // --- dead code and dead stores ---
+
+    // Removes values whose result is never used. Effects, branch conditions
+    // and values that can fail, like ld_arr on a bad index, are always kept.
+    private void eliminateDeadCode()
+    {
+        boolean[] live = new boolean[graph.valueCount];
+        ArrayList<SsaValue> work = new ArrayList<>();
+
+        for (SsaBlock block : graph.blocks) {
+            for (SsaValue value : block.code) {
+                if (value.isEffect() || value.canFail())
+                    markLive(value, live, work);
+            }
+            if (block.condition != null)
+                markLive(block.condition, live, work);
+        }
+        while (!work.isEmpty()) {
+            SsaValue value = work.remove(work.size() - 1);
+            for (SsaValue operand : value.operands)
+                markLive(operand, live, work);
+        }
+
+        for (SsaBlock block : graph.blocks) {
+            block.phis.removeIf(phi -> !live[phi.id]);
+            block.code.removeIf(value -> !live[value.id]);
+        }
+    }
+
+    private static void markLive(SsaValue value, boolean[] live, ArrayList<SsaValue> work)
+    {
+        if (!live[value.id]) {
+            live[value.id] = true;
+            work.add(value);
+        }
+    }
+
+    // Scalar variables need no dead store elimination: a store nobody reads
+    // is a value without uses, and eliminateDeadCode() removes it. Here an
+    // array store is removed when a later store in the same block writes the
+    // same element before anything could read it. Two variables may hold
+    // the same array, an array passed twice to a function for one, so a
+    // read of any array stops the search.
+    private void eliminateDeadStores()
+    {
+        for (SsaBlock block : graph.blocks)
+        {
+            ArrayList<SsaValue> code = block.code;
+            for (int i = code.size() - 1; i >= 0; i--)
+            {
+                SsaValue store = code.get(i);
+                if (store.op != Op.ST_ARR && store.op != Op.ST_ARR_I)
+                    continue;
+
+                for (int j = i + 1; j < code.size(); j++)
+                {
+                    SsaValue next = code.get(j);
+                    if (next.op == store.op && next.arg == store.arg && next.operands[0] == store.operands[0]) {
+                        code.remove(i);
+                        break;
+                    }
+                    if (next.readsMemory() || next.usesArrays() ||
+                            next.op == Op.STORE || next.op == Op.SUBSP || next.op == Op.ADDSP)
+                        break;
+                }
+            }
+        }
+    }
+
+    // --- loops ---
+
+    private static final class Loop
+    {
+        final SsaBlock header;
+        final HashSet<SsaBlock> blocks = new HashSet<>();
+        final ArrayList<SsaBlock> latches = new ArrayList<>();
+        SsaBlock preheader;
+
+        Loop(SsaBlock header) { this.header = header; }
+    }
+
+    // natural loops, innermost first
+    private ArrayList<Loop> findLoops()
+    {
+        HashMap<SsaBlock, Loop> byHeader = new HashMap<>();
+        for (SsaBlock block : graph.reversePostorder()) {
+            for (SsaBlock succ : block.succs) {
+                if (block.dominatedBy(succ))
+                    byHeader.computeIfAbsent(succ, Loop::new).latches.add(block);
+            }
+        }
+
+        ArrayList<Loop> loops = new ArrayList<>(byHeader.values());
+        for (Loop loop : loops)
+        {
+            loop.blocks.add(loop.header);
+            ArrayList<SsaBlock> work = new ArrayList<>(loop.latches);
+            while (!work.isEmpty()) {
+                SsaBlock block = work.remove(work.size() - 1);
+                if (loop.blocks.add(block))
+                    work.addAll(block.preds);
+            }
+        }
+        loops.sort((a, b) -> a.blocks.size() != b.blocks.size() ?
+            Integer.compare(a.blocks.size(), b.blocks.size()) : Integer.compare(a.header.order, b.header.order));
+        return loops;
+    }
+
+    // Gives the loop a block that is the only way into the header from outside.
+    private void makePreheader(Loop loop)
+    {
+        SsaBlock header = loop.header;
+        ArrayList<Integer> outside = new ArrayList<>();
+        for (int i = 0; i < header.preds.size(); i++) {
+            if (!loop.blocks.contains(header.preds.get(i)))
+                outside.add(i);
+        }
+
+        if (outside.size() == 1) {
+            SsaBlock pred = header.preds.get(outside.get(0));
+            if (pred.succs.size() == 1) {
+                loop.preheader = pred;
+                return;
+            }
+        }
+
+        SsaBlock preheader = graph.newBlock();
+        graph.blocks.add(graph.blocks.indexOf(header), preheader);
+
+        ArrayList<SsaBlock> preds = new ArrayList<>();
+        for (int i : outside) {
+            SsaBlock pred = header.preds.get(i);
+            preds.add(pred);
+            pred.succs.set(pred.succs.indexOf(header), preheader);
+            preheader.preds.add(pred);
+        }
+
+        // phi operands from outside move to the preheader
+        for (SsaValue phi : header.phis)
+        {
+            SsaValue[] incoming = new SsaValue[outside.size()];
+            for (int i = 0; i < incoming.length; i++)
+                incoming[i] = phi.operands[outside.get(i)];
+
+            SsaValue entry = incoming[0];
+            for (SsaValue value : incoming) {
+                if (value != entry) {
+                    entry = graph.newValue(preheader, SsaValue.PHI, 0, incoming);
+                    preheader.phis.add(entry);
+                    break;
+                }
+            }
+
+            ArrayList<SsaValue> operands = new ArrayList<>();
+            operands.add(entry);
+            for (int i = 0; i < phi.operands.length; i++) {
+                if (!outside.contains(i))
+                    operands.add(phi.operands[i]);
+            }
+            phi.operands = operands.toArray(new SsaValue[0]);
+        }
+
+        ArrayList<SsaBlock> headerPreds = new ArrayList<>();
+        headerPreds.add(preheader);
+        for (SsaBlock pred : header.preds) {
+            if (!preds.contains(pred))
+                headerPreds.add(pred);
+        }
+        header.preds.clear();
+        header.preds.addAll(headerPreds);
+        preheader.succs.add(header);
+        loop.preheader = preheader;
+    }
+
+    // Moves pure values whose operands are all computed outside a loop to its
+    // preheader. Pure operations cannot fail, so computing them even when the
+    // loop body would not run is safe.
+    private void moveLoopInvariants()
+    {
+        ArrayList<Loop> loops = findLoops();
+        for (Loop loop : loops)
+        {
+            makePreheader(loop);
+            graph.removeTrivialPhis();
+            // a new preheader belongs to every loop around this one
+            for (Loop outer : loops) {
+                if (outer != loop && outer.blocks.contains(loop.header))
+                    outer.blocks.add(loop.preheader);
+            }
+            graph.orderBlocks();
+            graph.computeDominators();
+
+            for (SsaBlock block : graph.reversePostorder())
+            {
+                if (!loop.blocks.contains(block))
+                    continue;
+                for (int i = 0; i < block.code.size(); i++)
+                {
+                    SsaValue value = block.code.get(i);
+                    if (!value.isPure() || !definedOutside(value, loop))
+                        continue;
+                    block.code.remove(i--);
+                    loop.preheader.code.add(value);
+                    value.block = loop.preheader;
+                }
+            }
+        }
+        graph.orderBlocks();
+        graph.computeDominators();
+    }
+
+    private static boolean definedOutside(SsaValue value, Loop loop)
+    {
+        for (SsaValue operand : value.operands) {
+            if (operand.block != null && loop.blocks.contains(operand.block))
+                return false;
+        }
+        return true;
+    }
+
+    // --- strength reduction ---
+
+    // Replaces i * k by a new induction variable j = j + c * k when i = i + c
+    // only counts a loop `while (i < n)`, and then tests j < n * k instead,
+    // so that i itself becomes dead. Only done where every value of i and j
+    // is exact, so the results are bit for bit those of the multiplication.
+    private void reduceInductionVariables()
+    {
+        for (Loop loop : findLoops())
+        {
+            SsaBlock header = loop.header;
+            if (loop.latches.size() != 1 || header.preds.size() != 2 || header.condition == null ||
+                    !loop.blocks.contains(header.succs.get(0)) || loop.blocks.contains(header.succs.get(1)))
+                continue;
+
+            int entryIndex = loop.blocks.contains(header.preds.get(0)) ? 1 : 0;
+            SsaBlock preheader = header.preds.get(entryIndex);
+            SsaBlock latch = header.preds.get(1 - entryIndex);
+
+            for (SsaValue phi : new ArrayList<>(header.phis)) {
+                if (reduce(loop, phi, preheader, latch, entryIndex))
+                    break;
+            }
+        }
+        graph.resolveOperands();
+    }
+
+    private boolean reduce(Loop loop, SsaValue phi, SsaBlock preheader, SsaBlock latch, int entryIndex)
+    {
+        SsaBlock header = loop.header;
+        SsaValue init = phi.operands[entryIndex];
+        SsaValue next = phi.operands[1 - entryIndex];
+        if (!init.isConstant() || next.op != Op.ADD && next.op != Op.SUB)
+            return false;
+
+        // next = i + c
+        double step;
+        if (next.operands[0] == phi && next.operands[1].isConstant())
+            step = next.op == Op.ADD ? next.operands[1].constant : -next.operands[1].constant;
+        else if (next.op == Op.ADD && next.operands[1] == phi && next.operands[0].isConstant())
+            step = next.operands[0].constant;
+        else
+            return false;
+
+        // the loop test: i < n or i <= n counting up, i > n or i >= n counting down
+        SsaValue test = header.condition;
+        if (test.block != header || test.operands.length != 2)
+            return false;
+        int relation = test.op;
+        SsaValue limit;
+        if (test.operands[0] == phi)
+            limit = test.operands[1];
+        else if (test.operands[1] == phi) {
+            limit = test.operands[0];
+            relation = swapped(relation);
+        }
+        else
+            return false;
+
+        boolean up = relation == Op.LSS || relation == Op.LSSEQ;
+        boolean down = relation == Op.GRT || relation == Op.GRTEQ;
+        double start = init.constant;
+        if (!limit.isConstant() || !(up && step > 0 && start >= 0 || down && step < 0 && start <= 0) ||
+                !isInteger(start) || !isInteger(step) || !isInteger(limit.constant))
+            return false;
+
+        // every value i takes lies within this bound
+        double bound = Math.max(Math.abs(start), Math.abs(limit.constant) + Math.abs(step));
+
+        // i may only feed its increment, the test and multiplications by constants
+        ArrayList<SsaValue> products = new ArrayList<>();
+        for (SsaBlock block : graph.blocks)
+        {
+            for (SsaValue value : block.phis) {
+                if (value != phi && (uses(value, phi) || uses(value, next)))
+                    return false;
+            }
+            for (SsaValue value : block.code)
+            {
+                if (value == next || value == test) {
+                    continue;
+                }
+                if (uses(value, next))
+                    return false;
+                if (!uses(value, phi))
+                    continue;
+                if (value.op != Op.MUL || !loop.blocks.contains(block))
+                    return false;
+                SsaValue factor = value.operands[0] == phi ? value.operands[1] : value.operands[0];
+                if (!factor.isConstant() || !isExactMultiple(bound, factor.constant))
+                    return false;
+                products.add(value);
+            }
+            if (block.condition != null && block.condition != test &&
+                    (block.condition == phi || block.condition == next))
+                return false;
+        }
+        if (uses(test, next) || products.isEmpty())
+            return false;
+
+        // j = phi(init * k, j + step * k), replacing every i * k
+        HashMap<Double, SsaValue> reduced = new HashMap<>();
+        SsaValue newTest = null;
+        for (SsaValue product : products)
+        {
+            double factor = (product.operands[0] == phi ? product.operands[1] : product.operands[0]).constant;
+            SsaValue j = reduced.get(factor);
+            if (j == null)
+            {
+                j = graph.newValue(header, SsaValue.PHI, 0);
+                SsaValue increment = graph.newValue(latch, Op.ADD, 0, j, graph.constant(step * factor));
+                latch.code.add(increment);
+                SsaValue[] operands = new SsaValue[2];
+                operands[entryIndex] = graph.constant(start * factor);
+                operands[1 - entryIndex] = increment;
+                j.operands = operands;
+                header.phis.add(j);
+                reduced.put(factor, j);
+
+                if (newTest == null && factor != 0.0) {
+                    int newRelation = factor > 0 ? relation : swapped(relation);
+                    newTest = graph.newValue(header, newRelation, 0, j, graph.constant(limit.constant * factor));
+                }
+            }
+            product.replacement = j;
+            product.block.code.remove(product);
+        }
+
+        if (newTest == null)
+            return true;
+        header.code.add(header.code.indexOf(test), newTest);
+        header.condition = newTest;
+        return true;
+    }
+
+    private static boolean uses(SsaValue value, SsaValue operand)
+    {
+        for (SsaValue o : value.operands) {
+            if (o == operand)
+                return true;
+        }
+        return false;
+    }
+
+    private static int swapped(int relation)
+    {
+        switch (relation)
+        {
+            case Op.LSS: return Op.GRT;
+            case Op.GRT: return Op.LSS;
+            case Op.LSSEQ: return Op.GRTEQ;
+            case Op.GRTEQ: return Op.LSSEQ;
+            default: return relation;
+        }
+    }
+
+    private static boolean isInteger(double value) {
+        return Math.rint(value) == value && Math.abs(value) <= 1L << 52;
+    }
+
+    // Products i * factor and their sums are exact for integers |i| <= bound
+    // when factor is m * 2^e with |m| * bound within the 53 bits of a double.
+    private static boolean isExactMultiple(double bound, double factor)
+    {
+        if (factor == 0.0 || Double.isNaN(factor) || Double.isInfinite(factor) ||
+                Math.getExponent(factor) < Double.MIN_EXPONENT + 64 ||
+                Math.getExponent(factor) > Double.MAX_EXPONENT - 128)
+            return false;
+        long mantissa = (Double.doubleToRawLongBits(factor) & ((1L << 52) - 1)) | (1L << 52);
+        mantissa >>= Long.numberOfTrailingZeros(mantissa);
+        return bound * mantissa <= (double)(1L << 53);
+    }
+}
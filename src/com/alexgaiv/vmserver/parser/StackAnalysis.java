@@ -0,0 +1,187 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Operand stack depth and variables area size before every reachable
+// instruction, computed by data flow over decoded bytecode. Compilers that
+// map the operand stack onto something static (JVM stack, registers) need
+// both to agree on every path, and the operand stack to be empty wherever
+// scopes change. Code from ProgramParser always satisfies this; values are
+// only left on the operand stack across jumps by && and ||.
+class StackAnalysis
+{
+    final int[] depth;        // -1 for unreachable instructions
+    final int[] stackPointer;
+    final int maxDepth;
+    final int maxStackPointer;
+
+    private StackAnalysis(int[] depth, int[] stackPointer, int maxDepth, int maxStackPointer)
+    {
+        this.depth = depth;
+        this.stackPointer = stackPointer;
+        this.maxDepth = maxDepth;
+        this.maxStackPointer = maxStackPointer;
+    }
+
+    boolean isReachable(int pc) { return depth[pc] != -1; }
+
+    static int stackEffect(int op)
+    {
+        switch (op)
+        {
+            case Op.LOAD:
+            case Op.LD_CONST:
+            case Op.NEW_ARR:
+                return 1;
+            case Op.LD_ARR:
+            case Op.LD_ARR_I:
+            case Op.SUBSP:
+            case Op.ADDSP:
+            case Op.JMP:
+            case Op.NOT:
+            case Op.NEG:
+            case Op.NEG_I:
+            case Op.I2R:
+            case Op.SQRT:
+            case Op.FREE_ARR:
+            case Op.R2S:
+            case Op.I2S:
+            case Op.LEN:
+            case Op.INTERN:
+            case Op.SUM:
+            case Op.SUM_I:
+            case Op.MAX:
+            case Op.MAX_I:
+                return 0;
+            case Op.ST_ARR:
+            case Op.ST_ARR_I:
+            case Op.FILL:
+                return -2;
+            case Op.AXPY:
+            case Op.AXPY_I:
+                return -3;
+            default:
+                return -1;
+        }
+    }
+
+    static int operandCount(int op)
+    {
+        switch (op)
+        {
+            case Op.LOAD:
+            case Op.LD_CONST:
+            case Op.SUBSP:
+            case Op.ADDSP:
+            case Op.JMP:
+            case Op.NEW_ARR:
+            case Op.FREE_ARR:
+                return 0;
+            case Op.ST_ARR:
+            case Op.ST_ARR_I:
+            case Op.EQ: case Op.NOTEQ: case Op.LSS: case Op.GRT: case Op.LSSEQ: case Op.GRTEQ:
+            case Op.ADD: case Op.SUB: case Op.MUL: case Op.DIV: case Op.OR: case Op.AND:
+            case Op.EQ_I: case Op.NOTEQ_I: case Op.LSS_I: case Op.GRT_I: case Op.LSSEQ_I: case Op.GRTEQ_I:
+            case Op.ADD_I: case Op.SUB_I: case Op.MUL_I:
+            case Op.CONCAT:
+            case Op.DOT: case Op.DOT_I: case Op.FILL:
+                return 2;
+            case Op.AXPY:
+            case Op.AXPY_I:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    // returns null if the code does not have a static stack layout
+    static StackAnalysis analyze(DecodedProgram code)
+    {
+        int count = code.size();
+        int[] depth = new int[count + 1];
+        int[] stackPointer = new int[count + 1];
+        Arrays.fill(depth, -1);
+
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        depth[0] = 0;
+        work.push(0);
+        int maxDepth = 0, maxStackPointer = 0;
+
+        while (!work.isEmpty())
+        {
+            int pc = work.pop();
+            if (pc == count)
+                continue;
+
+            int op = code.ops[pc];
+            int arg = code.args[pc];
+            int d = depth[pc];
+            int sp = stackPointer[pc];
+
+            // the chunks of a parfor loop run on copies of the stack, and
+            // functions on frames of their own
+            if (op == Op.PARFOR || op == Op.CALL)
+                return null;
+            if (d < operandCount(op))
+                return null;
+            if ((op == Op.SUBSP || op == Op.ADDSP) && d != 0)
+                return null;
+
+            int nextDepth = d + stackEffect(op);
+            maxDepth = Math.max(maxDepth, nextDepth);
+            if (op == Op.SUBSP) sp += arg;
+            if (op == Op.ADDSP) sp -= arg;
+            if (sp < 0)
+                return null;
+            maxStackPointer = Math.max(maxStackPointer, sp);
+
+            if (op == Op.JMP || op == Op.JMPZ) {
+                if (!flowTo(depth, stackPointer, arg, nextDepth, sp, work))
+                    return null;
+            }
+            if (op != Op.JMP) {
+                if (!flowTo(depth, stackPointer, pc + 1, nextDepth, sp, work))
+                    return null;
+            }
+        }
+
+        if (depth[count] > 0)
+            return null;
+        return new StackAnalysis(depth, stackPointer, maxDepth, maxStackPointer);
+    }
+
+    private static boolean flowTo(int[] depth, int[] stackPointer, int pc, int d, int sp,
+                                  ArrayDeque<Integer> work)
+    {
+        if (depth[pc] == -1) {
+            depth[pc] = d;
+            stackPointer[pc] = sp;
+            work.push(pc);
+            return true;
+        }
+        return depth[pc] == d && stackPointer[pc] == sp;
+    }
+
+    // Finds the variables that hold array handles: those accessed with
+    // ld_arr, st_arr, free_arr or their int forms, and those a new_arr is
+    // stored to. Returns null if one is outside the variables area.
+    boolean[] findArrays(DecodedProgram code)
+    {
+        int count = code.size();
+        boolean[] inArray = new boolean[maxStackPointer];
+
+        for (int pc = 0; pc < count; pc++) {
+            if (!isReachable(pc))
+                continue;
+            int op = code.ops[pc];
+            if (op == Op.LD_ARR || op == Op.ST_ARR || op == Op.LD_ARR_I || op == Op.ST_ARR_I ||
+                    op == Op.FREE_ARR || op == Op.STORE && pc > 0 && code.ops[pc - 1] == Op.NEW_ARR) {
+                if (code.args[pc] >= inArray.length)
+                    return null;
+                inArray[code.args[pc]] = true;
+            }
+        }
+        return inArray;
+    }
+}
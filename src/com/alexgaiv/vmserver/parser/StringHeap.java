@@ -0,0 +1,167 @@
+package com.alexgaiv.vmserver.parser;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Strings of a running program. A string value is a handle, an index into
+// `strings`; the literals of the program come first, with their ids in the
+// string table as handles. A string is either flat, a String, or a Rope, the
+// concatenation of two other strings, which is only flattened when printed or
+// compared.
+// Short strings are always flat and interned, so repeated values, like the
+// text of the same number, share one handle; longer ones are only interned
+// when compared, see intern(double). Strings are never freed; the
+// memory they take is bounded per run instead. The chunks of a parfor loop
+// share the heap of the program, so all access to it is synchronized.
+final class StringHeap
+{
+    // concatenations up to this length are flattened and interned right away
+    static final int FLAT_LIMIT = 64;
+    // in chars, for the strings created by the program
+    static final long MEMORY_LIMIT = 1 << 25;
+    // the longest string that can be flattened
+    static final long MAX_LENGTH = Integer.MAX_VALUE - 8;
+    // in chars, the overhead of every string created by the program
+    private static final int ENTRY_COST = 16;
+
+    private static final class Rope
+    {
+        final int left, right;
+        final long length;
+
+        Rope(int left, int right, long length)
+        {
+            this.left = left;
+            this.right = right;
+            this.length = length;
+        }
+    }
+
+    private Object[] strings;
+    private int count = 0;
+    private final HashMap<String, Integer> interned = new HashMap<>();
+    private long memory = 0;
+
+    StringHeap(HashMap<Integer, String> stringTable)
+    {
+        strings = new Object[Math.max(16, stringTable.size() * 2)];
+        for (Map.Entry<Integer, String> e : stringTable.entrySet()) {
+            int id = e.getKey();
+            if (id >= strings.length)
+                strings = Arrays.copyOf(strings, id * 2);
+            strings[id] = e.getValue();
+            interned.put(e.getValue(), id);
+            count = Math.max(count, id + 1);
+        }
+    }
+
+    private int check(double handle) throws ProgramExecuteException
+    {
+        int id = (int)handle;
+        if (id < 0 || id >= count || strings[id] == null)
+            throw new ProgramExecuteException("Invalid string pointer");
+        return id;
+    }
+
+    private void reserve(long size) throws ProgramExecuteException
+    {
+        if (size > MEMORY_LIMIT - memory)
+            throw new ProgramExecuteException("String memory limit exceeded");
+        memory += size;
+    }
+
+    private int add(Object string) throws ProgramExecuteException
+    {
+        reserve(ENTRY_COST + (string instanceof String ? ((String)string).length() : 0));
+        if (count == strings.length)
+            strings = Arrays.copyOf(strings, count * 2);
+        strings[count] = string;
+        return count++;
+    }
+
+    private double intern(String string) throws ProgramExecuteException
+    {
+        Integer id = interned.get(string);
+        if (id == null) {
+            id = add(string);
+            interned.put(string, id);
+        }
+        return id;
+    }
+
+    private long length(int id)
+    {
+        Object string = strings[id];
+        return string instanceof String ? ((String)string).length() : ((Rope)string).length;
+    }
+
+    synchronized double concat(double left, double right) throws ProgramExecuteException
+    {
+        int l = check(left), r = check(right);
+        if (length(l) == 0)
+            return r;
+        if (length(r) == 0)
+            return l;
+        long length = length(l) + length(r);
+        if (length > MAX_LENGTH)
+            throw new ProgramExecuteException("String is too long");
+        // a rope is longer than FLAT_LIMIT, so both parts of a short string are flat
+        if (length <= FLAT_LIMIT)
+            return intern((String)strings[l] + strings[r]);
+        return add(new Rope(l, r, length));
+    }
+
+    synchronized double fromReal(double value) throws ProgramExecuteException {
+        return intern(Double.toString(value));
+    }
+
+    synchronized double fromInt(long value) throws ProgramExecuteException {
+        return intern(Long.toString(value));
+    }
+
+    synchronized long length(double handle) throws ProgramExecuteException {
+        return length(check(handle));
+    }
+
+    // the flat string, a rope is flattened the first time and kept flat
+    synchronized String get(double handle) throws ProgramExecuteException
+    {
+        int id = check(handle);
+        if (strings[id] instanceof String)
+            return (String)strings[id];
+
+        Rope rope = (Rope)strings[id];
+        reserve(rope.length);
+
+        // left to right, with an explicit stack since ropes may be deep
+        StringBuilder builder = new StringBuilder((int)rope.length);
+        ArrayDeque<Integer> parts = new ArrayDeque<>();
+        parts.push(id);
+        while (!parts.isEmpty()) {
+            Object part = strings[parts.pop()];
+            if (part instanceof String) {
+                builder.append((String)part);
+            }
+            else {
+                parts.push(((Rope)part).right);
+                parts.push(((Rope)part).left);
+            }
+        }
+
+        String string = builder.toString();
+        strings[id] = string;
+        return string;
+    }
+
+    // The handle of the first string interned with the text of this one,
+    // which it becomes if there is none. Strings are equal if these handles
+    // are, whatever their lengths.
+    synchronized double intern(double handle) throws ProgramExecuteException
+    {
+        String string = get(handle);
+        Integer id = interned.putIfAbsent(string, (int)handle);
+        return id != null ? id : (int)handle;
+    }
+}
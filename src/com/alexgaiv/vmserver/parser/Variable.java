@@ -6,6 +6,7 @@ enum VariableType
 {
     VT_NOT_SET(""),
     VT_REAL("real"),
+    VT_INT("int"),
     VT_STRING("string"),
     VT_ARRAY("array"),
     VT_BOOL("bool");